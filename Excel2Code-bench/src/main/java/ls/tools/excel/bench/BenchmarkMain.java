@@ -0,0 +1,35 @@
+package ls.tools.excel.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so every result comes with its allocation rate and GC counts,
+ * and writes the results as JSON (<code>jmh-result.json</code>) as well as to the console.
+ * <br/>
+ * Any JMH command line option can be given, e.g. a benchmark name pattern, or <code>-p chainDepth=100</code> to run only some of the workbook shapes.
+ */
+public final class BenchmarkMain
+{
+	private BenchmarkMain() {}
+
+	public static void main(final String[] args) throws RunnerException, CommandLineOptionException
+	{
+		final Options opts = new OptionsBuilder()
+									.parent(new CommandLineOptions(args))
+									.addProfiler(GCProfiler.class)
+									.resultFormat(ResultFormatType.JSON)
+									.result("jmh-result.json")
+									.warmupIterations(3)
+									.measurementIterations(5)
+									.forks(1)
+									.build();
+		new Runner(opts).run();
+	}
+}
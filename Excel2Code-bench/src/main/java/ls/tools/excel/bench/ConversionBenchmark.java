@@ -0,0 +1,45 @@
+package ls.tools.excel.bench;
+
+import fj.data.List;
+import ls.tools.excel.FormulaConverter;
+import ls.tools.excel.FormulaWorkbook;
+import ls.tools.excel.XSSFFormulaWorkbook;
+import ls.tools.excel.model.Function;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converting named cells to functions, sequentially and in parallel, over workbooks of different shapes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ConversionBenchmark
+{
+	@Param({"10", "100"})
+	public int chainDepth;
+
+	@Param({"1", "8"})
+	public int fanOut;
+
+	@Param({"10", "1000"})
+	public int names;
+
+	private FormulaWorkbook wb;
+	private String[] nameList;
+	private final FormulaConverter converter = new FormulaConverter();
+
+	@Setup(Level.Trial)
+	public void createWorkbook()
+	{
+		wb = new XSSFFormulaWorkbook(WorkbookGenerator.chains(chainDepth, fanOut, names));
+		nameList = WorkbookGenerator.names(names);
+	}
+
+	@Benchmark
+	public List<Function> formulasFromNamedCells() { return converter.formulasFromNamedCells(wb, nameList); }
+
+	@Benchmark
+	public List<Function> formulasFromNamedCellsInParallel() { return converter.formulasFromNamedCellsInParallel(wb, nameList); }
+}
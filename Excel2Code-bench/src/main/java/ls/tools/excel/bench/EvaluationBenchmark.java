@@ -0,0 +1,136 @@
+package ls.tools.excel.bench;
+
+import fj.data.List;
+import ls.tools.excel.FormulaConverter;
+import ls.tools.excel.eval.InterpretedFunction;
+import ls.tools.excel.eval.Interpreter;
+import ls.tools.excel.model.Function;
+import ls.tools.excel.serialize.js.JSFormatter;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.script.Invocable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkState;
+import static ls.tools.excel.bench.WorkbookGenerator.NAME_PREFIX;
+import static ls.tools.excel.bench.WorkbookGenerator.chains;
+import static ls.tools.excel.bench.WorkbookGenerator.names;
+import static ls.tools.fj.Util.fj;
+
+/**
+ * Evaluating converted functions with the {@link Interpreter}, against evaluating the javascript generated for them, over workbooks of different shapes.
+ * <br/>
+ * Both preparing the functions for evaluation (interpreting needs no code generation, and no warmup of generated code) and evaluating every named output once are measured.
+ * <br/>
+ * The generated javascript is run by the JDK's javascript engine (Nashorn), in its own {@link GeneratedJS state}. On a JDK without one (15 and later),
+ * only the javascript benchmarks fail; the interpreter benchmarks still run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EvaluationBenchmark
+{
+	private static final String DELIMITER = "\n\n";
+	private static final double INPUT = 1.0001;
+
+	@Param({"10", "100"})
+	public int chainDepth;
+
+	@Param({"1", "8"})
+	public int fanOut;
+
+	@Param({"10", "1000"})
+	public int names;
+
+	private List<Function> functions;
+	/**
+	 * The functions of the named outputs, which are the ones evaluated.
+	 */
+	private List<Function> outputs;
+	private InterpretedFunction[] interpreted;
+	/**
+	 * The arguments of every output, by its position in {@link #outputs}.
+	 */
+	private double[][] args;
+
+	/**
+	 * The script generated for the functions, loaded into the javascript engine.
+	 */
+	@State(Scope.Benchmark)
+	public static class GeneratedJS
+	{
+		private String script;
+		private ScriptEngine engine;
+		private Invocable invocable;
+		private Object[][] boxedArgs;
+
+		@Setup(Level.Trial)
+		public void load(final EvaluationBenchmark workbook) throws ScriptException
+		{
+			engine = new ScriptEngineManager().getEngineByName("javascript");
+			checkState(engine != null,"No javascript engine in this JDK - only the interpreter benchmarks can run");
+			script = new JSFormatter().format(workbook.functions, DELIMITER);
+			engine.eval(script);
+			invocable = (Invocable)engine;
+			boxedArgs = new Object[workbook.args.length][];
+			for (int i = 0; i < boxedArgs.length; i++)
+			{
+				boxedArgs[i] = new Object[workbook.args[i].length];
+				Arrays.fill(boxedArgs[i], INPUT);
+			}
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void prepare()
+	{
+		functions = new FormulaConverter().formulasFromNamedCells(chains(chainDepth, fanOut, names), names(names));
+		outputs = functions.filter(fj((Function f) -> f.name().startsWith(NAME_PREFIX)));
+		interpreted = prepareInterpreter();
+		args = new double[outputs.length()][];
+		int i = 0;
+		for (final Function f : outputs)
+		{
+			args[i] = new double[f.parameters().length()];
+			Arrays.fill(args[i], INPUT);
+			i++;
+		}
+	}
+
+	/**
+	 * A new interpreter every time, as an interpreter keeps the functions it prepared.
+	 */
+	@Benchmark
+	public InterpretedFunction[] prepareInterpreter()
+	{
+		final Interpreter interpreter = new Interpreter();
+		final InterpretedFunction[] ret = new InterpretedFunction[outputs.length()];
+		int i = 0;
+		for (final Function f : outputs)
+			ret[i++] = interpreter.prepare(f);
+		return ret;
+	}
+
+	@Benchmark
+	public Object loadGeneratedJS(final GeneratedJS js) throws ScriptException { return js.engine.eval(js.script, js.engine.createBindings()); }
+
+	@Benchmark
+	public void interpret(final Blackhole bh)
+	{
+		for (int i = 0; i < interpreted.length; i++)
+			bh.consume(interpreted[i].applyAsDouble(args[i]));
+	}
+
+	@Benchmark
+	public void evaluateGeneratedJS(final GeneratedJS js, final Blackhole bh) throws ScriptException, NoSuchMethodException
+	{
+		int i = 0;
+		for (final Function f : outputs)
+			bh.consume(js.invocable.invokeFunction(f.name(), js.boxedArgs[i++]));
+	}
+}
@@ -0,0 +1,147 @@
+package ls.tools.excel.bench;
+
+import ls.tools.excel.api.CommandLineMain;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Runs the whole {@link CommandLineMain} pipeline over generated workbooks of growing size, and collects the wall time and peak heap of each phase.
+ * <br/>
+ * Every dimension of a base shape is scaled in turn (a "sweep"), while the others stay fixed.
+ * Every run is in a fresh JVM, so runs don't share JIT or heap state; the JVM's own startup isn't included in the recorded phases.
+ * <br/>
+ * The results are written to a CSV file, one line per run and phase, with the columns:
+ * <code>sweep,chainDepth,fanOut,fanIn,names,copiedRows,mixedTypes,fileBytes,mode,run,phase,wallMillis,peakHeapBytes</code>
+ * <br/>
+ * A run that fails (e.g. runs out of stack or heap) gets a single line, with the phase <code>failed</code> and -1 for its measures; its console output is kept in its log file.
+ * <br/><br/>
+ * Usage: <code>MacroBenchmark [dir] [runs] [jvm option ...]</code>, e.g. <code>MacroBenchmark macro 3 -Xmx2g</code>.
+ * The workbooks, outputs and <code>macro-result.csv</code> are written to the given directory (default: <code>macro</code>).
+ */
+public final class MacroBenchmark
+{
+	public static final String RESULT_FILE = "macro-result.csv";
+	private static final String[] MODES = { "loaded", "streaming", "parallel" };
+
+	private static final WorkbookShape BASE = new WorkbookShape().withChainDepth(100).withFanOut(8).withFanIn(2).withNames(100);
+
+	private static final class Sweep
+	{
+		final String name;
+		final List<WorkbookShape> shapes = new ArrayList<>();
+
+		Sweep(final String _name, final String dimension, final Object... values)
+		{
+			this.name = _name;
+			for (final Object v : values)
+				shapes.add(BASE.with(dimension + "=" + v));
+		}
+	}
+
+	private static final Sweep[] SWEEPS = {
+		new Sweep("depth", "chainDepth", 10, 100, 1000, 5000),
+		new Sweep("fanOut", "fanOut", 1, 8, 64, 256),
+		new Sweep("fanIn", "fanIn", 1, 8, 64, 256),
+		new Sweep("names", "names", 10, 100, 1000, 10000),
+		new Sweep("rows", "copiedRows", 100, 1000, 10000, 50000),
+		new Sweep("mixedRows", "copiedRows", 100, 1000, 10000, 50000)
+	};
+
+	private final File dir;
+	private final int runs;
+	private final List<String> jvmOptions;
+
+	private MacroBenchmark(final File _dir, final int _runs, final List<String> _jvmOptions)
+	{
+		this.dir = _dir;
+		this.runs = _runs;
+		this.jvmOptions = _jvmOptions;
+	}
+
+	public static void main(final String[] args) throws IOException, InterruptedException
+	{
+		final File dir = new File(args.length > 0 ? args[0] : "macro");
+		final int runs = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+		final List<String> jvmOptions = new ArrayList<>();
+		for (int i = 2; i < args.length; i++)
+			jvmOptions.add(args[i]);
+		checkState(dir.isDirectory() || dir.mkdirs(),"Couldn't create directory " + dir);
+		new MacroBenchmark(dir, runs, jvmOptions).run();
+	}
+
+	private void run() throws IOException, InterruptedException
+	{
+		final File result = new File(dir, RESULT_FILE);
+		try (final BufferedWriter out = new BufferedWriter(new FileWriter(result)))
+		{
+			out.write("sweep," + WorkbookShape.CSV_HEADER + ",fileBytes,mode,run,phase,wallMillis,peakHeapBytes");
+			out.newLine();
+			for (final Sweep sweep : SWEEPS)
+				for (final WorkbookShape s : sweep.shapes)
+				{
+					final WorkbookShape shape = "mixedRows".equals(sweep.name) ? s.withMixedTypes(true) : s;
+					final File workbook = new File(dir, shape + ".xlsx");
+					if (!workbook.exists()) WorkbookGenerator.write(shape, workbook);
+					for (final String mode : MODES)
+						for (int r = 0; r < runs; r++)
+						{
+							System.out.println(sweep.name + " " + shape + " " + mode + " #" + r);
+							final String prefix = sweep.name + "," + shape.csvValues() + "," + workbook.length() + "," + mode + "," + r + ",";
+							for (final String phase : runPipeline(workbook, mode, new File(dir, shape + "-" + mode + "-" + r + ".log")))
+							{
+								out.write(prefix + phase);
+								out.newLine();
+							}
+							out.flush();
+						}
+				}
+		}
+		System.out.println("Results written to " + result);
+	}
+
+	/**
+	 * Run the command line in a new JVM, over the given workbook.
+	 * @return The phase lines recorded by the run (without the header), or a single failure line if the run failed.
+	 */
+	private List<String> runPipeline(final File workbook, final String mode, final File log) throws IOException, InterruptedException
+	{
+		final File stats = File.createTempFile("stats", ".csv", dir);
+		checkState(stats.delete(),"Couldn't delete " + stats); //the command line writes the header only to new files
+		try
+		{
+			final List<String> cmd = new ArrayList<>();
+			cmd.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+			cmd.addAll(jvmOptions);
+			cmd.add("-cp");
+			cmd.add(System.getProperty("java.class.path"));
+			cmd.add(CommandLineMain.class.getName());
+			cmd.add("-source"); cmd.add(workbook.getPath());
+			cmd.add("-language"); cmd.add("js");
+			cmd.add("-output"); cmd.add(new File(dir, "out.js").getPath());
+			cmd.add("-stats"); cmd.add(stats.getPath());
+			if (!"loaded".equals(mode)) cmd.add("-" + mode);
+			final Process p = new ProcessBuilder(cmd).redirectErrorStream(true).redirectOutput(log).start();
+			p.waitFor();
+			if (!stats.exists()) //the command line doesn't exit with an error code, but records the stats only when done
+			{
+				System.out.println("  failed - see " + log);
+				return Collections.singletonList("failed,-1,-1");
+			}
+			final List<String> lines = Files.readAllLines(stats.toPath());
+			return lines.subList(1, lines.size());
+		}
+		finally
+		{
+			stats.delete();
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package ls.tools.excel.bench;
+
+import fj.data.List;
+import ls.tools.excel.FormulaConverter;
+import ls.tools.excel.model.Function;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static ls.tools.fj.Util.listsEql;
+import static ls.tools.fj.Util.nullCheckingEqualPredicate;
+
+/**
+ * Structural equality and hashing of the model: comparing two independently converted (equal, but not identical) function lists,
+ * and hashing all functions of a list.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ModelBenchmark
+{
+	@Param({"10", "100"})
+	public int chainDepth;
+
+	@Param({"8"})
+	public int fanOut;
+
+	@Param({"100", "1000"})
+	public int names;
+
+	private List<Function> functions;
+	private List<Function> sameFunctions;
+	/**
+	 * Equal to {@link #functions} but for its last function, so comparing them goes over the whole list.
+	 */
+	private List<Function> differentFunctions;
+
+	@Setup(Level.Trial)
+	public void convert()
+	{
+		final FormulaConverter converter = new FormulaConverter();
+		final String[] nameList = WorkbookGenerator.names(names);
+		functions = converter.formulasFromNamedCells(WorkbookGenerator.chains(chainDepth, fanOut, names), nameList);
+		sameFunctions = converter.formulasFromNamedCells(WorkbookGenerator.chains(chainDepth, fanOut, names), nameList);
+		differentFunctions = sameFunctions.init().snoc(sameFunctions.head());
+	}
+
+	@Benchmark
+	public boolean listsEqlOfEqualLists() { return listsEql(functions, sameFunctions, nullCheckingEqualPredicate()); }
+
+	@Benchmark
+	public boolean listsEqlOfDifferentLists() { return listsEql(functions, differentFunctions, nullCheckingEqualPredicate()); }
+
+	@Benchmark
+	public boolean functionEquals() { return functions.last().equals(sameFunctions.last()); }
+
+	@Benchmark
+	public int hashCodes()
+	{
+		int ret = 0;
+		for (final Function f : functions)
+			ret += f.hashCode();
+		return ret;
+	}
+}
@@ -0,0 +1,152 @@
+package ls.tools.excel.bench;
+
+import org.apache.poi.ss.usermodel.Name;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Generates workbooks of a given {@link WorkbookShape shape}, for benchmarks.
+ * <br/>
+ * All cells are in a single sheet:
+ * <ul>
+ * <li>Column A has <code>fanOut</code> numeric inputs, each starting a chain of <code>chainDepth</code> multiplications in its own column</li>
+ * <li>The next column has <code>names</code> named outputs (<code>out_0</code>, <code>out_1</code>, ...), each multiplying the ends of <code>fanIn</code> neighbouring chains -
+ * so the chains are shared by many names</li>
+ * <li>The columns after it have <code>copiedRows</code> rows of the same formulas, copied down: a numeric input, and a named formula (<code>row_0</code>, <code>row_1</code>, ...) over it.
+ * With mixed types, each row also has a boolean input, a string and a blank cell, and a named boolean formula over the boolean input (<code>test_0</code>, <code>test_1</code>, ...).</li>
+ * </ul>
+ * Only formulas the converter supports are used.
+ */
+public final class WorkbookGenerator
+{
+	public static final String SHEET = "Sheet1";
+	public static final String NAME_PREFIX = "out_";
+	public static final String ROW_NAME_PREFIX = "row_";
+	public static final String TEST_NAME_PREFIX = "test_";
+
+	private WorkbookGenerator() {}
+
+	/**
+	 * Same as {@link #generate(WorkbookShape)} with the default shape, with the given chains and names.
+	 */
+	public static XSSFWorkbook chains(final int chainDepth, final int fanOut, final int names)
+	{
+		return generate(new WorkbookShape().withChainDepth(chainDepth).withFanOut(fanOut).withNames(names));
+	}
+
+	/**
+	 * Build a workbook of the given shape in memory.
+	 */
+	public static XSSFWorkbook generate(final WorkbookShape shape)
+	{
+		checkArgument(shape != null,"Shape can't be null");
+		final XSSFWorkbook wb = new XSSFWorkbook();
+		final Sheet s = wb.createSheet(SHEET);
+		final int rows = Math.max(Math.max(shape.chainDepth(), shape.fanOut()), Math.max(shape.names(), shape.copiedRows()));
+		for (int r = 0; r < rows; r++)
+			s.createRow(r);
+
+		for (int c = 0; c < shape.fanOut(); c++)
+		{
+			final String input = ref(c, 0);
+			row(s, c).createCell(0).setCellValue(c + 1);
+			row(s, 0).createCell(c + 1).setCellFormula(input + "*2");
+			for (int i = 1; i < shape.chainDepth(); i++)
+				row(s, i).createCell(c + 1).setCellFormula(ref(i - 1, c + 1) + "*" + input);
+		}
+
+		final int outCol = shape.fanOut() + 1;
+		for (int i = 0; i < shape.names(); i++)
+		{
+			final StringBuilder product = new StringBuilder();
+			for (int k = 0; k < shape.fanIn(); k++)
+				product.append(k == 0 ? "" : "*").append(ref(shape.chainDepth() - 1, ((i + k) % shape.fanOut()) + 1));
+			row(s, i).createCell(outCol).setCellFormula(product.toString());
+			name(wb, NAME_PREFIX + i, i, outCol);
+		}
+
+		final int inCol = outCol + 1;
+		final int rowCol = inCol + 1;
+		final int flagCol = rowCol + 1;
+		final int labelCol = flagCol + 1;
+		final int testCol = labelCol + 2; //leaves a blank cell after the label
+		for (int r = 0; r < shape.copiedRows(); r++)
+		{
+			final Row row = row(s, r);
+			row.createCell(inCol).setCellValue(r);
+			row.createCell(rowCol).setCellFormula("SQRT(" + ref(r, inCol) + "*" + ref(r, inCol) + ")");
+			name(wb, ROW_NAME_PREFIX + r, r, rowCol);
+			if (shape.mixedTypes())
+			{
+				row.createCell(flagCol).setCellValue(r % 2 == 0);
+				row.createCell(labelCol).setCellValue("row " + r);
+				row.createCell(labelCol + 1);
+				row.createCell(testCol).setCellFormula(ref(r, flagCol) + "=TRUE");
+				name(wb, TEST_NAME_PREFIX + r, r, testCol);
+			}
+		}
+		return wb;
+	}
+
+	/**
+	 * Generate a workbook of the given shape, and write it to the given file.
+	 */
+	public static void write(final WorkbookShape shape, final File file) throws IOException
+	{
+		checkArgument(file != null,"File can't be null");
+		try (final OutputStream out = new FileOutputStream(file))
+		{
+			generate(shape).write(out);
+		}
+	}
+
+	/**
+	 * @return The names of the outputs of a workbook with the given number of names.
+	 */
+	public static String[] names(final int names)
+	{
+		final String[] ret = new String[names];
+		for (int i = 0; i < names; i++)
+			ret[i] = NAME_PREFIX + i;
+		return ret;
+	}
+
+	/**
+	 * Write a workbook file.
+	 * <br/>
+	 * Usage: <code>WorkbookGenerator &lt;file.xlsx&gt; [dimension=value ...]</code>, e.g. <code>WorkbookGenerator big.xlsx chainDepth=1000 names=5000 mixedTypes=true</code>
+	 */
+	public static void main(final String[] args) throws IOException
+	{
+		if (args.length == 0)
+		{
+			System.out.println("Usage: WorkbookGenerator <file.xlsx> [dimension=value ...], with dimensions: " + WorkbookShape.CSV_HEADER);
+			return;
+		}
+		WorkbookShape shape = new WorkbookShape();
+		for (int i = 1; i < args.length; i++)
+			shape = shape.with(args[i]);
+		write(shape, new File(args[0]));
+		System.out.println("Wrote " + shape + " to " + args[0]);
+	}
+
+	private static void name(final XSSFWorkbook wb, final String name, final int row, final int col)
+	{
+		final Name n = wb.createName();
+		n.setNameName(name);
+		n.setRefersToFormula(SHEET + "!" + new CellReference(row, col, true, true).formatAsString());
+	}
+
+	private static Row row(final Sheet s, final int r) { return s.getRow(r); }
+
+	private static String ref(final int row, final int col) { return new CellReference(row, col).formatAsString(); }
+}
@@ -0,0 +1,115 @@
+package ls.tools.excel.bench;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The shape of a generated workbook - see {@link WorkbookGenerator} for the layout.
+ * <br/>
+ * Shapes are immutable; every <code>withXXX</code> method returns a new shape.
+ */
+public final class WorkbookShape
+{
+	public static final String CSV_HEADER = "chainDepth,fanOut,fanIn,names,copiedRows,mixedTypes";
+
+	private final int chainDepth;
+	private final int fanOut;
+	private final int fanIn;
+	private final int names;
+	private final int copiedRows;
+	private final boolean mixedTypes;
+
+	/**
+	 * The default shape: 8 chains of 10 cells each, and 10 names, each over 2 of the chains.
+	 */
+	public WorkbookShape() { this(10, 8, 2, 10, 0, false); }
+
+	private WorkbookShape(final int _chainDepth, final int _fanOut, final int _fanIn, final int _names, final int _copiedRows, final boolean _mixedTypes)
+	{
+		checkArgument(_chainDepth > 0,"Chain depth must be positive");
+		checkArgument(_fanOut > 0,"Fan out must be positive");
+		checkArgument(_fanIn > 0 && _fanIn <= _fanOut,"Fan in must be positive, and at most the fan out");
+		checkArgument(_names > 0,"Number of names must be positive");
+		checkArgument(_copiedRows >= 0,"Number of copied rows can't be negative");
+		this.chainDepth = _chainDepth;
+		this.fanOut = _fanOut;
+		this.fanIn = _fanIn;
+		this.names = _names;
+		this.copiedRows = _copiedRows;
+		this.mixedTypes = _mixedTypes;
+	}
+
+	/**
+	 * @return The number of cells in each chain of formulas.
+	 */
+	public int chainDepth() { return chainDepth; }
+
+	/**
+	 * @return The number of inputs, each starting its own chain.
+	 */
+	public int fanOut() { return fanOut; }
+
+	/**
+	 * @return The number of chains every named output depends on.
+	 */
+	public int fanIn() { return fanIn; }
+
+	/**
+	 * @return The number of named outputs.
+	 */
+	public int names() { return names; }
+
+	/**
+	 * @return The number of rows of the copied down formulas. Each row has its own names, in addition to {@link #names()}.
+	 */
+	public int copiedRows() { return copiedRows; }
+
+	/**
+	 * @return Whether the copied down rows also have boolean, string and blank cells, and a named formula over the boolean cell.
+	 */
+	public boolean mixedTypes() { return mixedTypes; }
+
+	public WorkbookShape withChainDepth(final int d) { return new WorkbookShape(d, fanOut, fanIn, names, copiedRows, mixedTypes); }
+	public WorkbookShape withFanOut(final int f) { return new WorkbookShape(chainDepth, f, Math.min(fanIn, f), names, copiedRows, mixedTypes); }
+	public WorkbookShape withFanIn(final int f) { return new WorkbookShape(chainDepth, Math.max(fanOut, f), f, names, copiedRows, mixedTypes); }
+	public WorkbookShape withNames(final int n) { return new WorkbookShape(chainDepth, fanOut, fanIn, n, copiedRows, mixedTypes); }
+	public WorkbookShape withCopiedRows(final int r) { return new WorkbookShape(chainDepth, fanOut, fanIn, names, r, mixedTypes); }
+	public WorkbookShape withMixedTypes(final boolean m) { return new WorkbookShape(chainDepth, fanOut, fanIn, names, copiedRows, m); }
+
+	/**
+	 * Set a dimension by its name, as used in {@link #CSV_HEADER}, e.g. <code>chainDepth=100</code>.
+	 * @param assignment The dimension name and value, separated by '='
+	 * @return The shape with the given dimension set.
+	 */
+	public WorkbookShape with(final String assignment)
+	{
+		checkArgument(assignment != null && assignment.indexOf('=') > 0,"Shape dimension should be given as name=value: " + assignment);
+		final String dim = assignment.substring(0, assignment.indexOf('=')).trim();
+		final String value = assignment.substring(assignment.indexOf('=') + 1).trim();
+		switch (dim)
+		{
+			case "chainDepth": return withChainDepth(Integer.parseInt(value));
+			case "fanOut": return withFanOut(Integer.parseInt(value));
+			case "fanIn": return withFanIn(Integer.parseInt(value));
+			case "names": return withNames(Integer.parseInt(value));
+			case "copiedRows": return withCopiedRows(Integer.parseInt(value));
+			case "mixedTypes": return withMixedTypes(Boolean.parseBoolean(value));
+			default: throw new IllegalArgumentException("Unknown shape dimension: " + dim);
+		}
+	}
+
+	/**
+	 * @return The values of the shape's dimensions, in the order of {@link #CSV_HEADER}.
+	 */
+	public String csvValues()
+	{
+		return chainDepth + "," + fanOut + "," + fanIn + "," + names + "," + copiedRows + "," + mixedTypes;
+	}
+
+	/**
+	 * @return A short name for the shape, usable as a file name.
+	 */
+	@Override public String toString()
+	{
+		return "d" + chainDepth + "-o" + fanOut + "-i" + fanIn + "-n" + names + "-r" + copiedRows + (mixedTypes ? "-mixed" : "");
+	}
+}
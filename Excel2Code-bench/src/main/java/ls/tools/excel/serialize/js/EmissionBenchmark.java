@@ -0,0 +1,76 @@
+package ls.tools.excel.serialize.js;
+
+import fj.data.List;
+import ls.tools.excel.FormulaConverter;
+import ls.tools.excel.model.Function;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import static ls.tools.excel.bench.WorkbookGenerator.chains;
+import static ls.tools.excel.bench.WorkbookGenerator.names;
+
+/**
+ * Emitting javascript for converted functions - formatting whole lists to a string or to a writer, and serializing function bodies one by one.
+ * <br/>
+ * It's in the serializer's package, since {@link JSExpressionSerializer} isn't public.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EmissionBenchmark
+{
+	private static final String DELIMITER = "\n\n";
+
+	@Param({"10", "100"})
+	public int chainDepth;
+
+	@Param({"1", "8"})
+	public int fanOut;
+
+	@Param({"10", "1000"})
+	public int names;
+
+	private List<Function> functions;
+	private final JSFormatter formatter = new JSFormatter();
+	private final JSExpressionSerializer serializer = new JSExpressionSerializer();
+
+	@Setup(Level.Trial)
+	public void convert()
+	{
+		functions = new FormulaConverter().formulasFromNamedCells(chains(chainDepth, fanOut, names), names(names));
+	}
+
+	@Benchmark
+	public String formatToString() { return formatter.format(functions, DELIMITER); }
+
+	@Benchmark
+	public void formatToWriter(final Blackhole bh) throws IOException { formatter.format(functions, DELIMITER, new BlackholeWriter(bh)); }
+
+	@Benchmark
+	public void serializeBodies(final Blackhole bh)
+	{
+		for (final Function f : functions)
+			bh.consume(serializer.serialize(f.body()));
+	}
+
+	/**
+	 * A writer that sinks everything written into a blackhole.
+	 */
+	private static final class BlackholeWriter extends Writer
+	{
+		private final Blackhole bh;
+
+		BlackholeWriter(final Blackhole _bh) { this.bh = _bh; }
+
+		@Override public void write(final char[] cbuf, final int off, final int len) { bh.consume(cbuf[off]); bh.consume(len); }
+		@Override public void write(final String str, final int off, final int len) { bh.consume(str); bh.consume(len); }
+		@Override public Writer append(final CharSequence csq) { bh.consume(csq); return this; }
+		@Override public Writer append(final char c) { bh.consume(c); return this; }
+		@Override public void flush() {}
+		@Override public void close() {}
+	}
+}
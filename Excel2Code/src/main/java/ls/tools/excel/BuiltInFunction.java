@@ -18,7 +18,16 @@ public enum BuiltInFunction implements Function, ExpressionBuilder
 {
 	SQRT("SQRT",list(param("X",NUMERIC)),NUMERIC),
 	MOD("MOD",list(param("X",NUMERIC),param("DIVISOR",NUMERIC)),NUMERIC),
-	IF("IF",list(param("TEST",BOOLEAN),param("THEN",FORMULA),param("ELSE",FORMULA)),FORMULA);
+	IF("IF",list(param("TEST",BOOLEAN),param("THEN",FORMULA),param("ELSE",FORMULA)),FORMULA),
+	SUM("SUM",list(param("VALUES",RANGE)),NUMERIC),
+	AVERAGE("AVERAGE",list(param("VALUES",RANGE)),NUMERIC),
+	MIN("MIN",list(param("VALUES",RANGE)),NUMERIC),
+	MAX("MAX",list(param("VALUES",RANGE)),NUMERIC),
+	COUNT("COUNT",list(param("VALUES",RANGE)),NUMERIC),
+	/**
+	 * Not an Excel function - the {@link CellType#RANGE range} of the numbers among any number of values, e.g. the cells of a range holding formula cells.
+	 */
+	ARRAY("ARRAY",List.<Param>nil(),RANGE);
 
 	private final Function func;
 
@@ -33,6 +42,16 @@ public enum BuiltInFunction implements Function, ExpressionBuilder
 
 	@Override public CellType returnType() { return func.returnType(); }
 	
+	/**
+	 * @return Whether this function aggregates the numbers in a {@link CellType#RANGE range} into a single number.
+	 */
+	public boolean isAggregate() { return parameters().length() == 1 && parameters().head().type() == RANGE; }
+
+	/**
+	 * @return Whether this function takes any number of arguments, instead of its {@link #parameters() parameters}.
+	 */
+	public boolean isVariadic() { return this == ARRAY; }
+
 	/**
 	 * Tests whether the given function name is a built in function, as defined in this enumeration.
 	 * The test is done by name, under the assumption that no one will name a function in the excel, using the name of a built-in function.
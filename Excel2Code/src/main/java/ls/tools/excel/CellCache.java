@@ -0,0 +1,192 @@
+package ls.tools.excel;
+
+import fj.data.List;
+import fj.data.Option;
+import ls.tools.excel.cache.ConversionCache;
+import ls.tools.excel.cache.FunctionCodec;
+import ls.tools.excel.model.ExpressionBuilder;
+import ls.tools.excel.model.Function;
+import ls.tools.excel.model.Param;
+import org.apache.poi.ss.util.CellReference;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static ls.tools.excel.CellType.FORMULA;
+
+/**
+ * Stores the functions converted from formula cells in a {@link ConversionCache}, and reads them back.
+ * <br/>
+ * An entry is keyed by the sheet, the function name and the formula text of a cell. It holds the cells referenced by the formula, with their types,
+ * and the function converted from it, with its local variables numbered from 0, in the order they were created.
+ * For referenced formula cells it also holds the name and the {@link #signatureOf(Function) signature} of the function invoked for them -
+ * the only parts of an invoked function that affect the invoking function.
+ */
+final class CellCache
+{
+	/**
+	 * Changes whenever the conversion, or the format of the entries, changes - so entries written by other versions are never read.
+	 */
+	private static final String VERSION = "cell-2";
+
+	/**
+	 * A cell referenced by a cached formula.
+	 */
+	static final class Reference
+	{
+		final int row;
+		final int col;
+		final CellType type;
+		/**
+		 * The name and signature of the function invoked for a referenced formula cell; null for other cells.
+		 */
+		final String calleeName;
+		final String calleeSignature;
+
+		Reference(final int _row, final int _col, final CellType _type, final String _calleeName, final String _calleeSignature)
+		{
+			this.row = _row;
+			this.col = _col;
+			this.type = _type;
+			this.calleeName = _calleeName;
+			this.calleeSignature = _calleeSignature;
+		}
+	}
+
+	/**
+	 * A cached formula cell.
+	 */
+	static final class Entry
+	{
+		final java.util.List<Reference> references;
+		final int localVarCount;
+		private final byte[] function;
+
+		Entry(final java.util.List<Reference> _references, final int _localVarCount, final byte[] _function)
+		{
+			this.references = _references;
+			this.localVarCount = _localVarCount;
+			this.function = _function;
+		}
+	}
+
+	private final ConversionCache cache;
+
+	CellCache(final ConversionCache _cache)
+	{
+		checkArgument(_cache != null,"Cache can't be null");
+		this.cache = _cache;
+	}
+
+	/**
+	 * @return Some(entry) if a cell with the given sheet, name and formula was cached, None otherwise.
+	 */
+	Option<Entry> lookup(final String sheetName, final String name, final String formula)
+	{
+		final Option<byte[]> bytes = cache.get(ConversionCache.keyOf(VERSION, sheetName, name, formula));
+		if (bytes.isNone()) return Option.none();
+		try (final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.some())))
+		{
+			final java.util.List<Reference> refs = new ArrayList<>();
+			for (int i = in.readInt(); i > 0; i--)
+			{
+				final int row = in.readInt();
+				final int col = in.readInt();
+				final CellType type = CellType.valueOf(in.readUTF());
+				refs.add(type == FORMULA ? new Reference(row, col, type, in.readUTF(), in.readUTF()) : new Reference(row, col, type, null, null));
+			}
+			final int localVarCount = in.readInt();
+			final byte[] function = new byte[in.available()];
+			in.readFully(function);
+			return Option.some(new Entry(refs, localVarCount, function));
+		}
+		catch (IOException | IllegalArgumentException e) //a corrupt entry is a miss
+		{
+			return Option.none();
+		}
+	}
+
+	/**
+	 * Read the function of a cached cell.
+	 * @param e The cached cell
+	 * @param builder Builds the function's expressions
+	 * @param firstLocalVar The number given to the first local variable of the function; the others are numbered consecutively.
+	 * @param callees The function invoked for each of the cell's {@link Entry#references referenced cells}, by their index.
+	 */
+	Function functionOf(final Entry e, final ExpressionBuilder builder, final int firstLocalVar, final IntFunction<Function> callees)
+	{
+		try
+		{
+			return FunctionCodec.read(new DataInputStream(new ByteArrayInputStream(e.function)), builder,
+									  n -> FormulaConversion.isLocalVarName(n) ? FormulaConversion.localVarName(firstLocalVar + FormulaConversion.localVarNumber(n)) : n,
+									  callees);
+		}
+		catch (IOException ex) { throw new UncheckedIOException(ex); } //can't happen when reading from a byte array
+	}
+
+	/**
+	 * Cache the function converted from a formula cell.
+	 * @param c The cell
+	 * @param formula The formula in the cell
+	 * @param f The function converted from it
+	 * @param references The cells referenced by the formula
+	 * @param types The type of each referenced cell
+	 * @param callees The function invoked for each referenced cell, null for cells that aren't formula cells
+	 * @param localVars The numbers of the function's local variables, in the order they were created
+	 */
+	void store(final CellReference c, final String formula, final Function f, final List<CellReference> references, final java.util.List<CellType> types,
+			   final java.util.List<Function> callees, final List<Integer> localVars)
+	{
+		final Map<String,String> renamed = new HashMap<>();
+		int rank = 0;
+		for (final Integer v : localVars)
+			renamed.put(FormulaConversion.localVarName(v), FormulaConversion.localVarName(rank++));
+		final Map<Function,Integer> calleeIndex = new IdentityHashMap<>();
+		for (int i = callees.size() - 1; i >= 0; i--)
+			if (callees.get(i) != null) calleeIndex.put(callees.get(i), i);
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (final DataOutputStream out = new DataOutputStream(bytes))
+		{
+			out.writeInt(references.length());
+			int i = 0;
+			for (final CellReference r : references)
+			{
+				out.writeInt(r.getRow());
+				out.writeInt(r.getCol());
+				out.writeUTF(types.get(i).name());
+				if (types.get(i) == FORMULA)
+				{
+					out.writeUTF(callees.get(i).name());
+					out.writeUTF(signatureOf(callees.get(i)));
+				}
+				i++;
+			}
+			out.writeInt(localVars.length());
+			FunctionCodec.write(f, out, n -> renamed.containsKey(n) ? renamed.get(n) : n, calleeIndex::get);
+		}
+		catch (IOException e) { throw new UncheckedIOException(e); } //can't happen when writing to a byte array
+		cache.put(ConversionCache.keyOf(VERSION, c.getSheetName(), f.name(), formula), bytes.toByteArray());
+	}
+
+	/**
+	 * @return The name, parameters and return type of the given function.
+	 */
+	static String signatureOf(final Function f)
+	{
+		final StringBuilder sb = new StringBuilder(f.name()).append('(');
+		for (final Param p : f.parameters())
+			sb.append(p.name()).append(':').append(p.type().name()).append(',');
+		return sb.append("):").append(f.returnType().name()).toString();
+	}
+}
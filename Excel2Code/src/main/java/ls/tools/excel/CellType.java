@@ -12,7 +12,12 @@ public enum CellType
 	FORMULA(Cell.CELL_TYPE_FORMULA), 
 	BLANK(Cell.CELL_TYPE_BLANK), 
 	BOOLEAN(Cell.CELL_TYPE_BOOLEAN), 
-	ERROR(Cell.CELL_TYPE_ERROR);
+	ERROR(Cell.CELL_TYPE_ERROR),
+	/**
+	 * Not the type of a single cell, but of a rectangular range of cells, passed as an array of the numbers in it, in row-major order.
+	 * Cells that don't hold a number (blank, text or boolean cells) aren't passed, as Excel's aggregate functions ignore them anyway.
+	 */
+	RANGE(-1);
 	
 	private final int code;
 
@@ -0,0 +1,165 @@
+package ls.tools.excel;
+
+import fj.data.List;
+import org.apache.poi.ss.formula.FormulaParsingWorkbook;
+import org.apache.poi.ss.formula.FormulaType;
+import org.apache.poi.ss.formula.ptg.*;
+import org.apache.poi.ss.util.CellReference;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static ls.tools.excel.CellType.FORMULA;
+import static org.apache.poi.ss.formula.FormulaParser.parse;
+
+/**
+ * Finds named formula cells that hold a formula copied down a column, and {@link FormulaGroup groups} them.
+ * <br/>
+ * Formulas are compared in their relative (R1C1) form - every reference is written as its distance from the formula cell, unless it's absolute.
+ * Two cells are converted to the same function, up to shifting its parameters, if their relative formulas are the same, the cells they reference have the same types,
+ * and the formula cells they reference are, recursively, the same as well. Each formula cell is therefore given a signature, which is the same for all such cells.
+ * <br/>
+ * A detector isn't thread safe.
+ */
+final class CopiedFormulas
+{
+	private static final int RESOLVE_NAMES_IN_CONTAINING_SHEET = -1;
+	private static final int NOT_A_FORMULA = -1;
+
+	private final FormulaWorkbook workbook;
+	private final FormulaParsingWorkbook fpwb;
+	/**
+	 * The signature of each formula cell already seen, keyed by its {@link FormulaConversion#cellKey(CellReference) address}.
+	 */
+	private final Map<String,Integer> signatureOfCell = new HashMap<>();
+	/**
+	 * A small number for every distinct relative formula, so the signatures of referenced formula cells are written as numbers, rather than repeated in full.
+	 */
+	private final Map<String,Integer> signatures = new HashMap<>();
+
+	CopiedFormulas(final FormulaWorkbook wb)
+	{
+		checkArgument(wb != null,"Workbook can't be null");
+		this.workbook = wb;
+		this.fpwb = wb.parsingWorkbook();
+	}
+
+	/**
+	 * Group the given names: names of formula cells in consecutive rows of the same column, with the same signature, are in the same group.
+	 * @return The groups, ordered by the first of their names among the given names. Every name is in a single group.
+	 */
+	List<FormulaGroup> group(final String... names)
+	{
+		checkArgument(names != null,"Names can't be null");
+		final java.util.List<Member> members = new ArrayList<>(names.length);
+		for (int i = 0; i < names.length; i++)
+		{
+			final CellReference c = workbook.cellNamed(names[i]);
+			members.add(new Member(i, names[i], c, workbook.typeOf(c) == FORMULA ? signatureOf(c) : NOT_A_FORMULA));
+		}
+		final java.util.List<Member> byCell = new ArrayList<>(members);
+		Collections.sort(byCell, Comparator.comparing((Member m) -> m.cell.getSheetName())
+											.thenComparingInt(m -> m.cell.getCol())
+											.thenComparingInt(m -> m.cell.getRow()));
+
+		final java.util.List<java.util.List<Member>> runs = new ArrayList<>();
+		Member previous = null;
+		for (final Member m : byCell)
+		{
+			if (previous != null && continues(previous, m)) runs.get(runs.size() - 1).add(m);
+			else runs.add(new ArrayList<>(Collections.singletonList(m)));
+			previous = m;
+		}
+		Collections.sort(runs, Comparator.comparingInt(run -> Collections.min(run, Comparator.comparingInt((Member m) -> m.index)).index));
+
+		final List.Buffer<FormulaGroup> ret = List.Buffer.empty();
+		for (final java.util.List<Member> run : runs)
+		{
+			final List.Buffer<String> runNames = List.Buffer.empty();
+			for (final Member m : run) runNames.snoc(m.name);
+			ret.snoc(new FormulaGroup(runNames.toList(), run.get(0).cell));
+		}
+		return ret.toList();
+	}
+
+	private static boolean continues(final Member previous, final Member m)
+	{
+		return m.signature != NOT_A_FORMULA && m.signature == previous.signature &&
+				m.cell.getSheetName().equals(previous.cell.getSheetName()) &&
+				m.cell.getCol() == previous.cell.getCol() && m.cell.getRow() == previous.cell.getRow() + 1;
+	}
+
+	private int signatureOf(final CellReference cell)
+	{
+		final String key = FormulaConversion.cellKey(cell);
+		Integer ret = signatureOfCell.get(key);
+		if (ret == null)
+		{
+			final String formula = relativeFormula(cell);
+			ret = signatures.get(formula);
+			if (ret == null)
+			{
+				ret = signatures.size();
+				signatures.put(formula, ret);
+			}
+			signatureOfCell.put(key, ret);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return The tokens of the formula in the given cell, with references written relative to the cell, and followed by the types of the referenced cells.
+	 */
+	private String relativeFormula(final CellReference cell)
+	{
+		final StringBuilder sb = new StringBuilder();
+		for (final Ptg token : parse(workbook.formulaAt(cell), fpwb, FormulaType.CELL, RESOLVE_NAMES_IN_CONTAINING_SHEET))
+		{
+			if (token instanceof RefPtg)
+			{
+				final RefPtg ref = (RefPtg)token;
+				final CellReference referenced = new CellReference(cell.getSheetName(), ref.getRow(), ref.getColumn(), false, false);
+				final CellType type = workbook.typeOf(referenced);
+				sb.append(r1c1(ref.getRow(), ref.isRowRelative(), ref.getColumn(), ref.isColRelative(), cell)).append(':').append(type);
+				if (type == FORMULA) sb.append('#').append(signatureOf(referenced));
+			}
+			else if (token instanceof AreaPtg)
+			{
+				final AreaPtg area = (AreaPtg)token;
+				sb.append(r1c1(area.getFirstRow(), area.isFirstRowRelative(), area.getFirstColumn(), area.isFirstColRelative(), cell)).append(':')
+				  .append(r1c1(area.getLastRow(), area.isLastRowRelative(), area.getLastColumn(), area.isLastColRelative(), cell));
+			}
+			else if (token instanceof ScalarConstantPtg) sb.append(token.toFormulaString());
+			else if (token instanceof AbstractFunctionPtg) sb.append(((AbstractFunctionPtg)token).getName()).append('/').append(((AbstractFunctionPtg)token).getNumberOfOperands());
+			else if (token instanceof AttrPtg && ((AttrPtg)token).isSum()) sb.append(BuiltInFunction.SUM.name());
+			else sb.append(token.getClass().getSimpleName());
+			sb.append(' ');
+		}
+		return sb.toString();
+	}
+
+	private static String r1c1(final int row, final boolean rowRelative, final int col, final boolean colRelative, final CellReference from)
+	{
+		return "R" + (rowRelative ? "[" + (row - from.getRow()) + "]" : row) + "C" + (colRelative ? "[" + (col - from.getCol()) + "]" : col);
+	}
+
+	private static final class Member
+	{
+		final int index;
+		final String name;
+		final CellReference cell;
+		final int signature;
+
+		Member(final int _index, final String _name, final CellReference _cell, final int _signature)
+		{
+			this.index = _index;
+			this.name = _name;
+			this.cell = _cell;
+			this.signature = _signature;
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package ls.tools.excel;
+
+import fj.data.List;
+import ls.tools.excel.eval.Interpreter;
+import ls.tools.excel.model.Function;
+import ls.tools.excel.model.Param;
+import org.apache.poi.ss.usermodel.Name;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static ls.tools.fj.Util.fj;
+import static org.junit.Assert.assertEquals;
+
+public final class CopiedFormulasTest
+{
+	private static final String[] NAMES = { "c1", "c2", "c3", "c4", "c5", "c6", "d1", "d2", "d3", "rate" };
+
+	private XSSFWorkbook wb;
+	private Sheet sheet;
+	private final FormulaConverter fc = new FormulaConverter();
+
+	/**
+	 * A1:A6 are inputs and B1 is a rate. C1:C5 is A1*$B$1 copied down, C6 isn't; D1:D2 is C1*C1 copied down, D3 isn't.
+	 */
+	@Before
+	public void prepareTest()
+	{
+		wb = new XSSFWorkbook();
+		sheet = wb.createSheet("Sheet1");
+		for (int r = 0; r < 6; r++)
+		{
+			final Row row = sheet.createRow(r);
+			row.createCell(0).setCellValue(r + 1);
+			namedFormula(row, 2, "c" + (r + 1), r < 5 ? "A" + (r + 1) + "*$B$1" : "A6*3");
+			if (r < 3) namedFormula(row, 3, "d" + (r + 1), r < 2 ? "C" + (r + 1) + "*C" + (r + 1) : "C3*A3");
+		}
+		sheet.getRow(0).createCell(1).setCellValue(2);
+		name("rate", "$B$1");
+	}
+
+	@Test
+	public void copiedFormulasAreGrouped()
+	{
+		assertEquals(Arrays.asList("[c1, c2, c3, c4, c5]", "[c6]", "[d1, d2]", "[d3]", "[rate]"), groupNames());
+	}
+
+	@Test
+	public void referencesOfAnotherTypeEndAGroup()
+	{
+		sheet.getRow(2).getCell(0).setCellValue("three");
+		assertEquals(Arrays.asList("[c1, c2]", "[c3]", "[c4, c5]", "[c6]", "[d1, d2]", "[d3]", "[rate]"), groupNames());
+	}
+
+	@Test
+	public void functionOfFirstRowComputesEveryRow()
+	{
+		final XSSFFormulaWorkbook fwb = new XSSFFormulaWorkbook(wb);
+		final Interpreter interpreter = new Interpreter();
+		for (final FormulaGroup g : fc.copiedFormulaGroups(fwb, "c1", "c2", "c3", "c4", "c5", "d1", "d2"))
+		{
+			final Function grouped = fc.formulasFromNamedCells(fwb, g.firstName()).last();
+			for (int row = 0; row < g.rowCount(); row++)
+			{
+				final Function own = fc.formulasFromNamedCells(fwb, g.nameAt(row)).last();
+				assertEquals(g.nameAt(row), interpreter.prepare(own).applyAsDouble(valuesOf(own.parameters(), g, 0, true)),
+							 interpreter.prepare(grouped).applyAsDouble(valuesOf(grouped.parameters(), g, row, false)), 1e-9);
+			}
+		}
+	}
+
+	/**
+	 * @param own Whether the parameters are of the function of the given row, rather than of the group's function, so they aren't shifted.
+	 */
+	private double[] valuesOf(final List<Param> params, final FormulaGroup g, final int row, final boolean own)
+	{
+		final double[] ret = new double[params.length()];
+		int i = 0;
+		for (final Param p : params)
+		{
+			final CellReference c = own ? new CellReference(p.name()) : g.cellFor(p.name(), row);
+			ret[i++] = sheet.getRow(c.getRow()).getCell(c.getCol()).getNumericCellValue();
+		}
+		return ret;
+	}
+
+	private java.util.List<String> groupNames()
+	{
+		final List<FormulaGroup> groups = fc.copiedFormulaGroups(new XSSFFormulaWorkbook(wb), NAMES);
+		return new ArrayList<>(groups.map(fj((FormulaGroup g) -> g.names().toCollection().toString())).toCollection());
+	}
+
+	private void namedFormula(final Row row, final int col, final String name, final String formula)
+	{
+		row.createCell(col).setCellFormula(formula);
+		name(name, "$" + (char)('A' + col) + "$" + (row.getRowNum() + 1));
+	}
+
+	private void name(final String name, final String cell)
+	{
+		final Name n = wb.createName();
+		n.setNameName(name);
+		n.setRefersToFormula("Sheet1!" + cell);
+	}
+}
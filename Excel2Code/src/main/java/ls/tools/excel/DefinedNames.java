@@ -0,0 +1,55 @@
+package ls.tools.excel;
+
+import org.apache.poi.ss.usermodel.Name;
+import org.apache.poi.ss.util.CellReference;
+
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Which defined names can be converted - only names referring to a single cell are.
+ * <br/>
+ * Names of ranges, constants, formulas and invalid references (<code>#REF!</code>) are ignored.
+ */
+public final class DefinedNames
+{
+	/**
+	 * An optional sheet name (quoted, or made of letters, digits, underscores and dots), followed by a single, possibly absolute, cell address.
+	 */
+	private static final Pattern SINGLE_CELL = Pattern.compile("((?:'(?:[^']|'')+'|[\\p{L}\\p{N}_.]+)!)?\\$?[A-Za-z]{1,3}\\$?[0-9]+");
+	private static final String SHEET_SEPARATOR = "!";
+
+	private DefinedNames() {}
+
+	/**
+	 * @param refersTo The formula a name refers to
+	 * @return TRUE iff the formula is a reference to a single cell.
+	 */
+	public static boolean refersToSingleCell(final String refersTo) { return refersTo != null && SINGLE_CELL.matcher(refersTo).matches(); }
+
+	public static boolean refersToSingleCell(final Name n)
+	{
+		checkArgument(n != null,"Name can't be null");
+		return !n.isDeleted() && !n.isFunctionName() && refersToSingleCell(n.getRefersToFormula());
+	}
+
+	/**
+	 * @param refersTo The formula a name refers to; must be a reference to a single cell.
+	 * @param localSheetName The sheet the name is local to, used when the reference isn't qualified with a sheet name.
+	 * @return The referenced cell, qualified with the name of its sheet.
+	 */
+	public static CellReference cellReferredBy(final String refersTo, final String localSheetName)
+	{
+		checkArgument(refersToSingleCell(refersTo),"Not a reference to a single cell: " + refersTo);
+		final CellReference cr = new CellReference(refersTo);
+		return new CellReference(cr.getSheetName() != null ? cr.getSheetName() : localSheetName, cr.getRow(), cr.getCol(), false, false);
+	}
+
+	public static CellReference cellReferredBy(final Name n)
+	{
+		checkArgument(refersToSingleCell(n),"Name doesn't refer to a single cell: " + (n == null ? null : n.getNameName()));
+		final String refersTo = n.getRefersToFormula();
+		return cellReferredBy(refersTo, refersTo.contains(SHEET_SEPARATOR) ? null : n.getSheetName());
+	}
+}
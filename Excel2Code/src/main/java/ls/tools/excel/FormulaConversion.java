@@ -0,0 +1,709 @@
+package ls.tools.excel;
+
+
+import fj.data.List;
+import fj.data.Option;
+import ls.tools.excel.model.*;
+import org.apache.poi.ss.formula.FormulaParsingWorkbook;
+import org.apache.poi.ss.formula.FormulaType;
+import org.apache.poi.ss.formula.ptg.*;
+import org.apache.poi.ss.util.CellReference;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Stack;
+
+import static com.google.common.base.Preconditions.*;
+import static fj.Equal.equal;
+import static fj.data.List.nil;
+import static ls.tools.excel.CellType.BOOLEAN;
+import static ls.tools.excel.CellType.FORMULA;
+import static ls.tools.excel.CellType.NUMERIC;
+import static ls.tools.excel.CellType.RANGE;
+import static ls.tools.excel.model.Functions.createFunction;
+import static ls.tools.excel.model.Functions.param;
+import static ls.tools.fj.Util.fj;
+import static ls.tools.fj.Util.notEmpty;
+import static org.apache.poi.ss.formula.FormulaParser.parse;
+
+/**
+ * A single conversion of named cells in a workbook to functions.
+ * <br/>
+ * A conversion holds the state of the conversion process, and is therefore not thread safe.
+ * It remembers the functions generated for each formula cell, so converting several names in the same conversion generates each function once.
+ * @see FormulaConverter
+ */
+final class FormulaConversion implements ExpressionBuilder
+{
+
+	private static final int RESOLVE_NAMES_IN_CONTAINING_SHEET = -1;
+	private static final String LOCAL_VAR_PREFIX = "_";
+	private final Stack<Expr> resultStack = new Stack<Expr>();
+	/**
+	 * The length of the {@link #bodySeq body} where each branch of an <code>IF</code> being converted starts, and where its last branch ends.
+	 * POI marks them with {@link AttrPtg attribute tokens} - after the test, and after each branch.
+	 */
+	private final Stack<Integer> branchBoundaries = new Stack<Integer>();
+	/**
+	 * All expressions created in this conversion are hash-consed, so equal expressions generated for different cells are shared.
+	 */
+	private final ExpressionInterner interner = new ExpressionInterner();
+	/**
+	 * The functions already generated in the current workbook conversion, keyed by the {@link #cellKey(CellReference) address} of the formula cell they were generated from.
+	 * Every formula cell is converted at most once; later references to it reuse the same function.
+	 */
+	private final Map<String,Function> convertedCells = new HashMap<>();
+	/**
+	 * The cell each generated function was converted from.
+	 */
+	private final Map<Function,CellReference> cellOfFunction = new IdentityHashMap<>();
+	/**
+	 * The numbers of the local variables created in the body of each generated function.
+	 */
+	private final Map<Function,List<Integer>> localVarsOfFunction = new IdentityHashMap<>();
+	/**
+	 * The cells referenced by the formula each generated function was converted from - both formula cells and value cells.
+	 */
+	private final Map<Function,List<CellReference>> referencesOfFunction = new IdentityHashMap<>();
+	private List<Param> unresolvedSymbols = nil();
+	private final FormulaWorkbook workbook;
+	/**
+	 * Where converted cells are looked up before converting them, and stored after converting them, if anywhere.
+	 */
+	private final Option<CellCache> cache;
+	private String sheetName;
+	private final FormulaParsingWorkbook fpwb;
+	private List<Function> generatedFunctions = nil();
+	private List<Expr> bodySeq = nil();
+	private List<Integer> localVars = nil();
+	private List<CellReference> references = nil();
+	private int localVarCount;
+
+	/**
+	 * Start a new conversion of the given workbook.
+	 * @param wb The workbook to convert. It shouldn't change while it's being converted.
+	 */
+	FormulaConversion(final FormulaWorkbook wb)
+	{
+		this(wb, Option.none());
+	}
+
+	/**
+	 * Start a new conversion of the given workbook, using the given cache, if any.
+	 */
+	FormulaConversion(final FormulaWorkbook wb, final Option<CellCache> _cache)
+	{
+		this(wb, new HashMap<>(), 0, _cache);
+	}
+
+	/**
+	 * Continue an earlier conversion of the given workbook: the given functions are used for their cells, instead of converting the cells again.
+	 * @param wb The workbook to convert. It shouldn't change while it's being converted.
+	 * @param converted Functions already converted, keyed by the {@link #cellKey(CellReference) address} of the cell they were converted from.
+	 * Functions invoked by these functions must be given as well.
+	 * @param firstLocalVar The number of the first local variable to create, so new variables don't repeat the names used by the given functions.
+	 */
+	FormulaConversion(final FormulaWorkbook wb, final Map<String,Function> converted, final int firstLocalVar)
+	{
+		this(wb, converted, firstLocalVar, Option.none());
+	}
+
+	private FormulaConversion(final FormulaWorkbook wb, final Map<String,Function> converted, final int firstLocalVar, final Option<CellCache> _cache)
+	{
+		checkArgument(wb != null,"Workbook can't be null");
+		checkArgument(converted != null,"Converted functions can't be null");
+		checkArgument(firstLocalVar >= 0,"First local variable number can't be negative");
+		workbook = wb;
+		fpwb = wb.parsingWorkbook();
+		convertedCells.putAll(converted);
+		localVarCount = firstLocalVar;
+		checkArgument(_cache != null,"Cache option can't be null");
+		cache = _cache;
+	}
+
+	/**
+	 * Given a named cell in a given sheet, create and retrieve the functions referenced by the named cell, and all functions it depends on.
+	 * @param _sheetName The name of the sheet containing the named cell
+	 * @param name The name of the named cell.
+	 * @return The list of functions parsed from the given named cell, and all functions it depends on, that weren't already generated in this conversion.
+	 */
+	List<Function> formulasFromNamedCell(final String _sheetName, final String name)
+	{
+		checkArgument(notEmpty(_sheetName),"Sheet name can't be empty");
+		checkArgument(name != null,"Named cell can't be null");
+		
+		final CellReference cr = workbook.cellNamed(name);
+		sheetName = _sheetName;
+		final CellReference c = cellInSheet(cr.getRow(), cr.getCol());
+		
+		return convertedCells.containsKey(cellKey(c)) ?
+				List.<Function>nil() : //already generated earlier in this conversion
+				convertCell(name, c);
+	}
+
+	/**
+	 * Create and retrieve the functions referenced by the named cell, and all functions it depends on.
+	 * @param name The name of the named cell.
+	 * @return The list of functions parsed from the given named cell, and all functions it depends on, that weren't already generated in this conversion.
+	 */
+	List<Function> functionsForName(final String name)
+	{
+		checkArgument(name != null,"Name of named cell can't be null");
+		return formulasFromNamedCell(workbook.cellNamed(name).getSheetName(), name);
+	}
+
+	/**
+	 * @param f A function generated by this conversion
+	 * @return The address of the cell the function was converted from.
+	 */
+	String cellOf(final Function f) { return cellKey(cellReferenceOf(f)); }
+
+	/**
+	 * @param f A function generated by this conversion
+	 * @return The cell the function was converted from, qualified by its sheet name.
+	 */
+	CellReference cellReferenceOf(final Function f) { return checkNotNull(cellOfFunction.get(f),"Function wasn't generated by this conversion: " + f.name()); }
+
+	/**
+	 * @param f A function generated by this conversion
+	 * @return The numbers of the {@link #localVarName(int) local variables} defined in the function's body.
+	 */
+	List<Integer> localVarsOf(final Function f) { return checkNotNull(localVarsOfFunction.get(f),"Function wasn't generated by this conversion: " + f.name()); }
+
+	/**
+	 * @param f A function generated by this conversion
+	 * @return The cells referenced by the formula the function was converted from, in the order they're referenced, qualified by their sheet name.
+	 */
+	List<CellReference> referencesOf(final Function f) { return checkNotNull(referencesOfFunction.get(f),"Function wasn't generated by this conversion: " + f.name()); }
+
+	/**
+	 * @return The number of the next local variable this conversion will create.
+	 */
+	int nextLocalVar() { return localVarCount; }
+
+	@Override public <T extends Expr> T canonical(final T e) { return interner.intern(e); }
+
+	/**
+	 * @return The name of the local variable with the given number.
+	 */
+	static String localVarName(final int number) { return LOCAL_VAR_PREFIX + number; }
+
+	/**
+	 * @return Whether the given variable name is the name of a local variable (rather than of a cell).
+	 */
+	static boolean isLocalVarName(final String name) { return name.startsWith(LOCAL_VAR_PREFIX); }
+
+	/**
+	 * @return The number of the local variable with the given name.
+	 */
+	static int localVarNumber(final String name) { return Integer.parseInt(name.substring(LOCAL_VAR_PREFIX.length())); }
+
+	/**
+	 * Convert the formula in the given cell to a function, and remember it as the function generated for this cell.
+	 * @param name The name of the function to create
+	 * @param c The formula cell to convert
+	 * @return The newly created function, preceded by any function recursively created for it.
+	 */
+	private List<Function> convertCell(final String name, final CellReference c)
+	{
+		final String formula = workbook.formulaAt(c);
+		final List<Function> ret = cache.isSome() ?
+										convertCellUsing(cache.some(), name, c, formula) :
+										convertFormulaToFunction(name, formula);
+		convertedCells.put(cellKey(c), ret.last());
+		cellOfFunction.put(ret.last(), c);
+		return ret;
+	}
+
+	/**
+	 * Read the function for the given cell from the cache, if it's there and still valid. Otherwise, convert it and store it in the cache.
+	 * <br/>
+	 * A cached function is valid if the cells referenced by the formula have the same types they had when it was cached,
+	 * and the functions invoked for the referenced formula cells have the same signatures. The invoked functions are converted (or read) first.
+	 * A cached function gets new local variables, numbered from the next available number.
+	 * @return The function for the cell, preceded by any function created for it.
+	 */
+	private List<Function> convertCellUsing(final CellCache cc, final String name, final CellReference c, final String formula)
+	{
+		List<Function> generated = nil();
+		final Option<CellCache.Entry> entry = cc.lookup(c.getSheetName(), name, formula);
+		if (entry.isSome())
+		{
+			final java.util.List<Function> callees = new ArrayList<>();
+			List<CellReference> refs = nil();
+			boolean valid = true;
+			for (final CellCache.Reference r : entry.some().references)
+			{
+				final CellReference rc = cellInSheet(r.row, r.col);
+				if (workbook.typeOf(rc) != r.type) { valid = false; break; }
+				Function callee = null;
+				if (r.type == FORMULA)
+				{
+					callee = convertedCells.get(cellKey(rc));
+					if (callee == null)
+					{
+						final List<Function> f = convertCell(workbook.nameOf(rc).orSome(r.calleeName), rc);
+						generated = generated.append(f);
+						callee = f.last();
+					}
+					if (!CellCache.signatureOf(callee).equals(r.calleeSignature)) { valid = false; break; }
+				}
+				callees.add(callee);
+				refs = refs.cons(rc);
+			}
+			if (valid)
+			{
+				final int firstLocalVar = localVarCount;
+				final Function ret = cc.functionOf(entry.some(), this, firstLocalVar, callees::get);
+				List<Integer> vars = nil();
+				for (int i = entry.some().localVarCount - 1; i >= 0; i--)
+					vars = vars.cons(firstLocalVar + i);
+				localVarCount += entry.some().localVarCount;
+				localVarsOfFunction.put(ret, vars);
+				referencesOfFunction.put(ret, refs.reverse());
+				return generated.snoc(ret);
+			}
+		}
+
+		final List<Function> converted = convertFormulaToFunction(name, formula);
+		final Function ret = converted.last();
+		final java.util.List<CellType> types = new ArrayList<>();
+		final java.util.List<Function> callees = new ArrayList<>();
+		for (final CellReference r : referencesOf(ret))
+		{
+			types.add(workbook.typeOf(r));
+			callees.add(convertedCells.get(cellKey(r))); //null for cells that aren't formula cells
+		}
+		cc.store(c, formula, ret, referencesOf(ret), types, callees, localVarsOf(ret));
+		return generated.append(converted);
+	}
+
+	static String cellKey(final CellReference c)
+	{
+		return NameIndex.cellKey(c.getSheetName(), c.getRow(), c.getCol());
+	}
+
+
+	/**
+	 * Convert the given formula to a function.
+	 * <br/>
+	 * This may be invoked while another formula is being converted (a formula referencing another formula cell),
+	 * so the state of the enclosing conversion is put aside, and restored when done.
+	 */
+	private List<Function> convertFormulaToFunction(final String name, final String formula)
+	{
+		checkState(fpwb != null,"Formula parsing workbook must be resolve for parsing a formula");
+		
+		final Ptg[] tokens = parse(formula, fpwb, FormulaType.CELL, RESOLVE_NAMES_IN_CONTAINING_SHEET);
+		final List<Expr> enclosingBody = bodySeq;
+		final List<Function> enclosingGeneratedFunctions = generatedFunctions;
+		final List<Param> enclosingUnresolvedSymbols = unresolvedSymbols;
+		final List<Integer> enclosingLocalVars = localVars;
+		final List<CellReference> enclosingReferences = references;
+		final int enclosingStackSize = resultStack.size();
+		final int enclosingBoundaries = branchBoundaries.size();
+		clearState();
+		generateExpressionsForTokens(tokens);
+		final List<Function> ret = createFunctionsFor(name);
+		bodySeq = enclosingBody;
+		generatedFunctions = enclosingGeneratedFunctions;
+		unresolvedSymbols = enclosingUnresolvedSymbols;
+		localVars = enclosingLocalVars;
+		references = enclosingReferences;
+		resultStack.setSize(enclosingStackSize);
+		branchBoundaries.setSize(enclosingBoundaries);
+		return ret;
+	}
+
+
+	/**
+	 * Clear the {@link #bodySeq body}, the {@link #generatedFunctions generated functions} list, the {@link #unresolvedSymbols unresolved symbols}
+	 * the {@link #localVars local variables} and the {@link #references referenced cells} of the current function.
+	 */
+	private void clearState()
+	{
+		clearBodySeq();
+		clearGeneratedFunctions();
+		clearUnresolvedSymbols();
+		clearLocalVars();
+		clearReferences();
+	}
+
+
+	/**
+	 * Create and return the function out of the current state of {@link #bodySeq}.
+	 * It also appends all the {@link #generatedFunctions}, that were recursively generated during the transformation of this function.
+	 * <br/>
+	 * The last function created is the last in the list (the one with the given name).
+	 * @param name The name of the function to create.
+	 * @return The newly create function, with any recursively created functions.
+	 */
+	private List<Function> createFunctionsFor(final String name)
+	{
+		final Expr body = sequence(bodySeq);
+		final Function ret = createFunction(name,paramList(),body,body.type());
+		localVarsOfFunction.put(ret, localVars.reverse());
+		referencesOfFunction.put(ret, references.reverse());
+		return generatedFunctions.snoc(ret);
+	}
+
+	
+
+
+	/**
+	 * Given a list of tokens, in reverse polish notation, go over all of them, and create necessary expressions for all of them.
+	 * This will update the {@link #bodySeq body} expression sequence, and possibly the {@link #generatedFunctions} list, if any other functions are created.
+	 * <p>
+	 * This is basically the "heart" of the conversion process. All tokens are converted to expressions, pushed to a {@link #resultStack stack}, and popped when necessary.
+	 * all the stack handling (should) take(s) place in this function alone.
+	 * </p>
+	 * @param tokens The formula tokens to convert from.
+	 */
+	private void generateExpressionsForTokens(final Ptg[] tokens)
+	{
+		//tokens are in RPN.
+		for (Ptg token : tokens)
+		{
+			if (isLiteral(token))
+			{
+				final Binding b = createBindingToLiteral(token);
+				addToBody(b);
+				resultStack.push(b.var());
+			}
+			else if (isBinaryOp(token))
+			{
+				if (resultStack.size() < 2) throw new IllegalStateException("Binary operator must have at least two operands.");
+				final Expr op2 = resultStack.pop();
+				final Expr op1 = resultStack.pop();
+				final Binding b = createBindingTo(binOp(evaluationOf(op1), op(token), evaluationOf(op2)));
+				resultStack.push(addToBody(b));
+			}
+			else if (isFuncCall(token))
+			{
+				references = references.cons(cell((RefPtg)token));
+				final Binding b = createBindingToFunctionResult((RefPtg) token);
+				resultStack.push(evaluationOf(addToBody(b)));
+			}
+			else if (isBranchBoundary(token))
+				branchBoundaries.push(bodySeq.length());
+			else if (isBuiltInFunction(token))
+			{
+				final BuiltInFunction builtIn = builtInFunction(builtInFunctionName(token));
+				checkArgument(operandCount(token) == builtIn.parameters().length(),
+								builtIn.name() + " is only supported with " + builtIn.parameters().length() + " arguments");
+                final List<Expr> args = builtIn.parameters()
+                                            .map(fj(p -> evaluationOf(resultStack.pop())))
+                                            .reverse();
+				checkArgument(!builtIn.isAggregate() || args.head().type() == RANGE,builtIn.name() + " is only supported over a range of cells");
+				final Expr e = builtIn == BuiltInFunction.IF ? branchOf(args) : invocationOf(builtIn).withArgs(args.toArray().array(Expr[].class));
+				final Binding b = createBindingTo(e);
+				resultStack.push(addToBody(b));
+			}
+			else if (isArea(token))
+			{
+				final List<CellReference> cells = cellsIn((AreaPtg)token);
+				for (final CellReference c : cells)
+					references = references.cons(c);
+				if (cells.exists(fj(c -> workbook.typeOf(c) == FORMULA)))
+					resultStack.push(addToBody(createBindingTo(arrayOf(cells))));
+				else
+				{
+					final String rangeName = rangeNameOf((AreaPtg)token);
+					unresolvedSymbols = unresolvedSymbols.cons(param(rangeName, RANGE));
+					resultStack.push(var(rangeName).ofType(RANGE));
+				}
+			}
+			else if (isCellReference(token))
+			{
+				references = references.cons(cell((RefPtg)token));
+				unresolvedSymbols = unresolvedSymbols.cons(param(token.toFormulaString(),typeOfCellReferencedBy((RefPtg)token)));
+				resultStack.push(var(token.toFormulaString()).ofType(typeOfCellReferencedBy((RefPtg)token)));
+			}
+		}
+		
+	}
+
+	private static boolean isBranchBoundary(final Ptg token)
+	{
+		return token instanceof AttrPtg && (((AttrPtg)token).isOptimizedIf() || ((AttrPtg)token).isSkip());
+	}
+
+	/**
+	 * An <code>IF</code> is converted to a {@link BranchExpr branch}, so only the branch taken is evaluated.
+	 * The bindings created for each branch's sub formula are moved from the body into the branch.
+	 * @param args The test, and the values of both branches
+	 */
+	private Expr branchOf(final List<Expr> args)
+	{
+		checkState(branchBoundaries.size() >= 3,"IF without the boundaries of its branches");
+		final int elseEnd = branchBoundaries.pop();
+		final int elseStart = branchBoundaries.pop();
+		final int thenStart = branchBoundaries.pop();
+		checkState(elseEnd == bodySeq.length(),"IF doesn't follow its branches");
+		checkArgument(args.head().type() == BOOLEAN || args.head().type() == FORMULA,"IF is only supported with a boolean test");
+		final List.Buffer<Expr> body = List.Buffer.empty();
+		final List.Buffer<Expr> whenTrue = List.Buffer.empty();
+		final List.Buffer<Expr> whenFalse = List.Buffer.empty();
+		int i = 0;
+		for (final Expr e : bodySeq)
+		{
+			if (i < thenStart) body.snoc(e);
+			else if (i < elseStart) whenTrue.snoc(e);
+			else whenFalse.snoc(e);
+			i++;
+		}
+		bodySeq = body.toList();
+		return test(args.index(0)).ifTrue(branch(whenTrue.toList(), args.index(1))).ifFalse(branch(whenFalse.toList(), args.index(2)));
+	}
+
+	/**
+	 * @return The given bindings, followed by the value of the branch if it isn't the last one bound, or just the value if there are no bindings.
+	 */
+	private Expr branch(final List<Expr> bindings, final Expr value)
+	{
+		if (bindings.isEmpty()) return value;
+		return value.equals(evaluationOf(bindings.last())) ? sequence(bindings) : sequence(bindings.snoc(value));
+	}
+
+	private Expr evaluationOf(final Expr e)
+	{
+		if (e instanceof Binding) //TODO: this distinction should be part of the expression interface - encapsulation
+			return ((Binding)e).var();
+		else 
+			return e;
+	}
+	
+
+	private BuiltInFunction builtInFunction(final String funcName)
+	{
+		checkArgument(funcName != null, "Built in function name can't be null when searching for its metadata");
+		final BuiltInFunction f = BuiltInFunction.valueOf(funcName);
+		return checkNotNull(f, "Couldn't find built in function with name = " + funcName);
+	}
+
+
+	/**
+	 * A <code>SUM</code> of a single argument is parsed to a special {@link AttrPtg attribute token}, rather than a function token.
+	 */
+	private boolean isBuiltInFunction(final Ptg token)
+	{
+		checkArgument(token != null,"Can't answer for a null token - is null a built in function?");
+		return token instanceof AbstractFunctionPtg || isSingleArgumentSum(token);
+	}
+
+	private static boolean isSingleArgumentSum(final Ptg token) { return token instanceof AttrPtg && ((AttrPtg)token).isSum(); }
+
+	private static String builtInFunctionName(final Ptg token)
+	{
+		return isSingleArgumentSum(token) ? BuiltInFunction.SUM.name() : ((AbstractFunctionPtg)token).getName();
+	}
+
+	private static int operandCount(final Ptg token)
+	{
+		return isSingleArgumentSum(token) ? 1 : ((AbstractFunctionPtg)token).getNumberOfOperands();
+	}
+
+	private static boolean isArea(final Ptg token) { return token instanceof AreaPtg; }
+
+	/**
+	 * @return The name of the parameter for the given range, e.g. <code>A1_A10</code> for <code>A1:A10</code>.
+	 * Absolute references keep their <code>$</code>, as the names of single cell parameters do, so <code>$A$1:A10</code> and <code>A1:A10</code> are different parameters.
+	 */
+	private static String rangeNameOf(final AreaPtg area)
+	{
+		return area.toFormulaString().replace(':', '_');
+	}
+
+	/**
+	 * @return The cells in the given range, in the sheet currently converted, row by row.
+	 */
+	private List<CellReference> cellsIn(final AreaPtg area)
+	{
+		final List.Buffer<CellReference> ret = List.Buffer.empty();
+		for (int row = area.getFirstRow(); row <= area.getLastRow(); row++)
+			for (int col = area.getFirstColumn(); col <= area.getLastColumn(); col++)
+				ret.snoc(cellInSheet(row, col));
+		return ret.toList();
+	}
+
+	/**
+	 * A range holding formula cells can't be a parameter, as the values of its formula cells are computed by the function.
+	 * Instead, it's the {@link BuiltInFunction#ARRAY array} of the values of its cells, row by row:
+	 * each formula cell is converted and invoked, as a single reference to it is, and each number cell becomes a parameter named after the cell.
+	 * Other cells hold no number, so they're left out, as they are from a range parameter; formula cells whose value isn't a number are left out when evaluated.
+	 * @param cells The cells of the range, in the sheet currently converted
+	 * @return The invocation creating the array.
+	 */
+	private Expr arrayOf(final List<CellReference> cells)
+	{
+		final List.Buffer<Expr> values = List.Buffer.empty();
+		for (final CellReference c : cells)
+		{
+			final String name = new CellReference(c.getRow(), c.getCol()).formatAsString();
+			final CellType type = workbook.typeOf(c);
+			if (type == FORMULA) values.snoc(evaluationOf(addToBody(createBindingToFunctionResult(c, name))));
+			else if (type == NUMERIC)
+			{
+				unresolvedSymbols = unresolvedSymbols.cons(param(name, NUMERIC));
+				values.snoc(var(name, NUMERIC));
+			}
+		}
+		return invocationOf(BuiltInFunction.ARRAY).withArgs(values.toList());
+	}
+
+	private Binding createBindingToLiteral(Ptg token)
+	{
+		checkArgument(token instanceof ScalarConstantPtg,"Illegal token for literal - should be a scalar");
+		final CellType type = CellType.literalTypeFrom((ScalarConstantPtg)token);
+		return createBindingTo(literal(token.toFormulaString()).ofType(type));
+	}
+
+	private Binding createBindingTo(final Expr e)
+	{
+		return bindingOf(var(newLocalVarName()).ofType(e.type())).to(e);
+	}
+	
+	private boolean isCellReference(Ptg token)
+	{
+		return token instanceof RefPtg && !typeOfCellReferencedBy((RefPtg)token).equals(FORMULA);
+	}
+
+	private BinaryOp op(final Ptg token) //TODO: should unify this definition with that of #isBinaryOp
+	{ 
+		if (token instanceof MultiplyPtg) return BinaryOp.MULT;
+		else if (token instanceof EqualPtg) return BinaryOp.EQL;
+		else throw new IllegalArgumentException("Can't resolve operator for token: " + token.toFormulaString());
+	}
+
+	private boolean isFuncCall(Ptg token)
+	{
+		return token instanceof RefPtg && typeOfCellReferencedBy((RefPtg)token).equals(FORMULA);
+	}
+
+	private boolean isBinaryOp(final Ptg token) 
+	{ 
+		return (token instanceof MultiplyPtg) || (token instanceof EqualPtg); 
+	}
+
+	private boolean isLiteral(final Ptg token) 
+	{ 
+		return (token instanceof IntPtg) || (token instanceof BoolPtg); 
+	}
+
+
+	private void clearBodySeq() { bodySeq = nil(); }
+	private void clearGeneratedFunctions() { generatedFunctions = nil(); }
+	private void clearUnresolvedSymbols() { unresolvedSymbols = nil(); }
+	private void clearLocalVars() { localVars = nil(); }
+	private void clearReferences() { references = nil(); }
+	
+	private String newLocalVarName()
+	{
+		localVars = localVars.cons(localVarCount);
+		return localVarName(localVarCount++);
+	}
+
+
+	/**
+	 * @return The reference to the cell referenced by the given token, in the sheet currently converted.
+	 */
+	private CellReference cell(final RefPtg ref)
+	{
+		return cellInSheet(ref.getRow(), ref.getColumn());
+	}
+
+	private CellReference cellInSheet(final int row, final int col)
+	{
+		checkState(sheetName != null,"Sheet cannot be null");
+		return new CellReference(sheetName, row, col, false, false);
+	}
+	
+	private List<Param> paramList()
+	{
+		//Remove duplicates
+		return unresolvedSymbols.nub(equal(fj((Param p1) -> fj(((Param p2) -> p1.name().equals(p2.name()))))));
+	}
+
+	/**
+	 * Given the token that points to a formula cell, generate:
+	 * <ol>
+	 * <li>The formula in that cell (and recursively any others)</li>
+	 * <li>The call to that formula</li>
+	 * <li>A binding of a new variable to the result of the function invocation</li>
+	 * </ol> 
+	 * It returns the newly created binding of a new variable, bound to the result of the generated function call.
+	 * This also updated {@link #generatedFunctions} and {@link #bodySeq}, with the new functions and statements.
+	 * <br/>
+	 * If the formula cell was already converted in this workbook conversion, the existing function is invoked, and nothing new is generated.
+	 * In any case, the parameters of the invoked function become parameters of the current function as well.
+	 * @param token The token referencing a formula cell.
+	 * @return The newly created binding expression, with the new variable bound to the result of the function call, from the newly generated function.
+	 */
+	private Binding createBindingToFunctionResult(final RefPtg token)
+	{
+		return createBindingToFunctionResult(cell(token), token.toFormulaString());
+	}
+
+	/**
+	 * @param c The formula cell
+	 * @param cellName The name of the cell in the formula referencing it, used for the new variable, and for the generated function if the cell has no name.
+	 * @see #createBindingToFunctionResult(RefPtg)
+	 */
+	private Binding createBindingToFunctionResult(final CellReference c, final String cellName)
+	{
+		final Function funcToInvoke = convertedCells.containsKey(cellKey(c)) ?
+											convertedCells.get(cellKey(c)) :
+											convertReferencedCell(cellName, c);
+		//the arguments passed to the invocation must be defined in the current function as well.
+		unresolvedSymbols = funcToInvoke.parameters().append(unresolvedSymbols);
+		//generate the invocation code
+        //map all parameters to an argument to pass to the invocation. We assume they're defined, probably as arguments.
+        final List<VarExpr> args = funcToInvoke.parameters().map(fj(p -> var(p.name(),p.type())));
+		final VarExpr newVar = var(cellName, funcToInvoke.returnType());
+		return bindingOf(newVar).to(invocationOf(funcToInvoke).withArgs(args.toArray().array(VarExpr[].class)));
+	}
+
+	private Function convertReferencedCell(final String cellName, final CellReference c)
+	{
+		final Option<String> n = workbook.nameOf(c);
+		final String name = n.isSome() ? n.some() : cellName;
+		final List<Function> f = convertCell(name, c);
+		rememberFunctions(f);
+		//Assumption: the last function is the one we need to work with.
+		return f.last();
+	}
+
+
+	/**
+	 * Add the given expression to the body of the current function being created.
+	 * @param expr The expression to add
+	 * @return The expression given at input
+	 */
+	//TODO: code smell?
+	private Expr addToBody(final Expr expr)
+	{
+		checkArgument(expr != null,"expression can't be null in function body");
+		bodySeq  = bodySeq.snoc(expr);
+		return expr;
+	}
+
+
+	private VarExpr var(final String varName, final CellType varType)
+	{
+		return var(varName).ofType(varType);
+	}
+
+	private void rememberFunctions(final List<Function> f)
+	{
+		generatedFunctions = generatedFunctions .append(f);
+	}
+	
+	private CellType typeOfCellReferencedBy(final RefPtg ref)
+	{
+		return workbook.typeOf(cell(ref));
+	}
+
+
+}
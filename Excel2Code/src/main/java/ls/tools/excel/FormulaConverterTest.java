@@ -2,8 +2,12 @@ package ls.tools.excel;
 
 
 import fj.data.List;
+import ls.tools.excel.eval.FunctionCompiler;
+import ls.tools.excel.eval.Interpreter;
 import ls.tools.excel.model.*;
 import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.ss.usermodel.Name;
+import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.WorkbookFactory;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.junit.Before;
@@ -11,16 +15,17 @@ import org.junit.Test;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.BiPredicate;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static fj.data.List.list;
-import static ls.tools.excel.BuiltInFunction.IF;
 import static ls.tools.excel.CellType.*;
 import static ls.tools.excel.model.BinaryOp.MULT;
 import static ls.tools.excel.model.Functions.createFunction;
 import static ls.tools.excel.model.Functions.param;
 import static ls.tools.fj.Util.*;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 public final class FormulaConverterTest implements ExpressionBuilder
@@ -125,17 +130,28 @@ public final class FormulaConverterTest implements ExpressionBuilder
 	public void builtInFunctionOverAnotherFormula()
 	{
 		final List<Function> result = fc.formulasFromNamedCell(workbook(), SHEET1, CUBE_SQRT);
+		assertTrue(listsEql(result, cubeSqrtExpectedFunctions(), funcEqPredicate));
+	}
+
+	private List<Function> cubeSqrtExpectedFunctions()
+	{
 		final VarExpr b3 = var(B3).ofType(NUMERIC);
 		final VarExpr e3 = var(E3).ofType(NUMERIC);
-		List<Function> expected = cubeExpectedFunctions();
+		final List<Function> expected = cubeExpectedFunctions();
 		final Function cubeFunc = expected.last();
 		final Function lastFunc = createFunction(CUBE_SQRT, list(param(B3,NUMERIC)),
 												sequence(
 														bindingOf(e3).to(invocationOf(cubeFunc).withArgs(b3)),
 														bindingOf(numericVar("_2")).to(invocationOf(BuiltInFunction.SQRT).withArgs(e3)))
 												, NUMERIC);
-		expected = expected.snoc(lastFunc);
-		assertTrue(listsEql(result, expected, funcEqPredicate));
+		return expected.snoc(lastFunc);
+	}
+
+	@Test
+	public void formulaCellReferencedBySeveralNamesIsConvertedOnce()
+	{
+		final List<Function> result = fc.formulasFromNamedCells(workbook(), CUBE, CUBE_SQRT, SQUARE);
+		assertTrue(listsEql(result, cubeSqrtExpectedFunctions(), funcEqPredicate, true));
 	}
 	
 	@Test
@@ -149,6 +165,28 @@ public final class FormulaConverterTest implements ExpressionBuilder
 		assertTrue(listsEql(result, expected, funcEqPredicate,true));
 	}
 	
+	@Test
+	public void parallelConversionGeneratesTheSameFunctions()
+	{
+		final ForkJoinPool pool = new ForkJoinPool(4);
+		try
+		{
+			for (final String[] names : new String[][] { { CUBE_SQRT, MULT_FUNC_NAME, SQUARE, TIMES2, CUBE },
+														 { SQUARE, CUBE, MULT_FUNC_NAME, CUBE_SQRT, TIMES2 },
+														 { TIMES2, CUBE, CUBE_SQRT, SQUARE } })
+			{
+				final XSSFFormulaWorkbook wb = new XSSFFormulaWorkbook(workbook());
+				final List<Function> expected = fc.formulasFromNamedCells(wb, names);
+				final List<Function> result = fc.formulasFromNamedCellsInParallel(wb, pool, names);
+				assertTrue("Parallel conversion differs for " + String.join(",", names), listsEql(result, expected, funcEqPredicate));
+			}
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
 	@Test
 	public void convertWithoutSheetName()
 	{
@@ -167,9 +205,8 @@ public final class FormulaConverterTest implements ExpressionBuilder
 //			_1 : NUMERIC = MOD(B3 : NUMERIC,_0 : NUMERIC);
 //			_2 : NUMERIC = 0;
 //			_3 : BOOLEAN = (_1 : NUMERIC) = (_2 : NUMERIC);
-//			_4 : BOOLEAN = TRUE;
-//			_5 : BOOLEAN = FALSE;
-//			_6 : FORMULA = IF(_3 : BOOLEAN,_4 : BOOLEAN,_5 : BOOLEAN);
+//			_6 : BOOLEAN = if (_3 : BOOLEAN) { _4 : BOOLEAN = TRUE } else { _5 : BOOLEAN = FALSE };
+//		each branch holds the bindings of its own sub formula, so only the branch taken is evaluated
 		
 		//Let's build it explicitly:
 		final VarExpr _B3 = var(B3).ofType(NUMERIC); //The parameter to the function
@@ -179,14 +216,54 @@ public final class FormulaConverterTest implements ExpressionBuilder
 		final Binding _3 = bindingOf(booleanVar("_3")).to(binOp(_1.var(), BinaryOp.EQL, _2.var()));
 		final Binding _4 = bindingOf(booleanVar("_4")).to(booleanLiteral(true));
 		final Binding _5 = bindingOf(booleanVar("_5")).to(booleanLiteral(false));
-		final Binding _6 = bindingOf(var("_6").ofType(FORMULA)).to(invocationOf(IF).withArgs(_3.var(),_4.var(),_5.var()));
+		final Binding _6 = bindingOf(booleanVar("_6")).to(test(_3.var()).ifTrue(sequence(_4)).ifFalse(sequence(_5)));
 		
 		final List<Function> expected = list(createFunction("isEven",list(param(B3, NUMERIC)),
-												sequence(_0,_1,_2,_3,_4,_5,_6),
-												FORMULA));
+												sequence(_0,_1,_2,_3,_6),
+												BOOLEAN));
 		assertTrue(listsEql(result, expected, funcEqPredicate));
 	}
 
+	@Test
+	public void ifEvaluatesOnlyTheBranchTaken()
+	{
+		//B1 = IF(A1=0,1,MOD(2,A1)) - the MOD of the branch not taken divides by zero
+		final XSSFWorkbook wb = new XSSFWorkbook();
+		final Row row = wb.createSheet(SHEET1).createRow(0);
+		row.createCell(0).setCellValue(0);
+		row.createCell(1).setCellFormula("IF(A1=0,1,MOD(2,A1))");
+		final Name n = wb.createName();
+		n.setNameName("safeMod");
+		n.setRefersToFormula(SHEET1 + "!$B$1");
+
+		final Function f = fc.formulasFromNamedCells(wb, "safeMod").last();
+		assertEquals(NUMERIC, f.returnType());
+		assertEquals(1, new Interpreter().prepare(f).applyAsDouble(0), 1e-9);
+		assertEquals(1, (Double)new FunctionCompiler().compile(f).apply(0.0), 1e-9);
+		assertEquals(2, new Interpreter().prepare(f).applyAsDouble(3), 1e-9);
+	}
+
+	@Test
+	public void ifTestingAFormulaCellOfUnknownType()
+	{
+		//B1 = IF(C1,1,2), where C1 = IF(A1=0,A1=0,3) is a boolean or a number, so its type is only known when evaluated
+		final XSSFWorkbook wb = new XSSFWorkbook();
+		final Row row = wb.createSheet(SHEET1).createRow(0);
+		row.createCell(0).setCellValue(0);
+		row.createCell(1).setCellFormula("IF(C1,1,2)");
+		row.createCell(2).setCellFormula("IF(A1=0,A1=0,3)");
+		final Name n = wb.createName();
+		n.setNameName("testsFormula");
+		n.setRefersToFormula(SHEET1 + "!$B$1");
+
+		final List<Function> functions = fc.formulasFromNamedCells(wb, "testsFormula");
+		assertEquals(FORMULA, functions.head().returnType());
+		final Function f = functions.last();
+		assertEquals(NUMERIC, f.returnType());
+		assertEquals(1, new Interpreter().prepare(f).applyAsDouble(0), 1e-9);
+		assertEquals(1, (Double)new FunctionCompiler().compile(f).apply(0.0), 1e-9);
+	}
+
 	private VarExpr booleanVar(final String varName)
 	{
 		checkArgument(notEmpty(varName), "Can't have an empty variable name");
@@ -0,0 +1,78 @@
+package ls.tools.excel;
+
+import fj.data.List;
+import org.apache.poi.ss.util.CellReference;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Named formula cells in consecutive rows of a column, holding the same formula, copied down: every cell's formula is the first cell's formula,
+ * with its relative references shifted down by the cell's distance from the first cell.
+ * <br/>
+ * A group is converted once, from its first cell. The function converted for the first cell computes any other cell of the group
+ * when given the values of the cells its parameters refer to, shifted down the same way - except for absolute references (e.g. <code>$B$1</code>), which aren't shifted.
+ * A named cell that isn't part of a copied formula is a group of its own.
+ * @see FormulaConverter#copiedFormulaGroups(FormulaWorkbook, String...)
+ */
+public final class FormulaGroup
+{
+	private final List<String> names;
+	private final CellReference firstCell;
+
+	FormulaGroup(final List<String> _names, final CellReference _firstCell)
+	{
+		checkArgument(_names != null && _names.isNotEmpty(),"A group must have names");
+		checkArgument(_firstCell != null,"First cell can't be null");
+		this.names = _names;
+		this.firstCell = _firstCell;
+	}
+
+	/**
+	 * @return The names of the cells of the group, from the first row to the last.
+	 */
+	public List<String> names() { return names; }
+
+	/**
+	 * @return The name of the first cell of the group - the name of the function converted for the group.
+	 */
+	public String firstName() { return names.head(); }
+
+	/**
+	 * @return The first cell of the group, qualified by its sheet name.
+	 */
+	public CellReference firstCell() { return firstCell; }
+
+	public int rowCount() { return names.length(); }
+
+	/**
+	 * @param row The row in the group, 0 for the first row
+	 * @return The name of the cell in the given row.
+	 */
+	public String nameAt(final int row)
+	{
+		checkArgument(row >= 0 && row < rowCount(),"Row " + row + " isn't in the group " + this);
+		return names.index(row);
+	}
+
+	/**
+	 * @param cellParameter The name of a parameter of the group's function, that refers to a single cell (e.g. <code>B2</code> or <code>$B$1</code>)
+	 * @param row The row in the group, 0 for the first row
+	 * @return The cell whose value the parameter takes, for the given row of the group.
+	 */
+	public CellReference cellFor(final String cellParameter, final int row)
+	{
+		checkArgument(row >= 0 && row < rowCount(),"Row " + row + " isn't in the group " + this);
+		final CellReference p = new CellReference(cellParameter);
+		return new CellReference(firstCell.getSheetName(), p.getRow() + (p.isRowAbsolute() ? 0 : row), p.getCol(), false, false);
+	}
+
+	/**
+	 * @return The group's cells, e.g. <code>Sheet1!B2:B50001</code>, and the names of its first and last cells.
+	 */
+	@Override public String toString()
+	{
+		final CellReference lastCell = new CellReference(firstCell.getSheetName(), firstCell.getRow() + rowCount() - 1, firstCell.getCol(), false, false);
+		return firstCell.formatAsString() + (rowCount() > 1 ? ":" + lastCell.getCellRefParts()[2] + lastCell.getCellRefParts()[1] : "") +
+				" (" + firstName() + (rowCount() > 1 ? ".." + names.last() : "") + ")";
+	}
+}
@@ -0,0 +1,53 @@
+package ls.tools.excel;
+
+import fj.data.List;
+import fj.data.Option;
+import org.apache.poi.ss.formula.FormulaParsingWorkbook;
+import org.apache.poi.ss.util.CellReference;
+
+/**
+ * The parts of a workbook needed for converting its formulas: the defined names, the formula in each cell, and the type of each cell.
+ * <br/>
+ * All cell references passed to, and returned from, a formula workbook are qualified with the name of the sheet containing the cell.
+ */
+public interface FormulaWorkbook
+{
+	/**
+	 * @return The names defined in the workbook, in the order they're defined.
+	 */
+	List<String> names();
+
+	/**
+	 * @param name The name to resolve. Must be defined in the workbook.
+	 * @return The cell the given name refers to.
+	 */
+	CellReference cellNamed(final String name);
+
+	/**
+	 * @param cell The cell for which we're looking for a name.
+	 * @return Some(name), if a name referring to the given cell is defined, None otherwise.
+	 */
+	Option<String> nameOf(final CellReference cell);
+
+	/**
+	 * Forget anything known about the workbook's names, so names added, removed or changed since are seen.
+	 * A workbook doesn't follow changes to its names on its own, as it mustn't change while it's converted. Nothing, by default.
+	 */
+	default void invalidateNames() {}
+
+	/**
+	 * @return The type of the given cell; {@link CellType#BLANK} for cells not in the workbook.
+	 */
+	CellType typeOf(final CellReference cell);
+
+	/**
+	 * @param cell A cell holding a formula
+	 * @return The text of the formula in the given cell
+	 */
+	String formulaAt(final CellReference cell);
+
+	/**
+	 * @return The workbook used for parsing formulas of this workbook.
+	 */
+	FormulaParsingWorkbook parsingWorkbook();
+}
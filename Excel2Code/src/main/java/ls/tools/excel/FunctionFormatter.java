@@ -3,10 +3,67 @@ package ls.tools.excel;
 import fj.data.List;
 import ls.tools.excel.model.Function;
 
+import java.io.IOException;
+
 public interface FunctionFormatter
 {
 
 	String format(final Function f);
 
 	<F extends Function> String format(final List<F> functions, final String delimiter);
+
+	/**
+	 * Format the given function directly into the given output.
+	 * <br/>
+	 * By default the function is formatted to a string, which is then appended. Formatters that can write while formatting should override it.
+	 * @param f The function to format
+	 * @param out The output to write the formatted function to
+	 * @throws IOException If writing to the output fails
+	 */
+	default void format(final Function f, final Appendable out) throws IOException { out.append(format(f)); }
+
+	/**
+	 * Write what a complete output needs before its functions, e.g. the declaration of the class holding them. Nothing, by default.
+	 * @param out The output to write to
+	 * @throws IOException If writing to the output fails
+	 */
+	default void prologue(final Appendable out) throws IOException {}
+
+	/**
+	 * Write what a complete output needs after its functions, e.g. the end of the class holding them. Nothing, by default.
+	 * @param out The output to write to
+	 * @throws IOException If writing to the output fails
+	 */
+	default void epilogue(final Appendable out) throws IOException {}
+
+	/**
+	 * Format the given functions directly into the given output, one after the other, each followed by the given delimiter,
+	 * between the {@link #prologue(Appendable) prologue} and the {@link #epilogue(Appendable) epilogue}.
+	 * <br/>
+	 * Every function is written once it's formatted, so the complete output is never held in memory.
+	 * @param functions The functions to format
+	 * @param delimiter The delimiter written after each function
+	 * @param out The output to write the formatted functions to
+	 * @throws IOException If writing to the output fails
+	 */
+	default <F extends Function> void format(final List<F> functions, final String delimiter, final Appendable out) throws IOException
+	{
+		prologue(out);
+		for (final F f : functions)
+		{
+			format(f, out);
+			out.append(delimiter);
+		}
+		epilogue(out);
+	}
+
+	/**
+	 * A formatter for the same language, that also formats a batch version of every function: one that evaluates the function for a whole table of rows,
+	 * taking a column of values for each parameter and writing the results into an output column, in a single loop.
+	 * <br/>
+	 * By default, a formatter has no batch mode.
+	 * @return The batch formatter
+	 * @throws UnsupportedOperationException If this formatter has no batch mode
+	 */
+	default FunctionFormatter batch() { throw new UnsupportedOperationException(getClass().getSimpleName() + " has no batch mode"); }
 }
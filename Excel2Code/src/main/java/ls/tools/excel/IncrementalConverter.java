@@ -0,0 +1,198 @@
+package ls.tools.excel;
+
+import fj.data.List;
+import fj.data.Option;
+import ls.tools.excel.model.Function;
+import org.apache.poi.ss.util.CellReference;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static ls.tools.excel.CellType.FORMULA;
+
+/**
+ * Converts named cells of a workbook that keeps changing, reconverting only what changed since the previous conversion.
+ * <br/>
+ * The converter remembers, for every converted formula cell, its formula text, its name, and the cells its formula references (with their types).
+ * On every {@link #update(FormulaWorkbook, String...) update}, a cell is reconverted if any of these changed, or if any formula cell it references is reconverted.
+ * All other cells keep the functions converted for them earlier - the very same function objects.
+ * <br/>
+ * A converter is not thread safe.
+ */
+public final class IncrementalConverter
+{
+
+	/**
+	 * What's known about a converted formula cell.
+	 */
+	private static final class ConvertedCell
+	{
+		final CellReference cell;
+		final String formula;
+		final String name;
+		final Function function;
+		final List<CellReference> references;
+		final java.util.List<CellType> referenceTypes;
+
+		ConvertedCell(final CellReference _cell, final String _formula, final String _name, final Function _function,
+					  final List<CellReference> _references, final java.util.List<CellType> _referenceTypes)
+		{
+			this.cell = _cell;
+			this.formula = _formula;
+			this.name = _name;
+			this.function = _function;
+			this.references = _references;
+			this.referenceTypes = _referenceTypes;
+		}
+	}
+
+	/**
+	 * The result of an update.
+	 */
+	public static final class Update
+	{
+		private final List<Function> functions;
+		private final Set<Function> converted;
+
+		private Update(final List<Function> _functions, final Set<Function> _converted)
+		{
+			this.functions = _functions;
+			this.converted = _converted;
+		}
+
+		/**
+		 * @return All functions for the converted names, in the order they were first converted.
+		 * A function always comes after the functions it invokes.
+		 */
+		public List<Function> functions() { return functions; }
+
+		/**
+		 * @return Whether the given function was converted in this update, rather than kept from an earlier one.
+		 */
+		public boolean isConverted(final Function f) { return converted.contains(f); }
+
+		/**
+		 * @return The number of functions converted in this update.
+		 */
+		public int convertedCount() { return converted.size(); }
+	}
+
+	/**
+	 * The converted cells, keyed by their {@link FormulaConversion#cellKey(CellReference) address}, in the order they were converted.
+	 */
+	private final Map<String,ConvertedCell> cells = new LinkedHashMap<>();
+	private int nextLocalVar = 0;
+
+	/**
+	 * Bring the functions for the given names up to date with the given workbook.
+	 * <br/>
+	 * The first update converts all formula cells needed for the given names; the result is the same as that of {@link FormulaConverter#formulasFromNamedCells(FormulaWorkbook, String...)}.
+	 * The workbook's {@link FormulaWorkbook#invalidateNames() names are invalidated} first, since they may have changed since the previous update.
+	 * @param wb The current state of the workbook
+	 * @param names The names to convert
+	 * @return The functions for the names, telling which of them were converted in this update.
+	 */
+	public Update update(final FormulaWorkbook wb, final String... names)
+	{
+		checkArgument(wb != null,"Workbook can't be null");
+		checkArgument(names != null,"Names can't be null");
+		wb.invalidateNames();
+		removeChanged(wb);
+
+		final Map<String,Function> kept = new HashMap<>();
+		for (final Map.Entry<String,ConvertedCell> e : cells.entrySet())
+			kept.put(e.getKey(), e.getValue().function);
+		final FormulaConversion conversion = new FormulaConversion(wb, kept, nextLocalVar);
+		final Set<Function> converted = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (final String name : names)
+			for (final Function f : conversion.functionsForName(name))
+			{
+				converted.add(f);
+				final CellReference cell = conversion.cellReferenceOf(f);
+				cells.put(conversion.cellOf(f), new ConvertedCell(cell, wb.formulaAt(cell), nameOf(wb, cell), f,
+																	conversion.referencesOf(f), typesOf(wb, conversion.referencesOf(f))));
+			}
+		nextLocalVar = conversion.nextLocalVar();
+		removeUnreachable(wb, names);
+
+		final Set<Function> seen = new HashSet<>();
+		final List.Buffer<Function> functions = List.Buffer.empty();
+		for (final ConvertedCell c : cells.values())
+			if (seen.add(c.function)) functions.snoc(c.function);
+		return new Update(functions.toList(), converted);
+	}
+
+	/**
+	 * Forget the cells whose formula, name, or referenced cell types changed, and all cells referencing them.
+	 */
+	private void removeChanged(final FormulaWorkbook wb)
+	{
+		final Map<String,java.util.List<String>> referencedBy = new HashMap<>();
+		final Deque<String> changed = new ArrayDeque<>();
+		for (final Map.Entry<String,ConvertedCell> e : cells.entrySet())
+		{
+			final ConvertedCell c = e.getValue();
+			for (final CellReference r : c.references)
+				referencedBy.computeIfAbsent(FormulaConversion.cellKey(r), k -> new ArrayList<>()).add(e.getKey());
+			if (hasChanged(wb, c)) changed.push(e.getKey());
+		}
+		while (!changed.isEmpty())
+		{
+			final String key = changed.pop();
+			if (cells.remove(key) != null && referencedBy.containsKey(key))
+				changed.addAll(referencedBy.get(key));
+		}
+	}
+
+	private boolean hasChanged(final FormulaWorkbook wb, final ConvertedCell c)
+	{
+		return wb.typeOf(c.cell) != FORMULA ||
+				!c.formula.equals(wb.formulaAt(c.cell)) ||
+				!Objects.equals(c.name, nameOf(wb, c.cell)) ||
+				!c.referenceTypes.equals(typesOf(wb, c.references));
+	}
+
+	/**
+	 * Forget the cells no longer needed by any of the names, e.g. ones no longer referenced by a changed formula.
+	 */
+	private void removeUnreachable(final FormulaWorkbook wb, final String... names)
+	{
+		final Set<String> reachable = new HashSet<>();
+		final Deque<String> pending = new ArrayDeque<>();
+		for (final String name : names)
+			pending.push(FormulaConversion.cellKey(wb.cellNamed(name)));
+		while (!pending.isEmpty())
+		{
+			final String key = pending.pop();
+			final ConvertedCell c = cells.get(key);
+			if (c != null && reachable.add(key))
+				for (final CellReference r : c.references)
+					pending.push(FormulaConversion.cellKey(r));
+		}
+		cells.keySet().retainAll(reachable);
+	}
+
+	private static String nameOf(final FormulaWorkbook wb, final CellReference cell)
+	{
+		final Option<String> n = wb.nameOf(cell);
+		return n.isSome() ? n.some() : null;
+	}
+
+	private static java.util.List<CellType> typesOf(final FormulaWorkbook wb, final List<CellReference> references)
+	{
+		final java.util.List<CellType> ret = new ArrayList<>();
+		for (final CellReference r : references)
+			ret.add(wb.typeOf(r));
+		return ret;
+	}
+}
@@ -0,0 +1,98 @@
+package ls.tools.excel;
+
+import fj.data.List;
+import ls.tools.excel.model.Function;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import static fj.Ord.stringOrd;
+import static ls.tools.fj.Util.fj;
+import static ls.tools.fj.Util.listsEql;
+import static ls.tools.fj.Util.nullCheckingEqualPredicate;
+import static org.junit.Assert.*;
+
+public final class IncrementalConverterTest
+{
+	private static final String[] NAMES = { "mult", "cube_sqrt", "times2", "square" };
+
+	private XSSFWorkbook wb;
+	private XSSFFormulaWorkbook fwb;
+	private IncrementalConverter converter;
+
+	@Before
+	public void prepareTest() throws InvalidFormatException, IOException
+	{
+		wb = (XSSFWorkbook) WorkbookFactory.create(new FileInputStream("test.xlsx"));
+		fwb = new XSSFFormulaWorkbook(wb);
+		converter = new IncrementalConverter();
+	}
+
+	@Test
+	public void firstUpdateConvertsLikeAFullConversion()
+	{
+		final IncrementalConverter.Update u = converter.update(fwb, NAMES);
+		final List<Function> expected = new FormulaConverter().formulasFromNamedCells(fwb, NAMES);
+		assertTrue(listsEql(u.functions(), expected, nullCheckingEqualPredicate()));
+		assertEquals(expected.length(), u.convertedCount());
+	}
+
+	@Test
+	public void unchangedWorkbookConvertsNothing()
+	{
+		final List<Function> first = converter.update(fwb, NAMES).functions();
+		final IncrementalConverter.Update u = converter.update(fwb, NAMES);
+		assertEquals(0, u.convertedCount());
+		assertTrue(listsEql(u.functions(), first, (f1, f2) -> f1 == f2));
+	}
+
+	@Test
+	public void changedCellAndItsDependentsAreReconverted()
+	{
+		final List<Function> first = converter.update(fwb, NAMES).functions();
+		setFormula("square", "B3*B3*B3");
+		final IncrementalConverter.Update u = converter.update(fwb, NAMES);
+
+		for (final Function f : u.functions())
+		{
+			final boolean dependsOnSquare = f.name().equals("square") || f.name().equals("cube") || f.name().equals("cube_sqrt");
+			assertEquals("Reconverted " + f.name(), dependsOnSquare, u.isConverted(f));
+			if (!dependsOnSquare) assertTrue("Kept " + f.name(), first.exists(fj(g -> g == f)));
+		}
+		assertEquals(3, u.convertedCount());
+		assertTrue(listsEql(u.functions().map(fj(Function::name)).sort(stringOrd),
+							first.map(fj(Function::name)).sort(stringOrd), nullCheckingEqualPredicate()));
+	}
+
+	@Test
+	public void cellsNoLongerReferencedAreDropped()
+	{
+		converter.update(fwb, "cube");
+		setFormula("cube", "B3*B3");
+		final IncrementalConverter.Update u = converter.update(fwb, "cube");
+		assertEquals(1, u.functions().length());
+		assertEquals("cube", u.functions().head().name());
+	}
+
+	@Test
+	public void cellWhoseNameMovedElsewhereIsReconvertedUnnamed()
+	{
+		converter.update(fwb, "cube");
+		wb.getName("square").setRefersToFormula("Sheet1!$B$3");
+		final IncrementalConverter.Update u = converter.update(fwb, "cube");
+		assertTrue(u.functions().exists(fj(f -> f.name().equals("D3") && u.isConverted(f))));
+		assertFalse(u.functions().exists(fj(f -> f.name().equals("square"))));
+	}
+
+	private void setFormula(final String name, final String formula)
+	{
+		final CellReference c = fwb.cellNamed(name);
+		wb.getSheet(c.getSheetName()).getRow(c.getRow()).getCell(c.getCol()).setCellFormula(formula);
+	}
+}
@@ -0,0 +1,73 @@
+package ls.tools.excel;
+
+import fj.data.Option;
+import org.apache.poi.ss.usermodel.Name;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.util.CellReference;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static ls.tools.excel.DefinedNames.cellReferredBy;
+import static ls.tools.excel.DefinedNames.refersToSingleCell;
+
+/**
+ * A reverse index of the defined names in a workbook - from the address of the cell a name refers to, to the name.
+ * Only {@link DefinedNames names referring to a single cell} are indexed.
+ * <br/>
+ * The index is a snapshot of the workbook's names at the time it was built; an index of a workbook whose names changed since must be built again.
+ */
+final class NameIndex
+{
+	private final Map<String,Name> namesByCell;
+
+	private NameIndex(final Workbook _wb)
+	{
+		final int nameCount = _wb.getNumberOfNames();
+		this.namesByCell = new HashMap<>(nameCount * 2);
+		for (int i = 0; i < nameCount; i++)
+		{
+			final Name n = _wb.getNameAt(i);
+			//the first name found for a cell is the one used, as when searching the names in order.
+			if (refersToSingleCell(n) && !namesByCell.containsKey(cellKey(n)))
+				namesByCell.put(cellKey(n), n);
+		}
+	}
+
+	/**
+	 * Build the index of names for the given workbook.
+	 * @param wb The workbook to index
+	 * @return A new index, over all names currently defined in the workbook.
+	 */
+	static NameIndex of(final Workbook wb)
+	{
+		checkArgument(wb != null,"Can't index names of a null workbook");
+		return new NameIndex(wb);
+	}
+
+	/**
+	 * Given a cell, find and return a name pointing to that cell, if it exists.
+	 * @param cell The sheet-qualified reference of the cell for which we're looking for a name.
+	 * @return Some(name), if a name is present, None if no such name exists.
+	 */
+	Option<Name> nameFor(final CellReference cell)
+	{
+		checkArgument(cell != null,"Can't find a name for a null cell");
+		return Option.fromNull(namesByCell.get(cellKey(cell.getSheetName(), cell.getRow(), cell.getCol())));
+	}
+
+	/**
+	 * @return The key identifying the cell in the given sheet, at the given row and column, across the workbook.
+	 */
+	static String cellKey(final String sheetName, final int row, final int col)
+	{
+		return new CellReference(sheetName, row, col, false, false).formatAsString();
+	}
+
+	private static String cellKey(final Name n)
+	{
+		final CellReference cr = cellReferredBy(n);
+		return cellKey(cr.getSheetName(), cr.getRow(), cr.getCol());
+	}
+}
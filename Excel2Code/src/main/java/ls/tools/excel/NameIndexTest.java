@@ -0,0 +1,95 @@
+package ls.tools.excel;
+
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.ss.usermodel.Name;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public final class NameIndexTest
+{
+
+	private static final String SHEET1 = "Sheet1";
+	private XSSFWorkbook wb;
+
+	@Before
+	public void prepareTest() throws InvalidFormatException, IOException
+	{
+		wb = (XSSFWorkbook) WorkbookFactory.create(new FileInputStream("test.xlsx"));
+	}
+
+	@Test
+	public void namedCellIsFoundByItsAddress()
+	{
+		final CellReference d3 = new CellReference(SHEET1, 2, 3, false, false);
+		assertEquals("square", NameIndex.of(wb).nameFor(d3).valueE("No name found for D3").getNameName());
+	}
+
+	@Test
+	public void unnamedCellHasNoName()
+	{
+		final CellReference b3 = new CellReference(SHEET1, 2, 1, false, false);
+		assertTrue(NameIndex.of(wb).nameFor(b3).isNone());
+	}
+
+	@Test
+	public void addedNameIsFoundOnceNamesAreInvalidated()
+	{
+		final XSSFFormulaWorkbook fwb = new XSSFFormulaWorkbook(wb);
+		final CellReference b3 = new CellReference(SHEET1, 2, 1, false, false);
+		assertTrue(fwb.nameOf(b3).isNone());
+		addName("x", SHEET1 + "!$B$3");
+		assertTrue("The index is built once", fwb.nameOf(b3).isNone());
+		fwb.invalidateNames();
+		assertEquals("x", fwb.nameOf(b3).valueE("No name found for B3"));
+	}
+
+	@Test
+	public void namePointedElsewhereIsFoundThereOnceNamesAreInvalidated()
+	{
+		final XSSFFormulaWorkbook fwb = new XSSFFormulaWorkbook(wb);
+		final CellReference b3 = new CellReference(SHEET1, 2, 1, false, false);
+		final CellReference d3 = new CellReference(SHEET1, 2, 3, false, false);
+		assertEquals("square", fwb.nameOf(d3).valueE("No name found for D3"));
+		wb.getName("square").setRefersToFormula(SHEET1 + "!$B$3");
+		fwb.invalidateNames();
+		assertEquals("square", fwb.nameOf(b3).valueE("No name found for B3"));
+		assertTrue(fwb.nameOf(d3).isNone());
+	}
+
+	@Test
+	public void renamedNameIsFoundOnceNamesAreInvalidated()
+	{
+		final XSSFFormulaWorkbook fwb = new XSSFFormulaWorkbook(wb);
+		final CellReference d3 = new CellReference(SHEET1, 2, 3, false, false);
+		assertEquals("square", fwb.nameOf(d3).valueE("No name found for D3"));
+		wb.getName("square").setNameName("squared");
+		fwb.invalidateNames();
+		assertEquals("squared", fwb.nameOf(d3).valueE("No name found for D3"));
+	}
+
+	@Test
+	public void namesNotReferringToASingleCellAreSkipped()
+	{
+		addName("constant", "42");
+		addName("formula", SHEET1 + "!$D$3*2");
+		addName("range", SHEET1 + "!$B$3:$D$3");
+		addName("invalid", "#REF!");
+		final CellReference d3 = new CellReference(SHEET1, 2, 3, false, false);
+		assertEquals("square", NameIndex.of(wb).nameFor(d3).valueE("No name found for D3").getNameName());
+	}
+
+	private void addName(final String name, final String refersTo)
+	{
+		final Name n = wb.createName();
+		n.setNameName(name);
+		n.setRefersToFormula(refersTo);
+	}
+}
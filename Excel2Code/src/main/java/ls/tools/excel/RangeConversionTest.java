@@ -0,0 +1,137 @@
+package ls.tools.excel;
+
+import fj.data.List;
+import ls.tools.excel.eval.FunctionCompiler;
+import ls.tools.excel.eval.Interpreter;
+import ls.tools.excel.model.*;
+import ls.tools.excel.serialize.java.JavaFormatter;
+import ls.tools.excel.serialize.js.JSFormatter;
+import org.apache.poi.ss.usermodel.Name;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Before;
+import org.junit.Test;
+
+import static fj.Ord.stringOrd;
+import static fj.data.List.list;
+import static ls.tools.excel.CellType.NUMERIC;
+import static ls.tools.excel.CellType.RANGE;
+import static ls.tools.excel.model.Functions.createFunction;
+import static ls.tools.excel.model.Functions.param;
+import static ls.tools.fj.Util.fj;
+import static org.junit.Assert.*;
+
+public final class RangeConversionTest implements ExpressionBuilder
+{
+	private static final String[] AGGREGATES = { "SUM", "AVERAGE", "MIN", "MAX", "COUNT" };
+	private static final double[] VALUES = { 4, -2, 9, 1 };
+
+	private XSSFWorkbook wb;
+
+	/**
+	 * A1:A4 hold numbers, A5 is blank; B1 and on aggregate A1:A5, each with its own name. C1 = B1*2.
+	 */
+	@Before
+	public void prepareTest()
+	{
+		wb = new XSSFWorkbook();
+		final Sheet s = wb.createSheet("Sheet1");
+		for (int r = 0; r < 5; r++)
+		{
+			final Row row = s.createRow(r);
+			if (r < VALUES.length) row.createCell(0).setCellValue(VALUES[r]);
+			if (r < AGGREGATES.length) namedFormula(row, 1, AGGREGATES[r].toLowerCase(), AGGREGATES[r] + "(A1:A5)");
+		}
+		namedFormula(s.getRow(0), 2, "doubleSum", "B1*2");
+	}
+
+	@Test
+	public void rangeBecomesASingleParameter()
+	{
+		final List<Function> result = new FormulaConverter().formulasFromNamedCells(wb, "sum");
+		final VarExpr range = var("A1_A5").ofType(RANGE);
+		final Function expected = createFunction("sum", list(param("A1_A5", RANGE)),
+								sequence(bindingOf(var("_0").ofType(NUMERIC)).to(invocationOf(BuiltInFunction.SUM).withArgs(range))), NUMERIC);
+		assertEquals(1, result.length());
+		assertEquals(expected, result.head());
+	}
+
+	@Test
+	public void aggregatesComputeTheirResultsInBothEvaluators()
+	{
+		final double[] expected = { 12, 3, -2, 9, 4 };
+		final List<Function> functions = new FormulaConverter().formulasFromNamedCells(wb, "sum", "average", "min", "max", "count", "doubleSum");
+		final Interpreter interpreter = new Interpreter();
+		final FunctionCompiler compiler = new FunctionCompiler();
+		for (int i = 0; i < AGGREGATES.length; i++)
+		{
+			final Function f = functions.index(i);
+			assertEquals(f.name(), expected[i], (Double)interpreter.prepare(f).apply((Object)VALUES), 1e-9);
+			assertEquals(f.name(), expected[i], (Double)compiler.compile(f).apply((Object)VALUES), 1e-9);
+		}
+		assertEquals(24, (Double)interpreter.prepare(functions.last()).apply((Object)VALUES), 1e-9);
+	}
+
+	@Test
+	public void aggregatesAreFormattedAsLoops()
+	{
+		final String js = new JSFormatter().format(new FormulaConverter().formulasFromNamedCells(wb, "sum").head());
+		assertTrue(js, js.startsWith("function sum(A1_A5) {"));
+		assertTrue(js, js.contains("for (var _0_i = 0; _0_i < A1_A5.length; _0_i++) _0 += A1_A5[_0_i];"));
+	}
+
+	@Test
+	public void averageOfAnEmptyRangeThrowsInJavascriptToo()
+	{
+		final String js = new JSFormatter().format(new FormulaConverter().formulasFromNamedCells(wb, "average").head());
+		assertTrue(js, js.contains("if (A1_A5.length == 0) throw new Error('AVERAGE: division by zero');"));
+	}
+
+	@Test
+	public void rangeOfFormulaCellsAggregatesTheNumbersTheyCompute()
+	{
+		//A1:C2 holds the numbers 4 and -2, the formulas sum (12), average (3) and doubleSum (24), and a formula computing TRUE, which isn't counted
+		wb.getSheet("Sheet1").getRow(1).createCell(2).setCellFormula("A1=4");
+		namedFormula(wb.getSheet("Sheet1").getRow(0), 3, "sumOfAll", "SUM(A1:C2)");
+		namedFormula(wb.getSheet("Sheet1").getRow(1), 3, "countOfAll", "COUNT(A1:C2)");
+		final List<Function> functions = new FormulaConverter().formulasFromNamedCells(wb, "sumOfAll", "countOfAll");
+		final Function sumOfAll = functions.find(fj((Function g) -> g.name().equals("sumOfAll"))).some();
+		final Function countOfAll = functions.last();
+
+		assertEquals(41, (Double)new Interpreter().prepare(sumOfAll).apply(argsOf(sumOfAll)), 1e-9);
+		assertEquals(41, (Double)new FunctionCompiler().compile(sumOfAll).apply(argsOf(sumOfAll)), 1e-9);
+		assertEquals(5, (Double)new Interpreter().prepare(countOfAll).apply(argsOf(countOfAll)), 1e-9);
+		assertEquals(5, (Double)new FunctionCompiler().compile(countOfAll).apply(argsOf(countOfAll)), 1e-9);
+	}
+
+	@Test
+	public void rangeOfFormulaCellsIsFormattedAsAnArrayOfItsNumbers()
+	{
+		namedFormula(wb.getSheet("Sheet1").getRow(0), 3, "sumOfSums", "SUM(A1:B2)");
+		final Function f = new FormulaConverter().formulasFromNamedCells(wb, "sumOfSums").last();
+		assertEquals(list("A1", "A1_A5", "A2"), f.parameters().map(fj(Param::name)).sort(stringOrd));
+
+		final String js = new JSFormatter().format(f);
+		assertTrue(js, js.contains("var _2 = [A1,B1,A2,B2].filter(function (v) { return typeof v === 'number'; })"));
+		final String java = new JavaFormatter().format(f);
+		assertTrue(java, java.contains("Operations.array(A1, B1, A2, B2)"));
+	}
+
+	/**
+	 * The arguments for the given function - the numbers of {@link #VALUES} for the range, and the number in the cell a single cell parameter is named after.
+	 */
+	private static Object[] argsOf(final Function f)
+	{
+		return f.parameters().map(fj((Param p) -> p.type() == RANGE ? (Object)VALUES : (Object)VALUES[Integer.parseInt(p.name().substring(1)) - 1]))
+								.toArray().array(Object[].class);
+	}
+
+	private void namedFormula(final Row row, final int col, final String name, final String formula)
+	{
+		row.createCell(col).setCellFormula(formula);
+		final Name n = wb.createName();
+		n.setNameName(name);
+		n.setRefersToFormula("Sheet1!$" + (char)('A' + col) + "$" + (row.getRowNum() + 1));
+	}
+}
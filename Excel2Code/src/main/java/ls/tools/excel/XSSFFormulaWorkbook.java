@@ -0,0 +1,101 @@
+package ls.tools.excel;
+
+import fj.data.List;
+import fj.data.Option;
+import org.apache.poi.ss.formula.FormulaParsingWorkbook;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Name;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.usermodel.XSSFEvaluationWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static ls.tools.excel.CellType.BLANK;
+import static ls.tools.excel.CellType.fromSSCellType;
+import static ls.tools.excel.DefinedNames.cellReferredBy;
+import static ls.tools.excel.DefinedNames.refersToSingleCell;
+import static ls.tools.fj.Util.fj;
+
+/**
+ * A {@link FormulaWorkbook} over a workbook fully loaded into memory.
+ * <br/>
+ * It can be read from several threads, as long as the underlying workbook isn't changed while it's read.
+ * Changes to the workbook's names must be followed by {@link #invalidateNames()}.
+ */
+public final class XSSFFormulaWorkbook implements FormulaWorkbook
+{
+	private final XSSFWorkbook wb;
+	private FormulaParsingWorkbook fpwb;
+	/**
+	 * Built on the first lookup of a name, and kept until {@link #invalidateNames() invalidated}.
+	 * Threads racing to build it build equal indexes, so any of them can be kept.
+	 */
+	private volatile NameIndex nameIndex;
+
+	public XSSFFormulaWorkbook(final XSSFWorkbook workbook)
+	{
+		checkArgument(workbook != null,"Workbook can't be null");
+		this.wb = workbook;
+	}
+
+	/**
+	 * Only {@link DefinedNames names referring to a single cell} are returned, as they're the only ones that can be converted.
+	 */
+	@Override public List<String> names()
+	{
+		List<String> ret = List.nil();
+		for (int i = wb.getNumberOfNames()-1; i >= 0; i--)
+			if (refersToSingleCell(wb.getNameAt(i)))
+				ret = ret.cons(wb.getNameAt(i).getNameName());
+		return ret;
+	}
+
+	@Override public CellReference cellNamed(final String name)
+	{
+		checkArgument(name != null,"Name of named cell can't be null");
+		return cellReferredBy(checkNotNull(wb.getName(name), "Couldn't find name: " + name));
+	}
+
+	/**
+	 * Names are looked up in a {@link NameIndex name index}, built once for all lookups. Changes to the workbook's names are only seen once
+	 * {@link #invalidateNames() invalidated}.
+	 */
+	@Override public Option<String> nameOf(final CellReference cell)
+	{
+		NameIndex index = nameIndex;
+		if (index == null)
+			nameIndex = index = NameIndex.of(wb);
+		return index.nameFor(cell).map(fj(Name::getNameName));
+	}
+
+	@Override public void invalidateNames() { nameIndex = null; }
+
+	@Override public CellType typeOf(final CellReference cell)
+	{
+		final Option<Cell> c = cell(cell);
+		return c.isSome() ? fromSSCellType(c.some().getCellType()) : BLANK;
+	}
+
+	@Override public String formulaAt(final CellReference cell)
+	{
+		return cell(cell).valueE("No cell at " + cell.formatAsString()).getCellFormula();
+	}
+
+	@Override public synchronized FormulaParsingWorkbook parsingWorkbook()
+	{
+		if (fpwb == null)
+			fpwb = XSSFEvaluationWorkbook.create(wb);
+		return fpwb;
+	}
+
+	private Option<Cell> cell(final CellReference cr)
+	{
+		checkArgument(cr != null && cr.getSheetName() != null,"Cell reference must be qualified with a sheet name");
+		final Sheet s = checkNotNull(wb.getSheet(cr.getSheetName()),"Couldn't find sheet: " + cr.getSheetName());
+		final Row r = s.getRow(cr.getRow());
+		return r == null ? Option.<Cell>none() : Option.fromNull(r.getCell(cr.getCol()));
+	}
+}
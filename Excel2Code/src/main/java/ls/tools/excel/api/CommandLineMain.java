@@ -4,29 +4,75 @@ package ls.tools.excel.api;
 import fj.data.List;
 import fj.data.Option;
 import ls.tools.excel.FormulaConverter;
+import ls.tools.excel.FormulaGroup;
+import ls.tools.excel.FormulaWorkbook;
 import ls.tools.excel.FunctionFormatter;
+import ls.tools.excel.IncrementalConverter;
+import ls.tools.excel.XSSFFormulaWorkbook;
+import ls.tools.excel.cache.ConversionCache;
+import ls.tools.excel.cache.FunctionCodec;
 import ls.tools.excel.model.Function;
+import ls.tools.excel.optimize.MethodSplitting;
+import ls.tools.excel.optimize.Optimization;
+import ls.tools.excel.optimize.Optimizations;
+import ls.tools.excel.optimize.TypeInference;
+import ls.tools.excel.serialize.java.JavaFormatter;
 import ls.tools.excel.serialize.js.JSFormatter;
+import ls.tools.excel.stream.StreamingWorkbookReader;
+import ls.tools.excel.verify.DifferentialVerifier;
 import org.apache.commons.cli.*;
 import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
 import org.apache.poi.ss.usermodel.WorkbookFactory;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Stream;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static java.lang.String.format;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static ls.tools.fj.Util.fj;
 import static org.apache.commons.cli.OptionBuilder.*;
 
 public final class CommandLineMain
 {
 
 	private static final String TESTS = "tests";
+	private static final String STREAMING = "streaming";
+	private static final String PARALLEL = "parallel";
+	private static final String STATS = "stats";
+	private static final String WATCH = "watch";
+	private static final String OPTIMIZE = "optimize";
+	private static final String BATCH = "batch";
+	private static final String GROUP = "group";
+	private static final String CACHE = "cache";
+	private static final String CACHE_SIZE = "cacheSize";
+	private static final String MAX_METHOD_SIZE = "maxMethodSize";
+	private static final String VERIFY = "verify";
+	/**
+	 * Options changing how names are converted, which an {@link IncrementalConverter} doesn't do.
+	 */
+	private static final String[] WATCH_EXCLUDED = { CACHE, CACHE_SIZE, PARALLEL, GROUP };
+	private static final int SLOWEST_REPORTED = 5;
+	private static final long DEFAULT_CACHE_MB = 256;
+	/**
+	 * Changes whenever the output of a formatter changes, so fragments formatted by other versions are never read.
+	 */
+	private static final String FRAGMENT_VERSION = "fragment-4";
 	private static final int HELP_WIDTH = 120;
 	private static final String PROGRAM_NAME = "excel2code";
 	private static final String OUT_FILE = "output";
 	private static final String LANGUAGE = "language";
+	private static final String JAVA_SUFFIX = ".java";
 	private static final String NAMES = "names";
 	private static final String SOURCE = "source";
 	private static final String HELP = "help";
@@ -50,10 +96,37 @@ public final class CommandLineMain
 						  	.create(NAMES));
 		options.addOption(hasArg().withArgName("lang")
 						  	.isRequired()
-						  	.withDescription("The target language to generate code for. Can also be the class name for the formatter to use.")
+						  	.withDescription("The target language to generate code for: js or java. Can also be the class name for the formatter to use.")
 						  	.create(LANGUAGE));
 		options.addOption(withDescription("Create tests for generated functions")
 							.create(TESTS));
+		options.addOption(withDescription("Stream the source file instead of loading it - only names, formulas and cell types are read. Use for large workbooks.")
+							.create(STREAMING));
+		options.addOption(withDescription("Convert the names in parallel, using all available processors")
+							.create(PARALLEL));
+		options.addOption(hasArg().withArgName("file")
+							.withDescription("Append the wall time and peak heap usage of each phase to the given CSV file")
+							.create(STATS));
+		options.addOption(withDescription("Keep watching the source file, and whenever it's saved, reconvert only the formulas that changed (and the ones depending on them). Requires an output file; can't be used with cache, cacheSize, parallel or group.")
+							.create(WATCH));
+		options.addOption(withDescription("Optimize the converted functions before formatting them: inline small functions, fold constants, compute repeated sub formulas once and remove unused bindings")
+							.create(OPTIMIZE));
+		options.addOption(withDescription("Follow every function with a batch version of it, evaluating the function for a whole table of rows at once, a column per parameter. Not supported by all languages.")
+							.create(BATCH));
+		options.addOption(withDescription("Group the names of formulas copied down a column, and convert each group once, to a function and a batch version of it looping over the group's rows. Not supported by all languages.")
+							.create(GROUP));
+		options.addOption(hasArg().withArgName("dir")
+							.withDescription("Keep converted formulas and formatted functions in the given directory, and reuse them in later runs for formulas that didn't change")
+							.create(CACHE));
+		options.addOption(hasArg().withArgName("bytes")
+							.withDescription("Java only: split functions whose methods would be larger than the given (estimated) bytecode size into helper methods, so the JIT compiles them. Default: " + MethodSplitting.DEFAULT_MAX_BYTECODE)
+							.create(MAX_METHOD_SIZE));
+		options.addOption(hasArg().withArgName("MB")
+							.withDescription("The maximal size of the cache, in MB; least recently used entries are removed when it grows beyond it. Default: " + DEFAULT_CACHE_MB)
+							.create(CACHE_SIZE));
+		options.addOption(hasArg().withArgName("samples")
+							.withDescription("Verify the converted functions against Excel's evaluation (by POI) of the source file, for the given number of sampled inputs of every name, reporting mismatches and the slowest formulas")
+							.create(VERIFY));
 	}
 	
 
@@ -67,7 +140,8 @@ public final class CommandLineMain
 			else
 			{
 				say("Processing: " + command(cl));
-				readConvertAndOutput(cl);
+				if (cl.hasOption(WATCH)) watch(cl);
+				else readConvertAndOutput(cl);
 			}
 		}
 		catch (ParseException e)
@@ -101,12 +175,21 @@ public final class CommandLineMain
 	 * <br/><br/>
 	 * The conversion process:
 	 * <ol>
-	 * <li>Read the file given in the {@link #SOURCE} argument and parse it as an excel workbook (OpenXML). </li>
-	 * <li>Resolve the names, either those given as argument ({@link #NAMES}), or all names in the workbook</li>
-	 * <li>Convert the names to functions</li>
-	 * <li>Format the resulting functions according to the given language formatter ({@link #LANGUAGE})</li>
-	 * <li>Output the result to the given file ({@link #OUT_FILE}) or to console, if no output file is given</li>
+	 * <li>Read the file given in the {@link #SOURCE} argument and parse it as an excel workbook (OpenXML), streaming it if {@link #STREAMING} is given. </li>
+	 * <li>Resolve the names, either those given as argument ({@link #NAMES}), or all names in the workbook.
+	 * If {@link #GROUP} is given, group the names of formulas copied down a column, and keep only the first name of every group</li>
+	 * <li>Convert the names to functions, in parallel if {@link #PARALLEL} is given</li>
+	 * <li>If {@link #OPTIMIZE} is given, apply {@link Optimizations#all(String...) all optimizations} to the functions, keeping the functions of the names</li>
+	 * <li>For java, {@link TypeInference infer} the types of values typed {@link ls.tools.excel.CellType#FORMULA FORMULA}, so they're primitives where possible</li>
+	 * <li>For java, {@link MethodSplitting split} functions too large for a method the JIT compiles ({@link #MAX_METHOD_SIZE})</li>
+	 * <li>Format the resulting functions according to the given language formatter ({@link #LANGUAGE}), with their {@link FunctionFormatter#batch() batch versions} if {@link #BATCH} is given (or, for groups, if {@link #GROUP} is given),
+	 * writing the result to the given file ({@link #OUT_FILE}) or to console, if no output file is given</li>
 	 * </ol>
+	 * If {@link #VERIFY} is given, the functions are then {@link DifferentialVerifier verified} against the source file, as evaluated by POI.
+	 * <br/>
+	 * If {@link #CACHE} is given, formulas and formatted functions already found in the cache aren't converted or formatted again.
+	 * <br/>
+	 * If {@link #STATS} is given, the wall time and peak heap of each step are appended to the given file.
 	 * @param cl The parsed command line object
 	 * @throws InvalidFormatException
 	 * @throws FileNotFoundException
@@ -114,46 +197,301 @@ public final class CommandLineMain
 	 */
 	private void readConvertAndOutput(final CommandLine cl) throws InvalidFormatException, IOException
 	{
+		final PhaseStats stats = new PhaseStats();
+		final Option<ConversionCache> cache = cacheFor(cl);
 		say("Reading workbook...");
-		final XSSFWorkbook wb = workbookFor(cl.getOptionValue(SOURCE));
+		stats.start("read");
+		final FormulaWorkbook wb = workbookFor(cl.getOptionValue(SOURCE), cl.hasOption(STREAMING));
 		say("Resolving names...");
-		final String[] names = retrieveNames(cl, wb); //if no names are given, will retrieve all
+		stats.start("names");
+		final String[] allNames = retrieveNames(cl, wb); //if no names are given, will retrieve all
+		final FormulaConverter fc = cache.isSome() ? new FormulaConverter(cache.some()) : new FormulaConverter();
+		final Set<String> grouped = new HashSet<>();
+		final String[] names = cl.hasOption(GROUP) ? groupCopiedFormulas(fc, wb, allNames, grouped, stats) : allNames;
 		say("Translating to functions...");
-		final FormulaConverter fc = new FormulaConverter();
-		final List<Function> functions = fc.formulasFromNamedCells(wb, names);
-		say("Formatting to target language...");
-		final FunctionFormatter formatter = formatterFor(cl.getOptionValue(LANGUAGE));
-		final String output = formatter.format(functions, NL + NL);
-		say("Outputting result...");
-		writeToFile(cl.getOptionValue(OUT_FILE),output);
+		stats.start("convert");
+		final List<Function> converted = cl.hasOption(PARALLEL) ?
+											fc.formulasFromNamedCellsInParallel(wb, names) :
+											fc.formulasFromNamedCells(wb, names);
+		final List<Function> functions = transformed(cl, converted, names, stats);
+		final FunctionFormatter formatter = formatterFor(cl.getOptionValue(LANGUAGE), cl.hasOption(BATCH), cl.getOptionValue(OUT_FILE));
+		say("Formatting to target language and outputting result...");
+		stats.start("output");
+		final FunctionFormatter cachedFormatter = cached(formatter, cl.hasOption(BATCH), cache);
+		writeToFile(cl.getOptionValue(OUT_FILE),
+					grouped.isEmpty() ? cachedFormatter : batchingGroups(cachedFormatter, cached(formatter.batch(), true, cache), grouped),
+					functions);
+		if (cl.hasOption(VERIFY))
+			verify(cl.getOptionValue(SOURCE), functions, names, Integer.parseInt(cl.getOptionValue(VERIFY)), stats);
+		stats.end();
+		if (cl.hasOption(STATS))
+			stats.appendTo(new File(cl.getOptionValue(STATS)));
+		if (cache.isSome())
+			say(format("Cache: %1$d hits, %2$d misses", cache.some().hitCount(), cache.some().missCount()));
 		say("Done.");
 	}
 
 
-	private void writeToFile(final String outFilename, final String output) throws IOException
+	/**
+	 * The steps following the conversion, shared by every conversion: {@link #OPTIMIZE optimizing} the functions, and for java,
+	 * {@link TypeInference typing} and {@link MethodSplitting splitting} them.
+	 */
+	private List<Function> transformed(final CommandLine cl, final List<Function> converted, final String[] names, final PhaseStats stats)
+	{
+		final List<Function> optimized = cl.hasOption(OPTIMIZE) ? optimized(converted, names, stats) : converted;
+		return isJava(cl.getOptionValue(LANGUAGE)) ? split(typed(optimized, stats), cl, stats) : optimized;
+	}
+
+	/**
+	 * Convert the source file, then keep converting it whenever it changes, until interrupted.
+	 * <br/>
+	 * Every conversion goes through the same steps as {@link #readConvertAndOutput(CommandLine)} - {@link #transformed(CommandLine, List, String[], PhaseStats) transforming},
+	 * formatting and {@link #VERIFY verifying} the functions - but the functions are converted by an {@link IncrementalConverter},
+	 * so only the formula cells that changed since the previous conversion are converted again. Options that change how names are converted
+	 * ({@link #WATCH_EXCLUDED}) can't be used when watching.
+	 * Likewise, only functions that changed are formatted again; the formatted text of functions equal to ones written by the previous conversion is kept.
+	 */
+	private void watch(final CommandLine cl) throws IOException
+	{
+		checkArgument(cl.getOptionValue(OUT_FILE) != null,"Watching the source file requires an output file");
+		final File source = new File(cl.getOptionValue(SOURCE)).getAbsoluteFile();
+		final IncrementalConverter converter = new IncrementalConverter();
+		final FunctionFormatter formatter = formatterFor(cl.getOptionValue(LANGUAGE), cl.hasOption(BATCH), cl.getOptionValue(OUT_FILE));
+		Map<Function,String> formatted = new HashMap<>();
+		try (final WatchService ws = FileSystems.getDefault().newWatchService())
+		{
+			source.getParentFile().toPath().register(ws, ENTRY_CREATE, ENTRY_MODIFY);
+			long lastModified = -1;
+			while (true)
+			{
+				if (source.lastModified() != lastModified) //other files in the same directory may have changed
+				{
+					lastModified = source.lastModified();
+					try
+					{
+						formatted = convertIncrementally(cl, converter, formatter, formatted);
+					}
+					catch (InvalidFormatException | IOException | RuntimeException e) //e.g. the file is read while it's still being saved
+					{
+						say("Failed converting " + source.getName() + ": " + e.getMessage() + ". Will retry when it changes.");
+					}
+					say("Watching " + source.getName() + " for changes...");
+				}
+				final WatchKey key = ws.take();
+				key.pollEvents();
+				key.reset();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			say("Stopped watching.");
+		}
+	}
+
+	/**
+	 * Bring the output up to date with the source file.
+	 * @param formatted The formatted text of the functions written by the previous conversion
+	 * @return The formatted text of the functions written by this conversion.
+	 */
+	private Map<Function,String> convertIncrementally(final CommandLine cl, final IncrementalConverter converter, final FunctionFormatter formatter,
+													  final Map<Function,String> formatted) throws InvalidFormatException, IOException
+	{
+		final PhaseStats stats = new PhaseStats();
+		say("Reading workbook...");
+		stats.start("read");
+		final FormulaWorkbook wb = workbookFor(cl.getOptionValue(SOURCE), cl.hasOption(STREAMING));
+		stats.start("names");
+		final String[] names = retrieveNames(cl, wb);
+		stats.start("convert");
+		final IncrementalConverter.Update update = converter.update(wb, names);
+		say(format("Converted %1$d of %2$d functions", update.convertedCount(), update.functions().length()));
+		final List<Function> functions = transformed(cl, update.functions(), names, stats);
+		stats.start("output");
+		final Map<Function,String> ret = new HashMap<>(); //by equality, as transformed functions are new functions every time
+		for (final Function f : functions)
+			ret.put(f, formatted.containsKey(f) ? formatted.get(f) : formatter.format(f));
+		try (final BufferedWriter bw = new BufferedWriter(new FileWriter(cl.getOptionValue(OUT_FILE))))
+		{
+			formatter.prologue(bw);
+			for (final Function f : functions)
+				bw.append(ret.get(f)).append(NL + NL);
+			formatter.epilogue(bw);
+		}
+		if (cl.hasOption(VERIFY))
+			verify(cl.getOptionValue(SOURCE), functions, names, Integer.parseInt(cl.getOptionValue(VERIFY)), stats);
+		stats.end();
+		if (cl.hasOption(STATS))
+			stats.appendTo(new File(cl.getOptionValue(STATS)));
+		return ret;
+	}
+
+	/**
+	 * Format the functions straight into the output target - the formatted code is written while it's generated, never held in memory as a whole.
+	 */
+	private void writeToFile(final String outFilename, final FunctionFormatter formatter, final List<Function> functions) throws IOException
 	{
 		final boolean realFileRequested = (outFilename != null && !outFilename.equals(""));
 		say("Output target: " + (realFileRequested ? outFilename : "Console") + NL);
 		if (realFileRequested)
 			try (final BufferedWriter bw =  new BufferedWriter(new FileWriter(outFilename))) { //automatically closes the file
-				writeOut(output, bw);
+				writeOut(formatter, functions, bw);
 			}
-		else writeOut(output,new BufferedWriter(new PrintWriter(System.out)));
+		else writeOut(formatter, functions, new BufferedWriter(new PrintWriter(System.out)));
 	}
 
 
-	private void writeOut(final String output, final BufferedWriter bw) throws IOException
+	private void writeOut(final FunctionFormatter formatter, final List<Function> functions, final BufferedWriter bw) throws IOException
 	{
-		bw.write(output);
+		formatter.format(functions, NL + NL, bw);
 		bw.flush();
 	}
 
 
-	private FunctionFormatter formatterFor(final String lang)
+	/**
+	 * Group the names of formulas copied down a column, so each group is converted once.
+	 * @param grouped Filled with the first names of groups of more than one name
+	 * @return The first name of every group.
+	 */
+	private String[] groupCopiedFormulas(final FormulaConverter fc, final FormulaWorkbook wb, final String[] names, final Set<String> grouped, final PhaseStats stats)
+	{
+		say("Grouping copied formulas...");
+		stats.start("group");
+		final List<FormulaGroup> groups = fc.copiedFormulaGroups(wb, names);
+		for (final FormulaGroup g : groups)
+			if (g.rowCount() > 1)
+			{
+				grouped.add(g.firstName());
+				say(format("%1$s: %2$d rows, converted as %3$s", g, g.rowCount(), g.firstName()));
+			}
+		say(format("Grouped %1$d names into %2$d functions", names.length, groups.length()));
+		return groups.map(fj(FormulaGroup::firstName)).toArray().array(String[].class);
+	}
+
+	/**
+	 * @return A formatter formatting the functions of the given groups with the given batch formatter, so they loop over the group's rows, and all others with the given formatter.
+	 */
+	private static FunctionFormatter batchingGroups(final FunctionFormatter formatter, final FunctionFormatter batchFormatter, final Set<String> grouped)
+	{
+		return new FunctionFormatter()
+		{
+			@Override public String format(final Function f) { return grouped.contains(f.name()) ? batchFormatter.format(f) : formatter.format(f); }
+
+			@Override public void prologue(final Appendable out) throws IOException { formatter.prologue(out); }
+
+			@Override public void epilogue(final Appendable out) throws IOException { formatter.epilogue(out); }
+
+			@Override public <F extends Function> String format(final List<F> functions, final String delimiter)
+			{
+				final StringBuilder sb = new StringBuilder();
+				for (final F f : functions)
+					sb.append(format(f)).append(delimiter);
+				return sb.toString();
+			}
+		};
+	}
+
+	private List<Function> optimized(final List<Function> functions, final String[] names, final PhaseStats stats)
+	{
+		say("Optimizing...");
+		stats.start("optimize");
+		List<Function> ret = functions;
+		for (final Optimization o : Optimizations.all(names))
+			ret = o.apply(ret);
+		final int before = Optimizations.nodeCount(functions);
+		say(format("Optimizations removed %1$d of %2$d expression nodes", before - Optimizations.nodeCount(ret), before));
+		return ret;
+	}
+
+	private List<Function> typed(final List<Function> functions, final PhaseStats stats)
+	{
+		stats.start("types");
+		return new TypeInference().apply(functions);
+	}
+
+	/**
+	 * Split functions too large to be JIT compiled as java methods.
+	 */
+	private List<Function> split(final List<Function> functions, final CommandLine cl, final PhaseStats stats)
+	{
+		stats.start("split");
+		final int maxBytecode = cl.hasOption(MAX_METHOD_SIZE) ? Integer.parseInt(cl.getOptionValue(MAX_METHOD_SIZE)) : MethodSplitting.DEFAULT_MAX_BYTECODE;
+		final List<Function> ret = new MethodSplitting(maxBytecode).apply(functions);
+		if (ret.length() > functions.length())
+			say(format("Split large functions into %1$d helper functions", ret.length() - functions.length()));
+		return ret;
+	}
+
+	private void verify(final String source, final List<Function> functions, final String[] names, final int samples, final PhaseStats stats) throws InvalidFormatException, IOException
+	{
+		say("Verifying...");
+		stats.start("verify");
+		final XSSFWorkbook wb;
+		try (final InputStream in = new FileInputStream(source))
+		{
+			wb = (XSSFWorkbook) WorkbookFactory.create(in);
+		}
+		say(new DifferentialVerifier(wb).verify(functions, samples, names).summary(SLOWEST_REPORTED));
+	}
+
+	private Option<ConversionCache> cacheFor(final CommandLine cl) throws IOException
+	{
+		if (!cl.hasOption(CACHE)) return Option.none();
+		final long mb = cl.hasOption(CACHE_SIZE) ? Long.parseLong(cl.getOptionValue(CACHE_SIZE)) : DEFAULT_CACHE_MB;
+		return Option.some(new ConversionCache(new File(cl.getOptionValue(CACHE)), mb * 1024 * 1024));
+	}
+
+	/**
+	 * @return A formatter that reads the formatted text of functions from the given cache, if any, and formats (and caches) only the functions not found there.
+	 * Functions are looked up by their {@link FunctionCodec#encode(Function) encoding}, so equal functions formatted by the same formatter are formatted once.
+	 */
+	private FunctionFormatter cached(final FunctionFormatter formatter, final boolean batch, final Option<ConversionCache> cache)
+	{
+		if (cache.isNone()) return formatter;
+		return new FunctionFormatter()
+		{
+			@Override public String format(final Function f)
+			{
+				final String key = ConversionCache.keyOf(FunctionCodec.encode(f), FRAGMENT_VERSION, formatter.getClass().getName(), Boolean.toString(batch));
+				final Option<byte[]> fragment = cache.some().get(key);
+				if (fragment.isSome()) return new String(fragment.some(), StandardCharsets.UTF_8);
+				final String ret = formatter.format(f);
+				cache.some().put(key, ret.getBytes(StandardCharsets.UTF_8));
+				return ret;
+			}
+
+			@Override public void prologue(final Appendable out) throws IOException { formatter.prologue(out); }
+
+			@Override public void epilogue(final Appendable out) throws IOException { formatter.epilogue(out); }
+
+			@Override public <F extends Function> String format(final List<F> functions, final String delimiter)
+			{
+				final StringBuilder sb = new StringBuilder();
+				for (final F f : functions)
+					sb.append(format(f)).append(delimiter);
+				return sb.toString();
+			}
+		};
+	}
+
+	private FunctionFormatter formatterFor(final String lang, final boolean batch, final String outFilename)
+	{
+		final FunctionFormatter ret = formatterFor(lang, outFilename);
+		return batch ? ret.batch() : ret;
+	}
+
+	/**
+	 * @param outFilename The output file, if any. A java class is named after it (<code>Pricing.java</code> holds the class <code>Pricing</code>).
+	 */
+	private FunctionFormatter formatterFor(final String lang, final String outFilename)
 	{
 		checkArgument(lang != null,"Language can't be null");
 		if (lang.equalsIgnoreCase("js")) 
 			return new JSFormatter();
+		else if (isJava(lang))
+			return outFilename != null && outFilename.endsWith(JAVA_SUFFIX) ?
+					new JavaFormatter(new File(outFilename).getName().replace(JAVA_SUFFIX, "")) :
+					new JavaFormatter();
 		else 
 		{
 			final Option<FunctionFormatter> ffOpt = loadFormatter(lang);
@@ -162,6 +500,8 @@ public final class CommandLineMain
 	}
 
 
+	private static boolean isJava(final String lang) { return "java".equalsIgnoreCase(lang); }
+
 	private Option<FunctionFormatter> loadFormatter(final String formatterClassName)
 	{
 		checkArgument(formatterClassName != null,"Can't have a null formatter class name");
@@ -178,22 +518,19 @@ public final class CommandLineMain
 	}
 
 
-	private String[] retrieveNames(final CommandLine cl, final XSSFWorkbook wb)
+	private String[] retrieveNames(final CommandLine cl, final FormulaWorkbook wb)
 	{
-		String[] names = cl.getOptionValues(NAMES);
-		if (names == null)
-		{
-			final int nameCount = wb.getNumberOfNames();
-			names = new String[nameCount];
-			for (int i = 0; i < nameCount; i++)
-				names[i] = wb.getNameAt(i).getNameName();
-		}
-		return names;
+		final String[] names = cl.getOptionValues(NAMES);
+		return names != null ? names : wb.names().toArray().array(String[].class);
 	}
 
-	private XSSFWorkbook workbookFor(final String filename) throws InvalidFormatException, IOException
+	private FormulaWorkbook workbookFor(final String filename, final boolean streaming) throws InvalidFormatException, IOException
 	{
-		return (XSSFWorkbook) WorkbookFactory.create(new FileInputStream(filename));
+		if (streaming) return new StreamingWorkbookReader().read(new File(filename));
+		try (final InputStream in = new FileInputStream(filename))
+		{
+			return new XSSFFormulaWorkbook((XSSFWorkbook) WorkbookFactory.create(in));
+		}
 	}
 
 
@@ -216,6 +553,9 @@ public final class CommandLineMain
 		final CommandLine cl = clParser.parse(options, args);
 		if (!cl.hasOption(HELP) && !cl.hasOption(SOURCE))
 			throw new ParseException("Either help or source options must be given");
+		if (cl.hasOption(WATCH))
+			for (final String excluded : WATCH_EXCLUDED)
+				if (cl.hasOption(excluded)) throw new ParseException("-" + excluded + " can't be used with -" + WATCH);
 		return cl;
 	}
 
@@ -0,0 +1,92 @@
+package ls.tools.excel.api;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Records the wall time and peak heap usage of the phases of a conversion, and writes them as CSV.
+ * <br/>
+ * The peak heap of a phase is the sum of the peak usage of all heap memory pools, which are reset when the phase starts.
+ */
+final class PhaseStats
+{
+	static final String CSV_HEADER = "phase,wallMillis,peakHeapBytes";
+
+	private static final class Phase
+	{
+		final String name;
+		final long wallMillis;
+		final long peakHeapBytes;
+
+		Phase(final String _name, final long _wallMillis, final long _peakHeapBytes)
+		{
+			this.name = _name;
+			this.wallMillis = _wallMillis;
+			this.peakHeapBytes = _peakHeapBytes;
+		}
+	}
+
+	private final List<Phase> phases = new ArrayList<>();
+	private String current;
+	private long startNanos;
+
+	/**
+	 * Start timing the given phase, ending the current one, if any.
+	 */
+	void start(final String phase)
+	{
+		checkArgument(phase != null,"Phase name can't be null");
+		if (current != null) end();
+		current = phase;
+		for (final MemoryPoolMXBean pool : heapPools())
+			pool.resetPeakUsage();
+		startNanos = System.nanoTime();
+	}
+
+	/**
+	 * End the current phase.
+	 */
+	void end()
+	{
+		checkState(current != null,"No phase started");
+		final long wallMillis = (System.nanoTime() - startNanos) / 1000000;
+		long peak = 0;
+		for (final MemoryPoolMXBean pool : heapPools())
+			peak += pool.getPeakUsage().getUsed();
+		phases.add(new Phase(current, wallMillis, peak));
+		current = null;
+	}
+
+	/**
+	 * Append the recorded phases to the given CSV file, one line per phase. The header is written if the file is new.
+	 */
+	void appendTo(final File csv) throws IOException
+	{
+		final boolean isNew = !csv.exists() || csv.length() == 0;
+		try (final BufferedWriter w = new BufferedWriter(new FileWriter(csv, true)))
+		{
+			if (isNew) w.write(CSV_HEADER + System.lineSeparator());
+			for (final Phase p : phases)
+				w.write(p.name + "," + p.wallMillis + "," + p.peakHeapBytes + System.lineSeparator());
+		}
+	}
+
+	private static List<MemoryPoolMXBean> heapPools()
+	{
+		final List<MemoryPoolMXBean> ret = new ArrayList<>();
+		for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP && pool.isValid())
+				ret.add(pool);
+		return ret;
+	}
+}
@@ -0,0 +1,186 @@
+package ls.tools.excel.cache;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import fj.data.Option;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A content addressed, size bounded cache of conversion results, kept in a directory so it outlives a single run.
+ * <br/>
+ * Entries are byte arrays, keyed by a {@link #keyOf(String...) hash} of everything they were computed from, each in its own file.
+ * When the entries grow beyond the given size, the least recently used ones are removed. Use is tracked by the files' modification time,
+ * so the order is kept between runs.
+ * <br/>
+ * A cache can be used from several threads. Several processes can share a cache directory; an entry removed by another process is simply a miss.
+ */
+public final class ConversionCache
+{
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private final File dir;
+	private final long maxBytes;
+	/**
+	 * The size of every entry, least recently used first.
+	 */
+	private final LinkedHashMap<String,Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long totalBytes = 0;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Open the cache in the given directory, creating it if needed.
+	 * @param _dir The directory holding the cache entries
+	 * @param _maxBytes The maximal total size of the entries
+	 */
+	public ConversionCache(final File _dir, final long _maxBytes) throws IOException
+	{
+		checkArgument(_dir != null,"Cache directory can't be null");
+		checkArgument(_maxBytes > 0,"Cache size must be positive");
+		this.dir = _dir;
+		this.maxBytes = _maxBytes;
+		if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Couldn't create cache directory " + dir);
+		final File[] files = dir.listFiles();
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+		for (final File f : files)
+			if (f.getName().endsWith(TEMP_SUFFIX)) f.delete(); //left by a run that didn't finish writing
+			else
+			{
+				entries.put(f.getName(), f.length());
+				totalBytes += f.length();
+			}
+		evict();
+	}
+
+	/**
+	 * @return A key for an entry computed from the given parts. Keys of different parts are different (up to SHA-256 collisions).
+	 */
+	public static String keyOf(final String... parts)
+	{
+		final Hasher h = Hashing.sha256().newHasher();
+		for (final String p : parts)
+		{
+			h.putInt(p.length());
+			h.putString(p, Charsets.UTF_8);
+		}
+		return h.hash().toString();
+	}
+
+	/**
+	 * @return A key for an entry computed from the given content, and the given parts.
+	 */
+	public static String keyOf(final byte[] content, final String... parts)
+	{
+		return keyOf(Hashing.sha256().hashBytes(content).toString(), keyOf(parts));
+	}
+
+	/**
+	 * @return Some(entry) if the cache has an entry with the given key, None otherwise.
+	 */
+	public Option<byte[]> get(final String key)
+	{
+		checkArgument(key != null,"Key can't be null");
+		synchronized (this)
+		{
+			if (entries.get(key) == null) //also marks it as most recently used
+			{
+				misses.incrementAndGet();
+				return Option.none();
+			}
+		}
+		final File f = new File(dir, key);
+		try
+		{
+			final byte[] ret = Files.readAllBytes(f.toPath());
+			f.setLastModified(System.currentTimeMillis());
+			hits.incrementAndGet();
+			return Option.some(ret);
+		}
+		catch (NoSuchFileException e) //removed by another process
+		{
+			remove(key);
+		}
+		catch (IOException e)
+		{
+			remove(key);
+			f.delete();
+		}
+		misses.incrementAndGet();
+		return Option.none();
+	}
+
+	/**
+	 * Add an entry, replacing any entry with the same key, and remove the least recently used entries if the cache grew too big.
+	 * <br/>
+	 * Failing to write an entry isn't an error - it's only missing later.
+	 */
+	public void put(final String key, final byte[] value)
+	{
+		checkArgument(key != null,"Key can't be null");
+		checkArgument(value != null,"Value can't be null");
+		final File f = new File(dir, key);
+		try
+		{
+			final File temp = File.createTempFile("entry", TEMP_SUFFIX, dir);
+			Files.write(temp.toPath(), value);
+			Files.move(temp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e)
+		{
+			return;
+		}
+		synchronized (this)
+		{
+			final Long previous = entries.put(key, (long)value.length);
+			totalBytes += value.length - (previous != null ? previous : 0);
+			evict();
+		}
+	}
+
+	/**
+	 * @return The number of entries found since the cache was opened.
+	 */
+	public long hitCount() { return hits.get(); }
+
+	/**
+	 * @return The number of entries not found since the cache was opened.
+	 */
+	public long missCount() { return misses.get(); }
+
+	/**
+	 * @return The total size of the entries.
+	 */
+	public synchronized long size() { return totalBytes; }
+
+	private synchronized void remove(final String key)
+	{
+		final Long size = entries.remove(key);
+		if (size != null) totalBytes -= size;
+	}
+
+	private synchronized void evict()
+	{
+		final Iterator<Map.Entry<String,Long>> it = entries.entrySet().iterator();
+		while (totalBytes > maxBytes && it.hasNext())
+		{
+			final Map.Entry<String,Long> e = it.next();
+			new File(dir, e.getKey()).delete();
+			totalBytes -= e.getValue();
+			it.remove();
+		}
+	}
+}
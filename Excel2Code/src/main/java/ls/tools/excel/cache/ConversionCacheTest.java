@@ -0,0 +1,74 @@
+package ls.tools.excel.cache;
+
+import fj.data.List;
+import ls.tools.excel.FormulaConverter;
+import ls.tools.excel.XSSFFormulaWorkbook;
+import ls.tools.excel.model.Function;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import static ls.tools.fj.Util.listsEql;
+import static ls.tools.fj.Util.nullCheckingEqualPredicate;
+import static org.junit.Assert.*;
+
+public final class ConversionCacheTest
+{
+	private static final String[] NAMES = { "mult", "cube_sqrt", "times2", "square" };
+
+	@Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void entriesAreKeptBetweenRuns() throws IOException
+	{
+		final File dir = folder.newFolder();
+		new ConversionCache(dir, 1024).put("a", new byte[] { 1, 2, 3 });
+		final ConversionCache reopened = new ConversionCache(dir, 1024);
+		assertArrayEquals(new byte[] { 1, 2, 3 }, reopened.get("a").some());
+		assertTrue(reopened.get("b").isNone());
+		assertEquals(1, reopened.hitCount());
+		assertEquals(1, reopened.missCount());
+	}
+
+	@Test
+	public void leastRecentlyUsedEntriesAreRemoved() throws IOException
+	{
+		final ConversionCache cache = new ConversionCache(folder.newFolder(), 30);
+		cache.put("a", new byte[10]);
+		cache.put("b", new byte[10]);
+		cache.put("c", new byte[10]);
+		cache.get("a");
+		cache.put("d", new byte[10]);
+		assertTrue(cache.get("a").isSome());
+		assertTrue(cache.get("b").isNone());
+		assertTrue(cache.get("c").isSome());
+		assertTrue(cache.get("d").isSome());
+		assertEquals(30, cache.size());
+	}
+
+	@Test
+	public void cachedConversionGeneratesTheSameFunctions() throws IOException, InvalidFormatException
+	{
+		final File dir = folder.newFolder();
+		final List<Function> expected = new FormulaConverter().formulasFromNamedCells(workbook(), NAMES);
+		final List<Function> cold = new FormulaConverter(new ConversionCache(dir, 1024 * 1024)).formulasFromNamedCells(workbook(), NAMES);
+		final ConversionCache cache = new ConversionCache(dir, 1024 * 1024);
+		final List<Function> warm = new FormulaConverter(cache).formulasFromNamedCells(workbook(), NAMES);
+		assertTrue(listsEql(cold, expected, nullCheckingEqualPredicate()));
+		assertTrue(listsEql(warm, expected, nullCheckingEqualPredicate()));
+		assertEquals(expected.length(), cache.hitCount());
+		assertEquals(0, cache.missCount());
+	}
+
+	private static XSSFFormulaWorkbook workbook() throws IOException, InvalidFormatException
+	{
+		return new XSSFFormulaWorkbook((XSSFWorkbook) WorkbookFactory.create(new FileInputStream("test.xlsx")));
+	}
+}
@@ -0,0 +1,224 @@
+package ls.tools.excel.cache;
+
+import fj.data.List;
+import ls.tools.excel.BuiltInFunction;
+import ls.tools.excel.CellType;
+import ls.tools.excel.model.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+import java.util.function.UnaryOperator;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static ls.tools.excel.model.Functions.createFunction;
+import static ls.tools.excel.model.Functions.param;
+
+/**
+ * Writes functions to a compact binary form, and reads them back.
+ * <br/>
+ * Invoked built-in functions are written by name. Other invoked functions are written by name and by an index given by the caller,
+ * and are resolved by the same index when read - so the caller decides how invoked functions are stored.
+ * Variable names can be renamed on the way in and out, e.g. to store local variables independently of their numbering.
+ */
+public final class FunctionCodec
+{
+	private static final byte SEQUENCE = 'S';
+	private static final byte BINDING = 'B';
+	private static final byte BIN_OP = 'O';
+	private static final byte INVOCATION = 'F';
+	private static final byte LITERAL = 'L';
+	private static final byte VAR = 'V';
+	private static final byte BRANCH = 'I';
+	private static final int NO_INDEX = -1;
+
+	private FunctionCodec() {}
+
+	/**
+	 * Write the given function.
+	 * @param f The function to write
+	 * @param out The output to write to
+	 * @param varNames Renames the variables as they're written
+	 * @param calleeIndex The index to write for each invoked function that isn't built in
+	 */
+	public static void write(final Function f, final DataOutput out, final UnaryOperator<String> varNames, final ToIntFunction<Function> calleeIndex) throws IOException
+	{
+		checkArgument(f != null,"Function to write can't be null");
+		out.writeUTF(f.name());
+		out.writeInt(f.parameters().length());
+		for (final Param p : f.parameters())
+		{
+			out.writeUTF(p.name());
+			out.writeUTF(p.type().name());
+		}
+		out.writeUTF(f.returnType().name());
+		new Writer(out, varNames, calleeIndex).write(f.body());
+	}
+
+	/**
+	 * Read a function written by {@link #write(Function, DataOutput, UnaryOperator, ToIntFunction)}.
+	 * @param in The input to read from
+	 * @param builder Builds the function's expressions
+	 * @param varNames Renames the variables as they're read
+	 * @param callees The invoked function for each index written
+	 * @return The function read.
+	 */
+	public static Function read(final DataInput in, final ExpressionBuilder builder, final UnaryOperator<String> varNames, final IntFunction<Function> callees) throws IOException
+	{
+		final String name = in.readUTF();
+		final List.Buffer<Param> params = List.Buffer.empty();
+		for (int i = in.readInt(); i > 0; i--)
+			params.snoc(param(in.readUTF(), CellType.valueOf(in.readUTF())));
+		final CellType returnType = CellType.valueOf(in.readUTF());
+		return createFunction(name, params.toList(), new Reader(in, builder, varNames, callees).read(), returnType);
+	}
+
+	/**
+	 * @return The given function written as is, with invoked functions written by name only. Functions with equal encodings are formatted the same by any formatter.
+	 */
+	public static byte[] encode(final Function f)
+	{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try
+		{
+			write(f, new DataOutputStream(bytes), UnaryOperator.identity(), callee -> NO_INDEX);
+		}
+		catch (IOException e) { throw new UncheckedIOException(e); } //can't happen when writing to a byte array
+		return bytes.toByteArray();
+	}
+
+	private static final class Writer
+	{
+		private final DataOutput out;
+		private final UnaryOperator<String> varNames;
+		private final ToIntFunction<Function> calleeIndex;
+
+		Writer(final DataOutput _out, final UnaryOperator<String> _varNames, final ToIntFunction<Function> _calleeIndex)
+		{
+			this.out = _out;
+			this.varNames = _varNames;
+			this.calleeIndex = _calleeIndex;
+		}
+
+		void write(final Expr e) throws IOException
+		{
+			if (e instanceof Binding)
+			{
+				out.writeByte(BINDING);
+				write(((Binding)e).var());
+				write(((Binding)e).expression());
+			}
+			else if (e instanceof BinOpExpr) //must be considered before CompositeExpr
+			{
+				out.writeByte(BIN_OP);
+				out.writeUTF(((BinOpExpr)e).op());
+				write(((BinOpExpr)e).subExpressions().head());
+				write(((BinOpExpr)e).subExpressions().last());
+			}
+			else if (e instanceof FunctionExpr)
+			{
+				final FunctionExpr fe = (FunctionExpr)e;
+				out.writeByte(INVOCATION);
+				out.writeBoolean(fe.function() instanceof BuiltInFunction);
+				out.writeUTF(fe.functionName());
+				if (!(fe.function() instanceof BuiltInFunction)) out.writeInt(calleeIndex.applyAsInt(fe.function()));
+				writeAll(fe.args());
+			}
+			else if (e instanceof LiteralExpr)
+			{
+				out.writeByte(LITERAL);
+				out.writeUTF(((LiteralExpr)e).value());
+				out.writeUTF(e.type().name());
+			}
+			else if (e instanceof VarExpr)
+			{
+				out.writeByte(VAR);
+				out.writeUTF(varNames.apply(((VarExpr)e).name()));
+				out.writeUTF(e.type().name());
+			}
+			else if (e instanceof BranchExpr)
+			{
+				out.writeByte(BRANCH);
+				write(((BranchExpr)e).test());
+				write(((BranchExpr)e).whenTrue());
+				write(((BranchExpr)e).whenFalse());
+			}
+			else if (e instanceof CompositeExpr)
+			{
+				out.writeByte(SEQUENCE);
+				writeAll(((CompositeExpr)e).subExpressions());
+			}
+			else throw new IllegalArgumentException("Can't identify type of expression: " + e.getClass().getCanonicalName());
+		}
+
+		private void writeAll(final List<Expr> exprs) throws IOException
+		{
+			out.writeInt(exprs.length());
+			for (final Expr e : exprs)
+				write(e);
+		}
+	}
+
+	private static final class Reader
+	{
+		private final DataInput in;
+		private final ExpressionBuilder b;
+		private final UnaryOperator<String> varNames;
+		private final IntFunction<Function> callees;
+
+		Reader(final DataInput _in, final ExpressionBuilder _b, final UnaryOperator<String> _varNames, final IntFunction<Function> _callees)
+		{
+			this.in = _in;
+			this.b = _b;
+			this.varNames = _varNames;
+			this.callees = _callees;
+		}
+
+		Expr read() throws IOException
+		{
+			final byte tag = in.readByte();
+			switch (tag)
+			{
+				case BINDING: return b.bindingOf((VarExpr)read()).to(read());
+				case BIN_OP:
+				{
+					final BinaryOp op = BinaryOp.from(in.readUTF());
+					final Expr e1 = read();
+					return b.binOp(e1, op, read());
+				}
+				case INVOCATION:
+				{
+					final boolean builtIn = in.readBoolean();
+					final String name = in.readUTF();
+					final Function f = builtIn ? BuiltInFunction.valueOf(name) : callees.apply(in.readInt());
+					checkState(f != null && f.name().equals(name),"Invoked function doesn't match the one written: " + name);
+					return b.invocationOf(f).withArgs(readAll());
+				}
+				case LITERAL: return b.literal(in.readUTF()).ofType(CellType.valueOf(in.readUTF()));
+				case VAR: return b.var(varNames.apply(in.readUTF())).ofType(CellType.valueOf(in.readUTF()));
+				case BRANCH:
+				{
+					final Expr test = read();
+					final Expr whenTrue = read();
+					return b.test(test).ifTrue(whenTrue).ifFalse(read());
+				}
+				case SEQUENCE: return b.sequence(readAll());
+				default: throw new IOException("Unrecognized expression tag: " + tag);
+			}
+		}
+
+		private List<Expr> readAll() throws IOException
+		{
+			final List.Buffer<Expr> ret = List.Buffer.empty();
+			for (int i = in.readInt(); i > 0; i--)
+				ret.snoc(read());
+			return ret.toList();
+		}
+	}
+}
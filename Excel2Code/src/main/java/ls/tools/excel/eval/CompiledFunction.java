@@ -0,0 +1,168 @@
+package ls.tools.excel.eval;
+
+import fj.data.List;
+import ls.tools.excel.CellType;
+import ls.tools.excel.model.Function;
+import ls.tools.excel.model.Param;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaConversionException;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandleProxies;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static ls.tools.excel.CellType.BOOLEAN;
+import static ls.tools.excel.CellType.NUMERIC;
+import static ls.tools.fj.Util.fj;
+
+/**
+ * A {@link Function} compiled by a {@link FunctionCompiler}.
+ * <br/>
+ * The compiled function can be invoked through its {@link #handle() method handle}, through one of the typed <code>apply</code> methods,
+ * or through an instance of a functional interface matching its signature, created by {@link #as(Class)}. The typed <code>apply</code> methods, and interface instances,
+ * invoke the handle without boxing.
+ * Compiled functions are immutable, and can be invoked from several threads.
+ */
+public final class CompiledFunction
+{
+	private final Function source;
+	private final MethodHandle handle;
+	/**
+	 * The handle, taking all its arguments in a single array. Only available when all parameters are numeric.
+	 */
+	private final MethodHandle spreader;
+
+	CompiledFunction(final Function _source, final MethodHandle _handle)
+	{
+		this.source = _source;
+		this.handle = _handle;
+		this.spreader = allParamsAre(NUMERIC) ? _handle.asSpreader(double[].class, _handle.type().parameterCount()) : null;
+	}
+
+	public String name() { return source.name(); }
+	public List<Param> parameters() { return source.parameters(); }
+	public CellType returnType() { return source.returnType(); }
+
+	/**
+	 * @return The compiled method handle. It takes the function's parameters, in order, and returns its result.
+	 * Numeric values are passed as <code>double</code>, booleans as <code>boolean</code>, strings as {@link String}, ranges as <code>double[]</code> and all other values as {@link Object}.
+	 */
+	public MethodHandle handle() { return handle; }
+
+	/**
+	 * Invoke a function with numeric parameters and a numeric result.
+	 * @param args The values of the function's parameters, in order
+	 * @return The function's result.
+	 */
+	public double applyAsDouble(final double... args)
+	{
+		checkState(returnType() == NUMERIC,"Function " + name() + " doesn't return a number");
+		try
+		{
+			return (double) numericSpreader(args).invokeExact(args);
+		}
+		catch (Throwable t) { throw rethrown(t); }
+	}
+
+	/**
+	 * Invoke a function with numeric parameters and a boolean result.
+	 * @param args The values of the function's parameters, in order
+	 * @return The function's result.
+	 */
+	public boolean applyAsBoolean(final double... args)
+	{
+		checkState(returnType() == BOOLEAN,"Function " + name() + " doesn't return a boolean");
+		try
+		{
+			return (boolean) numericSpreader(args).invokeExact(args);
+		}
+		catch (Throwable t) { throw rethrown(t); }
+	}
+
+	/**
+	 * Invoke the function with any parameters. Arguments are converted to the parameter types, and the result is boxed.
+	 * @param args The values of the function's parameters, in order
+	 * @return The function's result.
+	 */
+	public Object apply(final Object... args)
+	{
+		checkArgument(args != null && args.length == handle.type().parameterCount(),"Function " + name() + " expects " + handle.type().parameterCount() + " arguments");
+		try
+		{
+			return handle.invokeWithArguments(args);
+		}
+		catch (Throwable t) { throw rethrown(t); }
+	}
+
+	/**
+	 * Create an instance of the given functional interface that invokes this function.
+	 * <br/>
+	 * The interface's single method must take the function's parameter types, in order, and return its result type
+	 * (e.g. <code>double cube(double b3)</code>), or types they can be converted to.
+	 * <br/>
+	 * The interface is implemented by a lambda, invoking the handle with the interface method's own (e.g. primitive) types, so nothing is boxed.
+	 * Only where the JVM can't make such a lambda is it implemented by a {@link MethodHandleProxies proxy}, which boxes the arguments of every call;
+	 * {@link #applyAsDouble(double...)} and {@link #applyAsBoolean(double...)} never box.
+	 * @param iface The functional interface to implement
+	 * @return An instance of the interface, invoking the compiled function.
+	 */
+	public <T> T as(final Class<T> iface)
+	{
+		checkArgument(iface != null && iface.isInterface(),"Can only implement an interface");
+		final Method method = singleAbstractMethodOf(iface);
+		final MethodType type = MethodType.methodType(method.getReturnType(), method.getParameterTypes());
+		final MethodHandle adapted = handle.asType(type);
+		try
+		{
+			final MethodHandles.Lookup lookup = MethodHandles.lookup();
+			final MethodHandle invoker = lookup.findVirtual(MethodHandle.class, "invokeExact", type);
+			final CallSite site = LambdaMetafactory.metafactory(lookup, method.getName(), MethodType.methodType(iface, MethodHandle.class), type, invoker, type);
+			return iface.cast(site.getTarget().invoke(adapted));
+		}
+		catch (LambdaConversionException | IllegalArgumentException | ReflectiveOperationException e)
+		{
+			return MethodHandleProxies.asInterfaceInstance(iface, handle); //the invoker can't be implemented by a lambda in this JVM
+		}
+		catch (Throwable t) { throw rethrown(t); }
+	}
+
+	private static Method singleAbstractMethodOf(final Class<?> iface)
+	{
+		Method ret = null;
+		for (final Method m : iface.getMethods())
+			if (Modifier.isAbstract(m.getModifiers()))
+			{
+				checkArgument(ret == null,"Not a functional interface, as it has more than one abstract method: " + iface.getName());
+				ret = m;
+			}
+		checkArgument(ret != null,"Not a functional interface, as it has no abstract method: " + iface.getName());
+		return ret;
+	}
+
+	private MethodHandle numericSpreader(final double[] args)
+	{
+		checkState(spreader != null,"Function " + name() + " has non numeric parameters");
+		checkArgument(args != null && args.length == handle.type().parameterCount(),"Function " + name() + " expects " + handle.type().parameterCount() + " arguments");
+		return spreader;
+	}
+
+	private boolean allParamsAre(final CellType t)
+	{
+		return source.parameters().forall(fj((Param p) -> p.type() == t));
+	}
+
+	private static RuntimeException rethrown(final Throwable t)
+	{
+		if (t instanceof RuntimeException) return (RuntimeException)t;
+		if (t instanceof Error) throw (Error)t;
+		return new IllegalStateException("Failed evaluating function: " + t.getMessage(), t);
+	}
+
+	@Override public String toString() { return "compiled " + source.toString(); }
+}
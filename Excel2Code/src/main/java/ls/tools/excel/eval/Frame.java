@@ -0,0 +1,20 @@
+package ls.tools.excel.eval;
+
+/**
+ * The slots holding the parameters and local variables of a single invocation of an interpreted function.
+ * <br/>
+ * Numbers, booleans and other values are kept in separate arrays, so numbers and booleans are never boxed.
+ */
+final class Frame
+{
+	final double[] nums;
+	final boolean[] bools;
+	final Object[] refs;
+
+	Frame(final int numSlots, final int boolSlots, final int refSlots)
+	{
+		this.nums = new double[numSlots];
+		this.bools = new boolean[boolSlots];
+		this.refs = new Object[refSlots];
+	}
+}
@@ -0,0 +1,325 @@
+package ls.tools.excel.eval;
+
+import ls.tools.excel.BuiltInFunction;
+import ls.tools.excel.model.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.invoke.MethodType.methodType;
+import static ls.tools.excel.eval.Operations.javaTypeOf;
+import static ls.tools.excel.eval.Operations.literalValue;
+
+/**
+ * Compiles {@link Function functions} of the model to {@link MethodHandle method handles}, which can be invoked directly from java code.
+ * <br/>
+ * A function is compiled by composing method handles - no source code or bytecode is generated, and no compiler is needed at runtime.
+ * Numbers and booleans are held as primitive <code>double</code> and <code>boolean</code> values.
+ * Every local variable is passed only to the parts of the body that use it, so handles don't grow with the length of the function body.
+ * <br/>
+ * A compiler remembers the functions it already compiled, so functions invoked by several functions are compiled once.
+ * A compiler isn't thread safe, but the {@link CompiledFunction compiled functions} are.
+ */
+public final class FunctionCompiler
+{
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+	private static final MethodHandle MULT = operation("mult", methodType(double.class, double.class, double.class));
+	private static final MethodHandle EQL_NUMERIC = operation("eql", methodType(boolean.class, double.class, double.class));
+	private static final MethodHandle EQL_BOOLEAN = operation("eql", methodType(boolean.class, boolean.class, boolean.class));
+	private static final MethodHandle EQL = operation("eql", methodType(boolean.class, Object.class, Object.class));
+	private static final MethodHandle SQRT = operation("sqrt", methodType(double.class, double.class));
+	private static final MethodHandle MOD = operation("mod", methodType(double.class, double.class, double.class));
+	private static final MethodHandle IF = operation("ifThenElse", methodType(Object.class, boolean.class, Object.class, Object.class));
+	private static final MethodType AGGREGATE = methodType(double.class, double[].class);
+	private static final MethodHandle SUM = operation("sum", AGGREGATE);
+	private static final MethodHandle AVERAGE = operation("average", AGGREGATE);
+	private static final MethodHandle MIN = operation("min", AGGREGATE);
+	private static final MethodHandle MAX = operation("max", AGGREGATE);
+	private static final MethodHandle COUNT = operation("count", AGGREGATE);
+	private static final MethodHandle ARRAY = operation("array", methodType(double[].class, Object[].class));
+
+	private final Map<Function,MethodHandle> compiled = new IdentityHashMap<>();
+
+	/**
+	 * Compile the given function, and all the functions it invokes.
+	 * @param f The function to compile
+	 * @return The compiled function.
+	 * @throws IllegalArgumentException If the function can't be compiled, e.g. it uses a variable that isn't bound or a built-in function that isn't supported.
+	 */
+	public CompiledFunction compile(final Function f)
+	{
+		checkArgument(f != null,"Function to compile can't be null");
+		return new CompiledFunction(f, handleOf(f));
+	}
+
+	private MethodHandle handleOf(final Function f)
+	{
+		if (f instanceof BuiltInFunction) return builtInHandleOf((BuiltInFunction)f);
+		MethodHandle ret = compiled.get(f);
+		if (ret == null)
+		{
+			final List<Variable> params = new ArrayList<>();
+			for (final Param p : f.parameters())
+				params.add(new Variable(p.name(), javaTypeOf(p.type())));
+			final Compiled body = compileBody(f.body());
+			for (final Variable v : body.vars)
+				checkArgument(params.contains(v),"Variable " + v.name + " used in function " + f.name() + " isn't bound");
+			ret = body.over(params).asType(methodType(javaTypeOf(f.returnType()), types(params)));
+			compiled.put(f, ret);
+		}
+		return ret;
+	}
+
+	private static MethodHandle builtInHandleOf(final BuiltInFunction f)
+	{
+		switch (f)
+		{
+			case SQRT : return SQRT;
+			case MOD : return MOD;
+			case IF : return IF;
+			case SUM : return SUM;
+			case AVERAGE : return AVERAGE;
+			case MIN : return MIN;
+			case MAX : return MAX;
+			case COUNT : return COUNT;
+			default : throw new IllegalArgumentException("Unsupported built-in function: " + f.name());
+		}
+	}
+
+	/**
+	 * The body of a function is either a sequence or a single expression.
+	 */
+	private Compiled compileBody(final Expr body)
+	{
+		return body instanceof CompositeExpr && !(body instanceof BinOpExpr) ? compileSequence((CompositeExpr)body) : compile(body);
+	}
+
+	private Compiled compile(final Expr e)
+	{
+		checkArgument(e != null,"Expression can't be null");
+		if (e instanceof Binding) return compile(((Binding)e).expression());
+		else if (e instanceof BinOpExpr) return compile((BinOpExpr)e); //must be considered before CompositeExpr
+		else if (e instanceof FunctionExpr) return compile((FunctionExpr)e);
+		else if (e instanceof LiteralExpr) return compile((LiteralExpr)e);
+		else if (e instanceof VarExpr) return compile((VarExpr)e);
+		else if (e instanceof BranchExpr) return compile((BranchExpr)e);
+		else if (e instanceof CompositeExpr) return compileSequence((CompositeExpr)e);
+		else throw new IllegalArgumentException("Can't identify type of expression: " + e.getClass().getCanonicalName());
+	}
+
+	/**
+	 * The value of a sequence is the value of its last expression. Each binding in the sequence is compiled by folding its value into the rest of the sequence.
+	 * The sequence is compiled backwards, from its value to its first binding.
+	 */
+	private Compiled compileSequence(final CompositeExpr seq)
+	{
+		checkArgument(seq.subExpressions().isNotEmpty(),"Can't compile an empty sequence");
+		final Expr[] exprs = seq.subExpressions().toArray().array(Expr[].class);
+		Compiled rest = compile(evaluationOf(exprs[exprs.length - 1]));
+		for (int i = exprs.length - 1; i >= 0; i--)
+			if (exprs[i] instanceof Binding)
+				rest = bind((Binding)exprs[i], rest);
+		return rest;
+	}
+
+	private static Expr evaluationOf(final Expr e) { return (e instanceof Binding) ? ((Binding)e).var() : e; }
+
+	/**
+	 * Fold the value of the given binding into the given compiled rest of the sequence.
+	 * @return The compiled sequence, starting with the binding - it uses the variables used by the binding's expression, and all variables used by the rest except the bound one.
+	 */
+	private Compiled bind(final Binding b, final Compiled rest)
+	{
+		final Variable bound = new Variable(b.var().name(), javaTypeOf(b.var().type()));
+		final Compiled value = compile(b.expression());
+		final List<Variable> vars = new ArrayList<>(value.vars);
+		for (final Variable v : rest.vars)
+			if (!v.equals(bound) && !vars.contains(v)) vars.add(v);
+
+		final List<Variable> restVars = new ArrayList<>();
+		restVars.add(bound);
+		restVars.addAll(vars);
+		final MethodHandle restHandle = rest.over(restVars);
+		final MethodHandle valueHandle = value.over(vars).asType(methodType(bound.type, types(vars)));
+		return new Compiled(MethodHandles.foldArguments(restHandle, valueHandle), vars);
+	}
+
+	private Compiled compile(final BinOpExpr e)
+	{
+		final Compiled left = compile(e.subExpressions().head());
+		final Compiled right = compile(e.subExpressions().last());
+		switch (BinaryOp.from(e.op()))
+		{
+			case MULT : return apply(MULT, list(left, right));
+			case EQL : return apply(eqlFor(left.type(), right.type()), list(left, right));
+			default : throw new IllegalArgumentException("Unsupported binary operator: " + e.op());
+		}
+	}
+
+	private static MethodHandle eqlFor(final Class<?> left, final Class<?> right)
+	{
+		if (left == double.class && right == double.class) return EQL_NUMERIC;
+		else if (left == boolean.class && right == boolean.class) return EQL_BOOLEAN;
+		else return EQL;
+	}
+
+	private Compiled compile(final FunctionExpr fe)
+	{
+		final List<Compiled> args = new ArrayList<>();
+		for (final Expr arg : fe.args())
+			args.add(compile(arg));
+		//an array collects all its arguments, whatever their number
+		final MethodHandle target = fe.function() == BuiltInFunction.ARRAY ? ARRAY.asCollector(Object[].class, args.size()) : handleOf(fe.function());
+		return apply(target, args);
+	}
+
+	private Compiled compile(final LiteralExpr e)
+	{
+		final Class<?> type = javaTypeOf(e.type());
+		return new Compiled(MethodHandles.constant(type, literalValue(e.value(), e.type())), new ArrayList<>());
+	}
+
+	private Compiled compile(final VarExpr e)
+	{
+		final Variable v = new Variable(e.name(), javaTypeOf(e.type()));
+		final List<Variable> vars = new ArrayList<>();
+		vars.add(v);
+		return new Compiled(MethodHandles.identity(v.type), vars);
+	}
+
+	private Compiled compile(final BranchExpr e)
+	{
+		final Class<?> type = javaTypeOf(e.type());
+		final Compiled test = compile(e.test());
+		final Compiled whenTrue = compile(e.whenTrue());
+		final Compiled whenFalse = compile(e.whenFalse());
+		final List<Variable> vars = union(list(test, whenTrue, whenFalse));
+		final MethodType mt = methodType(type, types(vars));
+		return new Compiled(MethodHandles.guardWithTest(test.over(vars).asType(mt.changeReturnType(boolean.class)),
+														whenTrue.over(vars).asType(mt),
+														whenFalse.over(vars).asType(mt)), vars);
+	}
+
+	/**
+	 * Apply the given handle to the values of the given compiled arguments.
+	 * <br/>
+	 * Each argument's handle is collected into the target's argument list, and the variables of all arguments are then merged.
+	 */
+	private static Compiled apply(final MethodHandle target, final List<Compiled> args)
+	{
+		checkArgument(target.type().parameterCount() == args.size(),"Expected " + target.type().parameterCount() + " arguments, but got " + args.size());
+		MethodHandle h = target;
+		for (int i = args.size() - 1; i >= 0; i--)
+		{
+			final MethodHandle arg = args.get(i).handle;
+			h = MethodHandles.collectArguments(h, i, arg.asType(arg.type().changeReturnType(target.type().parameterType(i))));
+		}
+		final List<Variable> vars = union(args);
+		final int[] reorder = new int[h.type().parameterCount()];
+		final Class<?>[] collectedTypes = new Class<?>[reorder.length];
+		int pos = 0;
+		for (final Compiled arg : args)
+			for (final Variable v : arg.vars)
+			{
+				reorder[pos] = vars.indexOf(v);
+				collectedTypes[pos++] = vars.get(vars.indexOf(v)).type;
+			}
+		final Class<?> returnType = target.type().returnType();
+		h = h.asType(methodType(returnType, collectedTypes));
+		return new Compiled(MethodHandles.permuteArguments(h, methodType(returnType, types(vars)), reorder), vars);
+	}
+
+	private static List<Variable> union(final Iterable<Compiled> compiled)
+	{
+		final List<Variable> ret = new ArrayList<>();
+		for (final Compiled c : compiled)
+			for (final Variable v : c.vars)
+				if (!ret.contains(v)) ret.add(v);
+		return ret;
+	}
+
+	private static List<Compiled> list(final Compiled... cs)
+	{
+		final List<Compiled> ret = new ArrayList<>();
+		for (final Compiled c : cs) ret.add(c);
+		return ret;
+	}
+
+	private static Class<?>[] types(final List<Variable> vars)
+	{
+		final Class<?>[] ret = new Class<?>[vars.size()];
+		for (int i = 0; i < ret.length; i++)
+			ret[i] = vars.get(i).type;
+		return ret;
+	}
+
+	private static MethodHandle operation(final String name, final MethodType type)
+	{
+		try
+		{
+			return LOOKUP.findStatic(Operations.class, name, type);
+		}
+		catch (NoSuchMethodException | IllegalAccessException e)
+		{
+			throw new IllegalStateException("Can't find operation " + name + type, e);
+		}
+	}
+
+	/**
+	 * A variable used by a compiled expression. Variables are identified by name.
+	 */
+	private static final class Variable
+	{
+		final String name;
+		final Class<?> type;
+
+		Variable(final String _name, final Class<?> _type)
+		{
+			this.name = _name;
+			this.type = _type;
+		}
+
+		@Override public boolean equals(final Object that) { return that instanceof Variable && name.equals(((Variable)that).name); }
+		@Override public int hashCode() { return name.hashCode(); }
+	}
+
+	/**
+	 * A compiled expression - a method handle taking the values of the variables the expression uses, in the order they're listed.
+	 */
+	private static final class Compiled
+	{
+		final MethodHandle handle;
+		final List<Variable> vars;
+
+		Compiled(final MethodHandle _handle, final List<Variable> _vars)
+		{
+			this.handle = _handle;
+			this.vars = _vars;
+		}
+
+		Class<?> type() { return handle.type().returnType(); }
+
+		/**
+		 * @return The handle, adapted to take the given variables (a superset of the variables it uses), in the given order.
+		 */
+		MethodHandle over(final List<Variable> target)
+		{
+			final int[] reorder = new int[vars.size()];
+			final Class<?>[] types = new Class<?>[vars.size()];
+			for (int i = 0; i < reorder.length; i++)
+			{
+				reorder[i] = target.indexOf(vars.get(i));
+				checkArgument(reorder[i] >= 0,"Variable " + vars.get(i).name + " isn't bound");
+				types[i] = target.get(reorder[i]).type;
+			}
+			final MethodHandle h = handle.asType(methodType(type(), types));
+			return MethodHandles.permuteArguments(h, methodType(type(), types(target)), reorder);
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package ls.tools.excel.eval;
+
+import fj.data.List;
+import ls.tools.excel.FormulaConverter;
+import ls.tools.excel.model.Function;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class FunctionCompilerTest
+{
+
+	private static final double DELTA = 1e-9;
+	private XSSFWorkbook wb;
+	private FunctionCompiler compiler;
+
+	public interface NumericFunction { double apply(double x); }
+	public interface Predicate { boolean test(double x); }
+
+	@Before
+	public void prepareTest() throws InvalidFormatException, IOException
+	{
+		wb = (XSSFWorkbook) WorkbookFactory.create(new FileInputStream("test.xlsx"));
+		compiler = new FunctionCompiler();
+	}
+
+	@Test
+	public void compiledMultiplicationOfTwoCells()
+	{
+		final CompiledFunction mult = compiler.compile(function(wb, "mult"));
+		//parameters are C3, B3
+		assertEquals(12.0, mult.applyAsDouble(3, 4), DELTA);
+		assertEquals(12.0, (Double)mult.apply(3.0, 4.0), DELTA);
+	}
+
+	@Test
+	public void compiledFunctionInvokingOtherFunctions()
+	{
+		final CompiledFunction cubeSqrt = compiler.compile(function(wb, "cube_sqrt"));
+		assertEquals(8.0, cubeSqrt.applyAsDouble(4), DELTA);
+		assertEquals(Math.sqrt(27), cubeSqrt.applyAsDouble(3), DELTA);
+	}
+
+	@Test
+	public void compiledFunctionAsInterface()
+	{
+		final NumericFunction times2 = compiler.compile(function(wb, "times2")).as(NumericFunction.class);
+		assertEquals(10.0, times2.apply(5), DELTA);
+		assertEquals(-3.0, times2.apply(-1.5), DELTA);
+		assertFalse("Implemented without a proxy", Proxy.isProxyClass(times2.getClass()));
+	}
+
+	@Test
+	public void compiledFunctionAsBooleanInterface() throws InvalidFormatException, IOException
+	{
+		final XSSFWorkbook wb2 = (XSSFWorkbook) WorkbookFactory.create(new FileInputStream("test2.xlsx"));
+		final Predicate isEven = compiler.compile(function(wb2, "isEven")).as(Predicate.class);
+		assertTrue(isEven.test(4));
+		assertFalse(isEven.test(7));
+		assertFalse(Proxy.isProxyClass(isEven.getClass()));
+	}
+
+	@Test
+	public void compiledIf() throws InvalidFormatException, IOException
+	{
+		final XSSFWorkbook wb2 = (XSSFWorkbook) WorkbookFactory.create(new FileInputStream("test2.xlsx"));
+		final CompiledFunction isEven = compiler.compile(function(wb2, "isEven"));
+		assertTrue((Boolean)isEven.apply(4.0));
+		assertFalse((Boolean)isEven.apply(7.0));
+	}
+
+	private static Function function(final XSSFWorkbook wb, final String name)
+	{
+		final List<Function> functions = new FormulaConverter().formulasFromNamedCells(wb, name);
+		return functions.last();
+	}
+}
@@ -0,0 +1,125 @@
+package ls.tools.excel.eval;
+
+import fj.data.List;
+import ls.tools.excel.CellType;
+import ls.tools.excel.model.Function;
+import ls.tools.excel.model.Param;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static ls.tools.excel.CellType.BOOLEAN;
+import static ls.tools.excel.CellType.NUMERIC;
+
+/**
+ * A {@link Function} prepared for evaluation by an {@link Interpreter}.
+ * <br/>
+ * Every invocation gets its own {@link Frame}, so an interpreted function can be invoked from several threads.
+ */
+public final class InterpretedFunction
+{
+	private final Function source;
+	private final Node.Kind[] paramKinds;
+	private final int[] paramSlots;
+	private final int numSlots;
+	private final int boolSlots;
+	private final int refSlots;
+	private final Node body;
+
+	InterpretedFunction(final Function _source, final Node.Kind[] _paramKinds, final int[] _paramSlots,
+						final int _numSlots, final int _boolSlots, final int _refSlots, final Node _body)
+	{
+		this.source = _source;
+		this.paramKinds = _paramKinds;
+		this.paramSlots = _paramSlots;
+		this.numSlots = _numSlots;
+		this.boolSlots = _boolSlots;
+		this.refSlots = _refSlots;
+		this.body = _body;
+	}
+
+	public String name() { return source.name(); }
+	public List<Param> parameters() { return source.parameters(); }
+	public CellType returnType() { return source.returnType(); }
+
+	/**
+	 * Evaluate a function with numeric parameters and a numeric result.
+	 * @param args The values of the function's parameters, in order
+	 * @return The function's result.
+	 */
+	public double applyAsDouble(final double... args)
+	{
+		checkState(returnType() == NUMERIC,"Function " + name() + " doesn't return a number");
+		return body.num(numericFrame(args));
+	}
+
+	/**
+	 * Evaluate a function with numeric parameters and a boolean result.
+	 * @param args The values of the function's parameters, in order
+	 * @return The function's result.
+	 */
+	public boolean applyAsBoolean(final double... args)
+	{
+		checkState(returnType() == BOOLEAN,"Function " + name() + " doesn't return a boolean");
+		return body.bool(numericFrame(args));
+	}
+
+	/**
+	 * Evaluate the function with any parameters. Numbers and booleans are unboxed into their slots, and the result is boxed.
+	 * @param args The values of the function's parameters, in order
+	 * @return The function's result.
+	 */
+	public Object apply(final Object... args)
+	{
+		checkArgument(args != null && args.length == paramSlots.length,"Function " + name() + " expects " + paramSlots.length + " arguments");
+		final Frame f = newFrame();
+		for (int i = 0; i < args.length; i++)
+			switch (paramKinds[i])
+			{
+				case NUM : f.nums[paramSlots[i]] = ((Number)args[i]).doubleValue(); break;
+				case BOOL : f.bools[paramSlots[i]] = (Boolean)args[i]; break;
+				default : f.refs[paramSlots[i]] = args[i];
+			}
+		return body.ref(f);
+	}
+
+	private Frame numericFrame(final double[] args)
+	{
+		checkArgument(args != null && args.length == paramSlots.length,"Function " + name() + " expects " + paramSlots.length + " arguments");
+		final Frame f = newFrame();
+		for (int i = 0; i < args.length; i++)
+		{
+			checkState(paramKinds[i] == Node.Kind.NUM,"Parameter " + (i+1) + " of " + name() + " isn't a number");
+			f.nums[paramSlots[i]] = args[i];
+		}
+		return f;
+	}
+
+	private Frame newFrame() { return new Frame(numSlots, boolSlots, refSlots); }
+
+	Node body() { return body; }
+
+	/**
+	 * @return The bindings of the given argument nodes, evaluated in the caller's frame, to this function's parameter slots.
+	 */
+	Node.Binding[] parameterBindings(final Node[] args)
+	{
+		checkArgument(args.length == paramSlots.length,"Function " + name() + " expects " + paramSlots.length + " arguments, but got " + args.length);
+		final Node.Binding[] ret = new Node.Binding[args.length];
+		for (int i = 0; i < args.length; i++)
+			ret[i] = new Node.Binding(paramKinds[i], paramSlots[i], args[i]);
+		return ret;
+	}
+
+	/**
+	 * @return A new frame for invoking this function, with the parameters evaluated in the caller's frame.
+	 */
+	Frame frameFor(final Node.Binding[] params, final Frame caller)
+	{
+		final Frame ret = newFrame();
+		for (final Node.Binding p : params)
+			p.bindInto(caller, ret);
+		return ret;
+	}
+
+	@Override public String toString() { return "interpreted " + source.toString(); }
+}
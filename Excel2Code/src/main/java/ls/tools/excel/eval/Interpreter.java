@@ -0,0 +1,176 @@
+package ls.tools.excel.eval;
+
+import ls.tools.excel.BuiltInFunction;
+import ls.tools.excel.model.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static ls.tools.excel.eval.Operations.literalValue;
+
+/**
+ * Prepares {@link Function functions} of the model for evaluation by a tree-walking interpreter.
+ * <br/>
+ * Preparing a function is a single pass over its body: every variable is given a slot in the frame of its kind (number, boolean or object),
+ * and every expression becomes a {@link Node} reading its variables from their slots.
+ * Nothing is generated or compiled, so a function can be evaluated as soon as it's converted - unlike a {@link FunctionCompiler compiled} function,
+ * which is faster once the JIT has warmed up.
+ * <br/>
+ * An interpreter remembers the functions it already prepared, so functions invoked by several functions are prepared once.
+ * An interpreter isn't thread safe, but the {@link InterpretedFunction prepared functions} are.
+ */
+public final class Interpreter
+{
+	private final Map<Function,InterpretedFunction> prepared = new IdentityHashMap<>();
+
+	/**
+	 * Prepare the given function, and all the functions it invokes, for evaluation.
+	 * @param f The function to prepare
+	 * @return The function, ready to be evaluated.
+	 * @throws IllegalArgumentException If the function can't be evaluated, e.g. it uses a variable that isn't bound or a built-in function that isn't supported.
+	 */
+	public InterpretedFunction prepare(final Function f)
+	{
+		checkArgument(f != null,"Function to prepare can't be null");
+		checkArgument(!(f instanceof BuiltInFunction),"Built-in functions can only be invoked from other functions");
+		InterpretedFunction ret = prepared.get(f);
+		if (ret == null)
+		{
+			ret = new Slots(f).prepare();
+			prepared.put(f, ret);
+		}
+		return ret;
+	}
+
+	/**
+	 * The slots allocated for a single function, and the nodes of its variables.
+	 */
+	private final class Slots
+	{
+		private final Function f;
+		private final Map<String,Node> vars = new HashMap<>();
+		private int numSlots = 0;
+		private int boolSlots = 0;
+		private int refSlots = 0;
+
+		Slots(final Function _f) { this.f = _f; }
+
+		InterpretedFunction prepare()
+		{
+			final List<Param> params = new ArrayList<>();
+			for (final Param p : f.parameters()) params.add(p);
+			final Node.Kind[] paramKinds = new Node.Kind[params.size()];
+			final int[] paramSlots = new int[params.size()];
+			for (int i = 0; i < paramKinds.length; i++)
+			{
+				paramKinds[i] = Node.Kind.of(params.get(i).type());
+				paramSlots[i] = allocate(params.get(i).name(), paramKinds[i]);
+			}
+			final Node body = compile(f.body());
+			return new InterpretedFunction(f, paramKinds, paramSlots, numSlots, boolSlots, refSlots, body);
+		}
+
+		private int allocate(final String name, final Node.Kind k)
+		{
+			final int slot;
+			switch (k)
+			{
+				case NUM : slot = numSlots++; break;
+				case BOOL : slot = boolSlots++; break;
+				default : slot = refSlots++;
+			}
+			vars.put(name, Node.var(k, slot));
+			return slot;
+		}
+
+		private Node compile(final Expr e)
+		{
+			checkArgument(e != null,"Expression can't be null");
+			if (e instanceof Binding) return compile(((Binding)e).expression());
+			else if (e instanceof BinOpExpr) return compile((BinOpExpr)e); //must be considered before CompositeExpr
+			else if (e instanceof FunctionExpr) return compile((FunctionExpr)e);
+			else if (e instanceof LiteralExpr) return compile((LiteralExpr)e);
+			else if (e instanceof VarExpr) return compile((VarExpr)e);
+			else if (e instanceof BranchExpr) return compile((BranchExpr)e);
+			else if (e instanceof CompositeExpr) return compile((CompositeExpr)e);
+			else throw new IllegalArgumentException("Can't identify type of expression: " + e.getClass().getCanonicalName());
+		}
+
+		private Node compile(final BinOpExpr e)
+		{
+			final Node left = compile(e.subExpressions().head());
+			final Node right = compile(e.subExpressions().last());
+			switch (BinaryOp.from(e.op()))
+			{
+				case MULT : return Node.mult(left, right);
+				case EQL : return Node.eql(left, right);
+				default : throw new IllegalArgumentException("Unsupported binary operator: " + e.op());
+			}
+		}
+
+		private Node compile(final FunctionExpr fe)
+		{
+			final List<Node> args = new ArrayList<>();
+			for (final Expr arg : fe.args())
+				args.add(compile(arg));
+			if (!(fe.function() instanceof BuiltInFunction))
+				return Node.call(Interpreter.this.prepare(fe.function()), args.toArray(new Node[args.size()]));
+			final BuiltInFunction builtIn = (BuiltInFunction)fe.function();
+			checkArgument(builtIn.isVariadic() || args.size() == builtIn.parameters().length(),builtIn.name() + " expects " + builtIn.parameters().length() + " arguments");
+			switch (builtIn)
+			{
+				case SQRT : return Node.sqrt(args.get(0));
+				case MOD : return Node.mod(args.get(0), args.get(1));
+				case IF : return Node.ifThenElse(args.get(0), args.get(1), args.get(2));
+				case SUM : return Node.aggregate(args.get(0), Operations::sum);
+				case AVERAGE : return Node.aggregate(args.get(0), Operations::average);
+				case MIN : return Node.aggregate(args.get(0), Operations::min);
+				case MAX : return Node.aggregate(args.get(0), Operations::max);
+				case COUNT : return Node.aggregate(args.get(0), Operations::count);
+				case ARRAY : return Node.array(args.toArray(new Node[args.size()]));
+				default : throw new IllegalArgumentException("Unsupported built-in function: " + builtIn.name());
+			}
+		}
+
+		private Node compile(final LiteralExpr e)
+		{
+			return Node.constant(Node.Kind.of(e.type()), literalValue(e.value(), e.type()));
+		}
+
+		private Node compile(final VarExpr e)
+		{
+			final Node ret = vars.get(e.name());
+			checkArgument(ret != null,"Variable " + e.name() + " used in function " + f.name() + " isn't bound");
+			return ret;
+		}
+
+		private Node compile(final BranchExpr e)
+		{
+			return Node.branch(compile(e.test()), compile(e.whenTrue()), compile(e.whenFalse()), Node.Kind.of(e.type()));
+		}
+
+		/**
+		 * The bindings of a sequence are stored in new slots, in order; its value is the value of its last expression.
+		 */
+		private Node compile(final CompositeExpr seq)
+		{
+			checkArgument(seq.subExpressions().isNotEmpty(),"Can't evaluate an empty sequence");
+			final List<Node.Binding> bindings = new ArrayList<>();
+			for (final Expr e : seq.subExpressions())
+				if (e instanceof Binding)
+				{
+					final Binding b = (Binding)e;
+					final Node value = compile(b.expression());
+					final Node.Kind k = Node.Kind.of(b.var().type());
+					bindings.add(new Node.Binding(k, allocate(b.var().name(), k), value));
+				}
+			final Expr last = seq.subExpressions().last();
+			final Node result = compile(last instanceof Binding ? ((Binding)last).var() : last);
+			return Node.sequence(bindings.toArray(new Node.Binding[bindings.size()]), result);
+		}
+	}
+}
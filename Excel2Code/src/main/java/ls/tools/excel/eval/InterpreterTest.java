@@ -0,0 +1,78 @@
+package ls.tools.excel.eval;
+
+import fj.data.List;
+import ls.tools.excel.FormulaConverter;
+import ls.tools.excel.model.Function;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class InterpreterTest
+{
+
+	private static final double DELTA = 1e-9;
+	private XSSFWorkbook wb;
+	private Interpreter interpreter;
+
+	@Before
+	public void prepareTest() throws InvalidFormatException, IOException
+	{
+		wb = (XSSFWorkbook) WorkbookFactory.create(new FileInputStream("test.xlsx"));
+		interpreter = new Interpreter();
+	}
+
+	@Test
+	public void interpretedMultiplicationOfTwoCells()
+	{
+		final InterpretedFunction mult = interpreter.prepare(function(wb, "mult"));
+		//parameters are C3, B3
+		assertEquals(12.0, mult.applyAsDouble(3, 4), DELTA);
+		assertEquals(12.0, (Double)mult.apply(3.0, 4.0), DELTA);
+	}
+
+	@Test
+	public void interpretedFunctionInvokingOtherFunctions()
+	{
+		final InterpretedFunction cubeSqrt = interpreter.prepare(function(wb, "cube_sqrt"));
+		assertEquals(8.0, cubeSqrt.applyAsDouble(4), DELTA);
+	}
+
+	@Test
+	public void interpretedIf() throws InvalidFormatException, IOException
+	{
+		final XSSFWorkbook wb2 = (XSSFWorkbook) WorkbookFactory.create(new FileInputStream("test2.xlsx"));
+		final InterpretedFunction isEven = interpreter.prepare(function(wb2, "isEven"));
+		assertTrue((Boolean)isEven.apply(4.0));
+		assertFalse((Boolean)isEven.apply(-7.0));
+	}
+
+	@Test
+	public void interpreterAgreesWithCompiler()
+	{
+		final FunctionCompiler compiler = new FunctionCompiler();
+		for (final String name : new String[] { "square", "cube", "cube_sqrt", "times2" })
+		{
+			final Function f = function(wb, name);
+			final InterpretedFunction interpreted = interpreter.prepare(f);
+			final CompiledFunction compiled = compiler.compile(f);
+			for (double x = -10; x <= 10; x += 0.5)
+				if (x >= 0 || !"cube_sqrt".equals(name))
+					assertEquals(name + "(" + x + ")", compiled.applyAsDouble(x), interpreted.applyAsDouble(x), DELTA);
+		}
+	}
+
+	private static Function function(final XSSFWorkbook wb, final String name)
+	{
+		final List<Function> functions = new FormulaConverter().formulasFromNamedCells(wb, name);
+		return functions.last();
+	}
+}
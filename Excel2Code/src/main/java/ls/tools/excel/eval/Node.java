@@ -0,0 +1,230 @@
+package ls.tools.excel.eval;
+
+import ls.tools.excel.CellType;
+
+import java.util.function.ToDoubleFunction;
+
+/**
+ * A node of an interpreted expression tree.
+ * <br/>
+ * Nodes are evaluated in a {@link Frame}, reading their variables from its slots - slot indices are resolved when the tree is built, never looked up by name.
+ * Every node can be evaluated as a number, a boolean or an object. A node is evaluated unboxed as its own {@link Kind kind};
+ * evaluating it as another kind converts its value.
+ */
+abstract class Node
+{
+	/**
+	 * The kind of value a node evaluates to, which also decides the kind of slot a variable is kept in.
+	 */
+	enum Kind
+	{
+		NUM, BOOL, REF;
+
+		static Kind of(final CellType t)
+		{
+			switch (t)
+			{
+				case NUMERIC : return NUM;
+				case BOOLEAN : return BOOL;
+				default : return REF;
+			}
+		}
+	}
+
+	abstract Kind kind();
+
+	double num(final Frame f) { return ((Number)ref(f)).doubleValue(); }
+	boolean bool(final Frame f) { return (Boolean)ref(f); }
+	Object ref(final Frame f)
+	{
+		switch (kind())
+		{
+			case NUM : return num(f);
+			case BOOL : return bool(f);
+			default : throw new IllegalStateException("Node of kind " + kind() + " must evaluate its value");
+		}
+	}
+
+	abstract static class NumNode extends Node
+	{
+		@Override final Kind kind() { return Kind.NUM; }
+		@Override abstract double num(Frame f);
+		@Override final boolean bool(final Frame f) { throw new IllegalStateException("A number isn't a boolean"); }
+	}
+
+	abstract static class BoolNode extends Node
+	{
+		@Override final Kind kind() { return Kind.BOOL; }
+		@Override abstract boolean bool(Frame f);
+		@Override final double num(final Frame f) { throw new IllegalStateException("A boolean isn't a number"); }
+	}
+
+	abstract static class RefNode extends Node
+	{
+		@Override final Kind kind() { return Kind.REF; }
+		@Override abstract Object ref(Frame f);
+	}
+
+	//---- variables and constants
+
+	static Node var(final Kind k, final int slot)
+	{
+		switch (k)
+		{
+			case NUM : return new NumNode() { @Override double num(final Frame f) { return f.nums[slot]; } };
+			case BOOL : return new BoolNode() { @Override boolean bool(final Frame f) { return f.bools[slot]; } };
+			default : return new RefNode() { @Override Object ref(final Frame f) { return f.refs[slot]; } };
+		}
+	}
+
+	static Node constant(final Kind k, final Object value)
+	{
+		switch (k)
+		{
+			case NUM :
+				final double d = ((Number)value).doubleValue();
+				return new NumNode() { @Override double num(final Frame f) { return d; } };
+			case BOOL :
+				final boolean b = (Boolean)value;
+				return new BoolNode() { @Override boolean bool(final Frame f) { return b; } };
+			default : return new RefNode() { @Override Object ref(final Frame f) { return value; } };
+		}
+	}
+
+	//---- operators and built-in functions
+
+	static Node mult(final Node a, final Node b)
+	{
+		return new NumNode() { @Override double num(final Frame f) { return Operations.mult(a.num(f), b.num(f)); } };
+	}
+
+	static Node eql(final Node a, final Node b)
+	{
+		if (a.kind() == Kind.NUM && b.kind() == Kind.NUM)
+			return new BoolNode() { @Override boolean bool(final Frame f) { return a.num(f) == b.num(f); } };
+		else if (a.kind() == Kind.BOOL && b.kind() == Kind.BOOL)
+			return new BoolNode() { @Override boolean bool(final Frame f) { return a.bool(f) == b.bool(f); } };
+		else return new BoolNode() { @Override boolean bool(final Frame f) { return Operations.eql(a.ref(f), b.ref(f)); } };
+	}
+
+	static Node sqrt(final Node x)
+	{
+		return new NumNode() { @Override double num(final Frame f) { return Operations.sqrt(x.num(f)); } };
+	}
+
+	static Node mod(final Node x, final Node divisor)
+	{
+		return new NumNode() { @Override double num(final Frame f) { return Operations.mod(x.num(f), divisor.num(f)); } };
+	}
+
+	/**
+	 * An aggregate over a range - one of the {@link Operations} taking a <code>double[]</code>.
+	 */
+	static Node aggregate(final Node range, final ToDoubleFunction<double[]> op)
+	{
+		return new NumNode() { @Override double num(final Frame f) { return op.applyAsDouble((double[])range.ref(f)); } };
+	}
+
+	/**
+	 * The array of the numbers among the values of the given nodes.
+	 */
+	static Node array(final Node[] values)
+	{
+		return new RefNode()
+		{
+			@Override Object ref(final Frame f)
+			{
+				final Object[] ret = new Object[values.length];
+				for (int i = 0; i < ret.length; i++)
+					ret[i] = values[i].ref(f);
+				return Operations.array(ret);
+			}
+		};
+	}
+
+	static Node ifThenElse(final Node test, final Node whenTrue, final Node whenFalse)
+	{
+		return new RefNode() { @Override Object ref(final Frame f) { return Operations.ifThenElse(test.bool(f), whenTrue.ref(f), whenFalse.ref(f)); } };
+	}
+
+	/**
+	 * A branch evaluates only one of its sides.
+	 */
+	static Node branch(final Node test, final Node whenTrue, final Node whenFalse, final Kind k)
+	{
+		switch (k)
+		{
+			case NUM : return new NumNode() { @Override double num(final Frame f) { return test.bool(f) ? whenTrue.num(f) : whenFalse.num(f); } };
+			case BOOL : return new BoolNode() { @Override boolean bool(final Frame f) { return test.bool(f) ? whenTrue.bool(f) : whenFalse.bool(f); } };
+			default : return new RefNode() { @Override Object ref(final Frame f) { return test.bool(f) ? whenTrue.ref(f) : whenFalse.ref(f); } };
+		}
+	}
+
+	//---- sequences and invocations
+
+	/**
+	 * Evaluate the given bindings in order, storing each value in its slot, then evaluate the result.
+	 */
+	static Node sequence(final Binding[] bindings, final Node result)
+	{
+		switch (result.kind())
+		{
+			case NUM : return new NumNode() { @Override double num(final Frame f) { bindAll(bindings, f); return result.num(f); } };
+			case BOOL : return new BoolNode() { @Override boolean bool(final Frame f) { bindAll(bindings, f); return result.bool(f); } };
+			default : return new RefNode() { @Override Object ref(final Frame f) { bindAll(bindings, f); return result.ref(f); } };
+		}
+	}
+
+	private static void bindAll(final Binding[] bindings, final Frame f)
+	{
+		for (final Binding b : bindings)
+			b.bind(f);
+	}
+
+	/**
+	 * Invoke an interpreted function: the arguments are evaluated in the caller's frame, into the parameter slots of a new frame for the callee.
+	 */
+	static Node call(final InterpretedFunction callee, final Node[] args)
+	{
+		final Binding[] params = callee.parameterBindings(args);
+		final Node body = callee.body();
+		switch (body.kind())
+		{
+			case NUM : return new NumNode() { @Override double num(final Frame f) { return body.num(callee.frameFor(params, f)); } };
+			case BOOL : return new BoolNode() { @Override boolean bool(final Frame f) { return body.bool(callee.frameFor(params, f)); } };
+			default : return new RefNode() { @Override Object ref(final Frame f) { return body.ref(callee.frameFor(params, f)); } };
+		}
+	}
+
+	/**
+	 * Stores the value of a node in a slot.
+	 */
+	static final class Binding
+	{
+		private final Kind kind;
+		private final int slot;
+		private final Node value;
+
+		Binding(final Kind _kind, final int _slot, final Node _value)
+		{
+			this.kind = _kind;
+			this.slot = _slot;
+			this.value = _value;
+		}
+
+		void bind(final Frame f) { bindInto(f, f); }
+
+		/**
+		 * Evaluate the value in one frame, storing it in a slot of another.
+		 */
+		void bindInto(final Frame from, final Frame to)
+		{
+			switch (kind)
+			{
+				case NUM : to.nums[slot] = value.num(from); break;
+				case BOOL : to.bools[slot] = value.bool(from); break;
+				default : to.refs[slot] = value.ref(from);
+			}
+		}
+	}
+}
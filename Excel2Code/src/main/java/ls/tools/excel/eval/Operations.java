@@ -0,0 +1,131 @@
+package ls.tools.excel.eval;
+
+import ls.tools.excel.CellType;
+
+/**
+ * The runtime operations used by evaluated functions: binary operators, built-in functions and the mapping of cell types to java types.
+ * <br/>
+ * The value operations are public, so expressions can be computed ahead of time (e.g. when folding constants) with the same semantics.
+ */
+public final class Operations
+{
+	private Operations() {}
+
+	/**
+	 * @return The java type used for values of the given cell type: <code>double</code> for numbers, <code>boolean</code> for booleans,
+	 * {@link String} for strings, <code>double[]</code> for ranges, and {@link Object} for anything else (e.g. the result of an <code>IF</code>).
+	 */
+	static Class<?> javaTypeOf(final CellType t)
+	{
+		switch (t)
+		{
+			case NUMERIC : return double.class;
+			case BOOLEAN : return boolean.class;
+			case STRING : return String.class;
+			case RANGE : return double[].class;
+			default : return Object.class;
+		}
+	}
+
+	/**
+	 * @return The value of a literal, with the given type, as written in the model.
+	 */
+	public static Object literalValue(final String value, final CellType t)
+	{
+		switch (t)
+		{
+			case NUMERIC : return Double.parseDouble(value);
+			case BOOLEAN : return Boolean.parseBoolean(value);
+			default : return value;
+		}
+	}
+
+	public static double mult(final double a, final double b) { return a * b; }
+
+	static boolean eql(final double a, final double b) { return a == b; }
+
+	static boolean eql(final boolean a, final boolean b) { return a == b; }
+
+	/**
+	 * Equality of any two values, as in Excel: numbers by value, strings ignoring case.
+	 */
+	public static boolean eql(final Object a, final Object b)
+	{
+		if (a instanceof Number && b instanceof Number) return ((Number)a).doubleValue() == ((Number)b).doubleValue();
+		if (a instanceof String && b instanceof String) return ((String)a).equalsIgnoreCase((String)b);
+		return a == null ? b == null : a.equals(b);
+	}
+
+	public static double sqrt(final double x) { return Math.sqrt(x); }
+
+	/**
+	 * Excel's MOD - the result has the sign of the divisor.
+	 */
+	public static double mod(final double x, final double divisor)
+	{
+		if (divisor == 0) throw new ArithmeticException("MOD: division by zero");
+		return x - divisor * Math.floor(x / divisor);
+	}
+
+	public static double sum(final double[] values)
+	{
+		double ret = 0;
+		for (final double v : values) ret += v;
+		return ret;
+	}
+
+	/**
+	 * Excel's AVERAGE - the average of no numbers is a division by zero.
+	 */
+	public static double average(final double[] values)
+	{
+		if (values.length == 0) throw new ArithmeticException("AVERAGE: division by zero");
+		return sum(values) / values.length;
+	}
+
+	/**
+	 * Excel's MIN - the minimum of no numbers is 0.
+	 */
+	public static double min(final double[] values)
+	{
+		if (values.length == 0) return 0;
+		double ret = values[0];
+		for (int i = 1; i < values.length; i++)
+			if (values[i] < ret) ret = values[i];
+		return ret;
+	}
+
+	/**
+	 * Excel's MAX - the maximum of no numbers is 0.
+	 */
+	public static double max(final double[] values)
+	{
+		if (values.length == 0) return 0;
+		double ret = values[0];
+		for (int i = 1; i < values.length; i++)
+			if (values[i] > ret) ret = values[i];
+		return ret;
+	}
+
+	/**
+	 * Excel's COUNT - a range holds only the numbers in it, so they're all counted.
+	 */
+	public static double count(final double[] values) { return values.length; }
+
+	/**
+	 * The numbers among the given values, in order - as a range holds only the numbers in its cells.
+	 */
+	public static double[] array(final Object... values)
+	{
+		int count = 0;
+		for (final Object v : values)
+			if (v instanceof Double) count++;
+		final double[] ret = new double[count];
+		int i = 0;
+		for (final Object v : values)
+			if (v instanceof Double) ret[i++] = (Double)v;
+		return ret;
+	}
+
+	static Object ifThenElse(final boolean test, final Object whenTrue, final Object whenFalse) { return test ? whenTrue : whenFalse; }
+}
@@ -0,0 +1,50 @@
+package ls.tools.excel.model;
+
+import fj.data.List;
+import ls.tools.excel.CellType;
+
+import static com.google.common.base.Objects.equal;
+import static com.google.common.base.Preconditions.checkArgument;
+import static fj.data.List.list;
+import static java.util.Objects.hash;
+import static ls.tools.fj.Util.*;
+
+/**
+* An implementation of {@link BinOpExpr}. The hash code is computed once, when created.
+*/
+final class BinOpExprImpl implements BinOpExpr
+{
+    private final Expr e1;
+    private final BinaryOp op;
+    private final Expr e2;
+    private final int hash;
+
+    BinOpExprImpl(final Expr _e1, final BinaryOp _op, final Expr _e2)
+    {
+        checkArgument(_e1 != null && _e2 != null,"Operands of a binary operator can't be null");
+        checkArgument(_op != null,"Binary operator can't be null");
+        this.e1 = _e1;
+        this.op = _op;
+        this.e2 = _e2;
+        this.hash = hash(type(),op()) + hashOf(subExpressions());
+    }
+
+    @Override public CellType type() { return op.type(); }
+    @Override public List<Expr> subExpressions() { return list(e1,e2); }
+    @Override public String op() { return op.operator(); }
+
+    @Override public boolean equals(final Object that)
+    {
+        if (this == that) return true;
+        if (that == null) return false;
+        if (!(that instanceof BinOpExpr)) return false;
+        if (that instanceof BinOpExprImpl && hash != that.hashCode()) return false;
+        final BinOpExpr boe = (BinOpExpr)that;
+        return 	equal(type(),boe.type()) &&
+                equal(op(),boe.op()) &&
+                listsEql(this.subExpressions(),boe.subExpressions(),nullCheckingEqualPredicate());
+    }
+
+    @Override public int hashCode() { return hash; }
+    @Override public String toString() { return "(" + e1.toString() + ") " + op() + " (" + e2.toString() + ")"; }
+}
@@ -23,4 +23,16 @@ public enum BinaryOp
 	
 	public CellType type() { return type; }
 	public String operator() { return op; }
+
+	/**
+	 * @param operator The operator symbol, as returned by {@link #operator()}
+	 * @return The binary operator with the given symbol.
+	 */
+	public static BinaryOp from(final String operator)
+	{
+		for (BinaryOp v : values())
+			if (v.op.equals(operator))
+				return v;
+		throw new IllegalArgumentException("Unrecognized binary operator: " + operator);
+	}
 }
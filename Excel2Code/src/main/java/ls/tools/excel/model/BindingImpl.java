@@ -0,0 +1,41 @@
+package ls.tools.excel.model;
+
+import ls.tools.excel.CellType;
+
+import static com.google.common.base.Objects.equal;
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.hash;
+
+/**
+* An implementation of {@link Binding}. The hash code is computed once, when created.
+*/
+final class BindingImpl implements Binding
+{
+    private final VarExpr var;
+    private final Expr expr;
+    private final int hash;
+
+    BindingImpl(final VarExpr _var, final Expr _expr)
+    {
+        checkArgument(_var != null,"Var can't be null for binding");
+        checkArgument(_expr != null,"expression can't be null for binding");
+        this.var = _var;
+        this.expr = _expr;
+        this.hash = hash(_var) + hash(_expr);
+    }
+
+    @Override public VarExpr var() { return var; }
+    @Override public Expr expression() { return expr; }
+    @Override public CellType type() { return expression().type(); }
+
+    @Override public boolean equals(final Object that)
+    {
+        if (this == that) return true;
+        if (that instanceof BindingImpl && hash != that.hashCode()) return false;
+        return that instanceof Binding &&
+                equal(var(),((Binding)that).var()) && equal(expression(),((Binding)that).expression());
+    }
+
+    @Override public int hashCode() { return hash; }
+    @Override public String toString() { return var().toString() + " = " + expression().toString(); }
+}
@@ -0,0 +1,56 @@
+package ls.tools.excel.model;
+
+import ls.tools.excel.CellType;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.String.format;
+import static java.util.Objects.hash;
+import static ls.tools.excel.CellType.BOOLEAN;
+import static ls.tools.excel.CellType.FORMULA;
+
+/**
+* An implementation of {@link BranchExpr}. The hash code is computed once, when created.
+*/
+final class BranchExprImpl implements BranchExpr
+{
+    private final Expr test;
+    private final Expr whenTrue;
+    private final Expr whenFalse;
+    private final int hash;
+
+    BranchExprImpl(final Expr _test, final Expr _whenTrue, final Expr _whenFalse)
+    {
+        checkArgument(_test != null,"Test expression can't be null");
+        checkArgument(_test.type().equals(BOOLEAN) || _test.type().equals(FORMULA),"Test expression must be boolean");
+        checkArgument(_whenTrue != null,"True expression can't be null");
+        checkArgument(_whenFalse != null,"False expression can't be null");
+        this.test = _test;
+        this.whenTrue = _whenTrue;
+        this.whenFalse = _whenFalse;
+        this.hash = hash(_test) + hash(_whenTrue) + hash(_whenFalse);
+    }
+
+    @Override public Expr test() { return test; }
+    @Override public Expr whenTrue() { return whenTrue; }
+    @Override public Expr whenFalse() { return whenFalse; }
+    /**
+     * The type of both branches, if they have the same type. Otherwise, the type is only known when the branch is evaluated.
+     */
+    @Override public CellType type() { return whenTrue().type().equals(whenFalse().type()) ? whenTrue().type() : FORMULA; }
+
+    @Override public boolean equals(final Object that)
+    {
+        if (this == that) return true;
+        if (that instanceof BranchExprImpl && hash != that.hashCode()) return false;
+        return that instanceof BranchExpr &&
+                test().equals(((BranchExpr)that).test()) &&
+                whenTrue().equals(((BranchExpr)that).whenTrue()) &&
+                whenFalse().equals(((BranchExpr)that).whenFalse());
+    }
+
+    @Override public int hashCode() { return hash; }
+    @Override public String toString()
+    {
+        return format("if (%1$s) then (%2$s) else (%3$s)", test().toString(),whenTrue().toString(),whenFalse().toString());
+    }
+}
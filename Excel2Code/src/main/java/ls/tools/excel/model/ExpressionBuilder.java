@@ -3,19 +3,27 @@ package ls.tools.excel.model;
 import fj.data.List;
 import ls.tools.excel.CellType;
 
-import static com.google.common.base.Objects.equal;
 import static com.google.common.base.Preconditions.checkArgument;
 import static fj.data.List.list;
-import static java.lang.String.format;
-import static java.util.Arrays.deepHashCode;
-import static java.util.Objects.hash;
 import static ls.tools.excel.CellType.BOOLEAN;
+import static ls.tools.excel.CellType.FORMULA;
 import static ls.tools.fj.Util.*;
 
 /**
+ * Every expression created by the builder, except literals, is passed through {@link #canonical(Expr)} before it's returned.
  */
 public interface ExpressionBuilder {
 
+    /**
+     * A hook for sharing structurally equal expressions.
+     * <br/>
+     * By default the given expression is returned as is. Builders that want to hash-cons expressions
+     * return an equal expression they already created instead, e.g. using an {@link ExpressionInterner}.
+     * @param e A newly created expression
+     * @return The expression to use in place of the given expression - equal to it, and of the same class.
+     */
+    default <T extends Expr> T canonical(final T e) { return e; }
+
     public interface VarBuilder { VarExpr ofType(CellType _t); }
 
     /**
@@ -24,30 +32,7 @@ public interface ExpressionBuilder {
     default VarBuilder var(final String _n)
     {
         checkArgument(notEmpty(_n),"Variable name can't be empty");
-        return new VarBuilder() {
-
-            final String n = _n;
-
-            @Override public VarExpr ofType(final CellType _t)
-            {
-                checkArgument(_t != null,"Type can't be null");
-                return new VarExpr() {
-
-                    @Override public CellType type() { return _t; }
-                    @Override public String name() { return n; }
-                    @Override public boolean equals(final Object that)
-                    {
-                        return this == that ||
-                                that != null &&
-                                        that instanceof VarExpr &&
-                                        equal(type(),((VarExpr)that).type()) && equal(name(),((VarExpr)that).name());
-                    }
-
-                    @Override public int hashCode() { return hash(this.name(),this.type()); }
-                    @Override public String toString() { return name() + " : " + type().toString(); }
-                };
-            }
-        };
+        return _t -> canonical(new VarExprImpl(_n,_t));
     }
 
     //----
@@ -76,31 +61,7 @@ public interface ExpressionBuilder {
 
     //----
 
-    default BinOpExpr binOp(final Expr e1, final BinaryOp op, final Expr e2)
-    {
-        return new BinOpExpr()
-        {
-
-            @Override public CellType type() { return op.type(); }
-            @Override public List<Expr> subExpressions() { return list(e1,e2); }
-            @Override public String op() { return op.operator(); }
-            @Override public boolean equals(final Object that)
-            {
-                if (this == that) return true;
-                if (that == null) return false;
-                if (!(that instanceof BinOpExpr)) return false;
-                final BinOpExpr boe = (BinOpExpr)that;
-                return 	equal(type(),boe.type()) &&
-                        equal(op(),boe.op()) &&
-                        listsEql(this.subExpressions(),boe.subExpressions(),nullCheckingEqualPredicate());
-            }
-
-            @Override public int hashCode() { return hash(type(),op()) + deepHashCode(subExpressions().toArray().array()); }
-            @Override public String toString() { return "(" + e1.toString() + ") " + op() + " (" + e2.toString() + ")"; }
-
-
-        };
-    }
+    default BinOpExpr binOp(final Expr e1, final BinaryOp op, final Expr e2) { return canonical(new BinOpExprImpl(e1,op,e2)); }
 
     //----
 
@@ -115,8 +76,8 @@ public interface ExpressionBuilder {
         checkArgument(func != null,"Function can't be null");
         return new FunctionInvocationBuilder()
         {
-            @Override public FunctionExpr withArgs(final Expr... _args) { return new FunctionExprImpl(func, list(_args)); }
-            @Override public FunctionExpr withArgs(final List<? extends Expr> args) { return new FunctionExprImpl(func, args); }
+            @Override public FunctionExpr withArgs(final Expr... _args) { return canonical(new FunctionExprImpl(func, list(_args))); }
+            @Override public FunctionExpr withArgs(final List<? extends Expr> args) { return canonical(new FunctionExprImpl(func, args)); }
         };
     }
 
@@ -130,33 +91,14 @@ public interface ExpressionBuilder {
     default BindBuilder bindingOf(final VarExpr varExpr)
     {
         checkArgument(varExpr != null,"Var can't be null for binding");
-        return expr ->
-            {
-                checkArgument(expr != null,"expression can't be null for binding");
-                return new Binding()
-                {
-                    @Override public VarExpr var() { return varExpr;}
-                    @Override public Expr expression() { return expr; }
-                    @Override public CellType type() { return expression().type(); }
-                    @Override public boolean equals(Object that)
-                    {
-                        return this == that ||
-                                that != null &&
-                                that instanceof Binding &&
-                                equal(var(),((Binding)that).var()) && equal(expression(),((Binding)that).expression());
-                    }
-
-                    @Override public int hashCode() { return hash(var()) + hash(expression()); }
-                    @Override public String toString() { return var().toString() + " = " + expression().toString(); }
-                };
-            };
+        return expr -> canonical(new BindingImpl(varExpr,expr));
     }
 
     //----
 
-    default CompositeExpr sequence(final Expr... expressions) { return new CompositeSequence(list(expressions)); }
+    default CompositeExpr sequence(final Expr... expressions) { return canonical(new CompositeSequence(list(expressions))); }
 
-    default CompositeExpr sequence(final List<Expr> expressions) { return new CompositeSequence(expressions); }
+    default CompositeExpr sequence(final List<Expr> expressions) { return canonical(new CompositeSequence(expressions)); }
 
     //----
     public interface BranchBuilder
@@ -168,7 +110,7 @@ public interface ExpressionBuilder {
     default BranchBuilder test(final Expr testExpr)
     {
         checkArgument(testExpr != null,"Test expression can't be null");
-        checkArgument(testExpr.type().equals(BOOLEAN),"Test expression must boolean");
+        checkArgument(testExpr.type().equals(BOOLEAN) || testExpr.type().equals(FORMULA),"Test expression must be boolean, or only known when evaluated");
 
         return new BranchBuilder() {
 
@@ -180,35 +122,8 @@ public interface ExpressionBuilder {
                 return this;
             }
 
-            @Override public BranchExpr ifFalse(final Expr e)
-            {
-                checkArgument(e != null,"False expression can't be null");
-                checkArgument(e.type().equals(trueExpr.type()),"True and False result expression must have the same type");
-                return new BranchExpr() {
-
-                    @Override public Expr test() { return testExpr; }
-                    @Override public Expr whenTrue() { return trueExpr; }
-                    @Override public Expr whenFalse() { return e; }
-                    @Override
-                    public boolean equals(Object that)
-                    {
-                        return this == that ||
-                                that != null &&
-                                that instanceof BranchExpr &&
-                                test().equals(((BranchExpr)that).test()) &&
-                                whenTrue().equals(((BranchExpr)that).whenTrue()) &&
-                                whenFalse().equals(((BranchExpr)that).whenFalse());
-                    }
-
-                    @Override public int hashCode() { return hash(test()) + hash(whenTrue()) + hash(whenFalse()); }
-                    @Override public String toString()
-                    {
-                        return format("if (%1$s) then (%2$s) else (%3$s)", test().toString(),whenTrue().toString(),whenFalse().toString());
-                    }
-
-                    @Override public CellType type() { return whenTrue().type(); } //must be the same as the false branch;
-                };
-            }};
+            @Override public BranchExpr ifFalse(final Expr e) { return canonical(new BranchExprImpl(testExpr,trueExpr,e)); }
+        };
     }
 
 }
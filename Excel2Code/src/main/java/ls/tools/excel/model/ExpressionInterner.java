@@ -0,0 +1,32 @@
+package ls.tools.excel.model;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A table of canonical expressions, used to hash-cons expressions: structurally equal expressions are replaced by a single instance.
+ * <br/>
+ * Expressions built bottom up through an interner share their sub expressions as well, so comparing them is usually a reference comparison.
+ * An interner can be shared between threads.
+ * @see ExpressionBuilder#canonical(Expr)
+ */
+public final class ExpressionInterner
+{
+    private final Map<Expr,Expr> canonicals = new ConcurrentHashMap<>();
+
+    /**
+     * @param e The expression to intern
+     * @return The first expression interned that's equal to the given expression and of the same class, or the given expression if there's none.
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Expr> T intern(final T e)
+    {
+        checkArgument(e != null,"Can't intern a null expression");
+        final Expr ret = canonicals.putIfAbsent(e, e);
+        return ret != null && ret.getClass() == e.getClass() ? (T)ret : e;
+    }
+
+    public int size() { return canonicals.size(); }
+}
@@ -0,0 +1,65 @@
+package ls.tools.excel.model;
+
+import org.junit.Test;
+
+import static fj.data.List.list;
+import static ls.tools.excel.CellType.BOOLEAN;
+import static ls.tools.excel.CellType.NUMERIC;
+import static ls.tools.excel.model.BinaryOp.MULT;
+import static ls.tools.excel.model.Functions.createFunction;
+import static ls.tools.excel.model.Functions.param;
+import static org.junit.Assert.*;
+
+public final class ExpressionInternerTest
+{
+
+	private final ExpressionInterner interner = new ExpressionInterner();
+	private final ExpressionBuilder interning = new ExpressionBuilder() {
+		@Override public <T extends Expr> T canonical(final T e) { return interner.intern(e); }
+	};
+	private final ExpressionBuilder plain = new ExpressionBuilder() {};
+
+	@Test
+	public void equalExpressionsAreInternedToTheSameInstance()
+	{
+		final Expr e1 = interning.binOp(interning.var("B3").ofType(NUMERIC), MULT, interning.numericLiteral(2));
+		final Expr e2 = interning.binOp(interning.var("B3").ofType(NUMERIC), MULT, interning.numericLiteral(2));
+		assertSame(e1, e2);
+		final Binding b1 = interning.bindingOf(interning.var("_0").ofType(NUMERIC)).to(e1);
+		final Binding b2 = interning.bindingOf(interning.var("_0").ofType(NUMERIC)).to(e2);
+		assertSame(b1, b2);
+		assertSame(b1.var(), b2.var());
+	}
+
+	@Test
+	public void internedExpressionsEqualPlainOnes()
+	{
+		final Expr interned = interning.sequence(interning.bindingOf(interning.var("_0").ofType(NUMERIC)).to(interning.numericLiteral(1)));
+		final Expr built = plain.sequence(plain.bindingOf(plain.var("_0").ofType(NUMERIC)).to(plain.numericLiteral(1)));
+		assertNotSame(interned, built);
+		assertEquals(interned, built);
+		assertEquals(interned.hashCode(), built.hashCode());
+	}
+
+	@Test
+	public void booleanLiteralsAreEqualIgnoringCase()
+	{
+		final LiteralExpr upper = plain.literal("TRUE").ofType(BOOLEAN);
+		final LiteralExpr lower = plain.booleanLiteral(true);
+		assertEquals(upper, lower);
+		assertEquals(upper.hashCode(), lower.hashCode());
+		assertNotEquals(plain.literal("2").ofType(NUMERIC), plain.literal("2").ofType(BOOLEAN));
+	}
+
+	@Test
+	public void invocationsOfDifferentFunctionsOfTheSameNameAreNotInternedTogether()
+	{
+		final Function before = createFunction("f", list(param("X", NUMERIC)), plain.var("X").ofType(NUMERIC), NUMERIC);
+		final Function after = createFunction("f", list(param("X", NUMERIC)), plain.numericLiteral(2), NUMERIC);
+		final Expr invokesBefore = interning.invocationOf(before).withArgs(interning.numericLiteral(1));
+		final Expr invokesAfter = interning.invocationOf(after).withArgs(interning.numericLiteral(1));
+		assertNotEquals(invokesBefore, invokesAfter);
+		assertSame(after, ((FunctionExpr)invokesAfter).function());
+		assertEquals(invokesAfter, plain.invocationOf(createFunction("f", list(param("X", NUMERIC)), plain.numericLiteral(2), NUMERIC)).withArgs(plain.numericLiteral(1)));
+	}
+}
@@ -0,0 +1,73 @@
+package ls.tools.excel.model;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static ls.tools.excel.model.Functions.createFunction;
+import static ls.tools.fj.Util.fj;
+
+/**
+ * Rebuilds expressions, bottom up.
+ * <br/>
+ * By default an expression is rebuilt as is. Subclasses override the methods for the expressions they need to replace.
+ */
+public class ExpressionRewriter implements ExpressionBuilder
+{
+
+	/**
+	 * Rebuild the given function, with its body rewritten.
+	 * @param f The function to rewrite
+	 * @return A new function, with the same name, parameters and return type, and the rewritten body.
+	 */
+	public Function rewriteFunction(final Function f)
+	{
+		checkArgument(f != null,"Function to rewrite can't be null");
+		return createFunction(f.name(), f.parameters(), rewrite(f.body()), f.returnType());
+	}
+
+	public Expr rewrite(final Expr e)
+	{
+		checkArgument(e != null,"Expression can't be null");
+		if (e instanceof Binding) return rewrite((Binding)e);
+		else if (e instanceof BinOpExpr) return rewrite((BinOpExpr)e); //must be considered before CompositeExpr
+		else if (e instanceof FunctionExpr) return rewrite((FunctionExpr)e);
+		else if (e instanceof LiteralExpr) return rewrite((LiteralExpr)e);
+		else if (e instanceof VarExpr) return rewrite((VarExpr)e);
+		else if (e instanceof BranchExpr) return rewrite((BranchExpr)e);
+		else if (e instanceof CompositeExpr) return rewrite((CompositeExpr)e);
+		else throw new IllegalArgumentException("Can't identify type of expression: " + e.getClass().getCanonicalName());
+	}
+
+	protected Expr rewrite(final Binding b)
+	{
+		return bindingOf((VarExpr)rewrite(b.var())).to(rewrite(b.expression()));
+	}
+
+	protected Expr rewrite(final BinOpExpr e)
+	{
+		return binOp(rewrite(e.subExpressions().head()), BinaryOp.from(e.op()), rewrite(e.subExpressions().last()));
+	}
+
+	protected Expr rewrite(final FunctionExpr fe)
+	{
+		return invocationOf(rewriteInvoked(fe.function())).withArgs(fe.args().map(fj((Expr e) -> rewrite(e))));
+	}
+
+	/**
+	 * @param f A function invoked by a rewritten {@link FunctionExpr}
+	 * @return The function to invoke instead; by default the same function.
+	 */
+	protected Function rewriteInvoked(final Function f) { return f; }
+
+	protected Expr rewrite(final LiteralExpr e) { return e; }
+
+	protected Expr rewrite(final VarExpr e) { return e; }
+
+	protected Expr rewrite(final BranchExpr e)
+	{
+		return test(rewrite(e.test())).ifTrue(rewrite(e.whenTrue())).ifFalse(rewrite(e.whenFalse()));
+	}
+
+	protected Expr rewrite(final CompositeExpr ce)
+	{
+		return sequence(ce.subExpressions().map(fj((Expr e) -> rewrite(e))));
+	}
+}
@@ -7,4 +7,5 @@ public interface FunctionExpr extends Expr
 
 	String functionName();
 	List<Expr> args();
+	Function function();
 }
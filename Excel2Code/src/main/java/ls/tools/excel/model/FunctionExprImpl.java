@@ -5,17 +5,20 @@ import ls.tools.excel.CellType;
 
 import static com.google.common.base.Objects.equal;
 import static com.google.common.base.Preconditions.checkArgument;
-import static java.util.Arrays.deepHashCode;
 import static java.util.Objects.hash;
 import static ls.tools.fj.Util.*;
 
 /**
 * Created by lior on 3/30/2014.
+* The hash code is computed once, when created.
+* Invocations are equal only if they invoke equal functions - not just functions of the same name - so an invocation of an older version of a function
+* is never taken for an invocation of its current version.
 */
 final class FunctionExprImpl implements FunctionExpr
 {
     private final List<Expr> args;
     private final Function func;
+    private final int hash;
 
     @SuppressWarnings("unchecked")
     FunctionExprImpl(final Function _func, final List<? extends Expr> _args)
@@ -23,25 +26,28 @@ final class FunctionExprImpl implements FunctionExpr
         checkArgument(_func != null,"Function can't be null");
         this.func = _func;
         this.args = (List<Expr>) (_args == null ? List.nil() : _args);
+        this.hash = hash(func,type()) + hashOf(args);
     }
 
     @Override public String functionName() { return func.name(); }
     @Override public List<Expr> args() { return args; }
+    @Override public Function function() { return func; }
     @Override public CellType type()
     {
         return func.returnType();
     }
     @Override public boolean equals(Object that)
     {
-        return this == that ||
-                that != null &&
-                that instanceof FunctionExpr &&
+        if (this == that) return true;
+        if (that instanceof FunctionExprImpl && hash != that.hashCode()) return false;
+        return that instanceof FunctionExpr &&
                 equal(functionName(),((FunctionExpr)that).functionName()) &&
                 equal(type(),((FunctionExpr)that).type()) &&
+                equal(function(),((FunctionExpr)that).function()) &&
                 listsEql(args(), ((FunctionExpr) that).args(), nullCheckingEqualPredicate());
     }
 
-    @Override public int hashCode() { return hash(functionName(),type()) + deepHashCode(args().toArray().array()); }
+    @Override public int hashCode() { return hash; }
     @Override public String toString()
     {
         final String argsString = args().foldRight(fj((exp, accum) -> exp.toString() + "," + accum),"");
@@ -9,7 +9,6 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static fj.Show.listShow;
 import static fj.Show.showS;
-import static java.util.Arrays.deepHashCode;
 import static java.util.Objects.hash;
 import static ls.tools.fj.Util.*;
 
@@ -50,6 +49,7 @@ final class FunctionImpl implements Function
 	private final List<Param> params;
 	private final Expr body;
 	private final CellType type;
+	private final int hash;
 	
 
 	static Function create(final String _funcName, final List<Param> params, final Expr _body, final CellType ret) { return new FunctionImpl(_funcName,params, _body, ret); }
@@ -61,6 +61,7 @@ final class FunctionImpl implements Function
 		this.params = checkNotNull(_paramList);
 		this.body = checkNotNull(_body);
 		this.type = checkNotNull(ret);
+		this.hash = hash(name,body,type) + hashOf(params);
 	}
 
 	@Override public String name() { return name; }
@@ -77,6 +78,7 @@ final class FunctionImpl implements Function
 		if (that == this) return true;
 		if (that == null) return false;
 		if (!(that instanceof Function)) return false;
+		if (that instanceof FunctionImpl && hash != that.hashCode()) return false;
 		final Function f = (Function)that;
 		return 	equal(returnType(), f.returnType()) &&
 				equal(name(),f.name()) && 
@@ -89,7 +91,7 @@ final class FunctionImpl implements Function
         return listsEql(list, list2, nullCheckingEqualPredicate());
     }
 	
-	@Override public int hashCode() { return hash(name(),body(),returnType()) + deepHashCode(parameters().toArray().array()); }
+	@Override public int hashCode() { return hash; }
 
 	@Override public String toString()
 	{
@@ -14,6 +14,7 @@ final class LiteralExprImpl implements LiteralExpr
 {
     private final String val;
     private final CellType type;
+    private final int hash;
 
     public LiteralExprImpl(final String _val, final CellType _type)
     {
@@ -21,6 +22,7 @@ final class LiteralExprImpl implements LiteralExpr
 
         this.val = _val;
         this.type = _type;
+        this.hash = hash(_type,comparedValue());
     }
 
     public LiteralExprImpl(final boolean _val) { this(String.valueOf(_val),CellType.BOOLEAN); }
@@ -32,15 +34,20 @@ final class LiteralExprImpl implements LiteralExpr
     @Override
     public boolean equals(Object that)
     {
-        return this == that ||
-                that != null &&
-                that instanceof LiteralExpr &&
+        if (this == that) return true;
+        if (that instanceof LiteralExprImpl && hash != that.hashCode()) return false;
+        return that instanceof LiteralExpr &&
                 equal(type(),((LiteralExpr)that).type()) &&
-                type().equals(BOOLEAN) ?
+                (BOOLEAN.equals(type()) ?
                     equal(value().toLowerCase(),((LiteralExpr)that).value().toLowerCase()) :
-                    equal(value(),((LiteralExpr)that).value());
+                    equal(value(),((LiteralExpr)that).value()));
     }
 
-    @Override public int hashCode() { return hash(type(),value()); }
+    /**
+     * Boolean literals are compared ignoring case, so their hash code is computed from the lower case value.
+     */
+    private String comparedValue() { return BOOLEAN.equals(type) ? val.toLowerCase() : val; }
+
+    @Override public int hashCode() { return hash; }
     @Override public String toString() { return value(); }
 } //end of LiteralExprImpl class
@@ -0,0 +1,41 @@
+package ls.tools.excel.model;
+
+import ls.tools.excel.CellType;
+
+import static com.google.common.base.Objects.equal;
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.hash;
+import static ls.tools.fj.Util.notEmpty;
+
+/**
+* An implementation of {@link VarExpr}. The hash code is computed once, when created.
+*/
+final class VarExprImpl implements VarExpr
+{
+    private final String name;
+    private final CellType type;
+    private final int hash;
+
+    VarExprImpl(final String _name, final CellType _type)
+    {
+        checkArgument(notEmpty(_name),"Variable name can't be empty");
+        checkArgument(_type != null,"Type can't be null");
+        this.name = _name;
+        this.type = _type;
+        this.hash = hash(_name,_type);
+    }
+
+    @Override public CellType type() { return type; }
+    @Override public String name() { return name; }
+
+    @Override public boolean equals(final Object that)
+    {
+        if (this == that) return true;
+        if (that instanceof VarExprImpl && hash != that.hashCode()) return false;
+        return that instanceof VarExpr &&
+                equal(type(),((VarExpr)that).type()) && equal(name(),((VarExpr)that).name());
+    }
+
+    @Override public int hashCode() { return hash; }
+    @Override public String toString() { return name() + " : " + type().toString(); }
+}
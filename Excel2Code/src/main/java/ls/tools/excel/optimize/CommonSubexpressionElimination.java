@@ -0,0 +1,111 @@
+package ls.tools.excel.optimize;
+
+import fj.data.List;
+import ls.tools.excel.model.*;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Removes bindings that compute what an earlier binding in the same function already computed.
+ * <br/>
+ * A binding of a pure expression - a binary operation, an invocation of a (built-in or converted) function, or a literal -
+ * is removed if an earlier binding, in the same or an enclosing sequence, is bound to an equal expression.
+ * Later uses of its variable use the variable of the earlier binding instead.
+ * Expressions are compared after their own variables were replaced, so whole chains of repeated sub formulas are removed, e.g. both bindings of a repeated <code>SQRT(A1*B1)</code>.
+ * <br/>
+ * The last expression of a sequence is its value, so it's never removed.
+ * Variables are assumed to be bound once, or rebound to the same expression (as a formula cell referenced twice is).
+ */
+public final class CommonSubexpressionElimination implements Optimization
+{
+
+	@Override public List<Function> apply(final List<Function> functions)
+	{
+		checkArgument(functions != null,"Functions can't be null");
+		final Map<Function,Function> optimized = new IdentityHashMap<>();
+		final List.Buffer<Function> ret = List.Buffer.empty();
+		for (final Function f : functions)
+		{
+			final Function o = new Eliminator(optimized).rewriteFunction(f);
+			optimized.put(f, o);
+			ret.snoc(o);
+		}
+		return ret.toList();
+	}
+
+	/**
+	 * @return The given function, with repeated sub expressions removed. Invoked functions are kept as is.
+	 */
+	public Function apply(final Function f)
+	{
+		checkArgument(f != null,"Function can't be null");
+		return new Eliminator(new IdentityHashMap<>()).rewriteFunction(f);
+	}
+
+	private static boolean isPure(final Expr e)
+	{
+		return e instanceof BinOpExpr || e instanceof FunctionExpr || e instanceof LiteralExpr;
+	}
+
+	private static final class Eliminator extends ExpressionRewriter
+	{
+		private final Map<Function,Function> optimized;
+		/**
+		 * The variable bound to each pure expression computed so far.
+		 */
+		private Map<Expr,VarExpr> available = new HashMap<>();
+		/**
+		 * The variable to use instead of each variable of a removed binding.
+		 */
+		private Map<String,VarExpr> replaced = new HashMap<>();
+
+		Eliminator(final Map<Function,Function> _optimized) { this.optimized = _optimized; }
+
+		@Override protected Function rewriteInvoked(final Function f) { return optimized.containsKey(f) ? optimized.get(f) : f; }
+
+		@Override protected Expr rewrite(final VarExpr e) { return replaced.containsKey(e.name()) ? replaced.get(e.name()) : e; }
+
+		/**
+		 * Expressions computed in a sequence are available to the rest of it, and to sequences nested in it, but not after it.
+		 */
+		@Override protected Expr rewrite(final CompositeExpr ce)
+		{
+			final Map<Expr,VarExpr> enclosingAvailable = available;
+			final Map<String,VarExpr> enclosingReplaced = replaced;
+			available = new HashMap<>(available);
+			replaced = new HashMap<>(replaced);
+
+			final List.Buffer<Expr> body = List.Buffer.empty();
+			List<Expr> rest = ce.subExpressions();
+			while (rest.isNotEmpty())
+			{
+				final Expr e = rest.head();
+				rest = rest.tail();
+				if (!(e instanceof Binding))
+				{
+					body.snoc(rewrite(e));
+					continue;
+				}
+				final Binding b = (Binding)e;
+				final Expr value = rewrite(b.expression());
+				final VarExpr earlier = isPure(value) ? available.get(value) : null;
+				if (earlier != null && earlier.type().equals(b.var().type()) && rest.isNotEmpty())
+					replaced.put(b.var().name(), earlier);
+				else
+				{
+					replaced.remove(b.var().name());
+					body.snoc(bindingOf(b.var()).to(value));
+					if (isPure(value) && earlier == null) available.put(value, b.var());
+				}
+			}
+
+			available = enclosingAvailable;
+			replaced = enclosingReplaced;
+			return sequence(body.toList());
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package ls.tools.excel.optimize;
+
+import fj.data.List;
+import ls.tools.excel.BuiltInFunction;
+import ls.tools.excel.model.*;
+import org.junit.Test;
+
+import static fj.data.List.list;
+import static ls.tools.excel.CellType.NUMERIC;
+import static ls.tools.excel.model.BinaryOp.MULT;
+import static ls.tools.excel.model.Functions.createFunction;
+import static ls.tools.excel.model.Functions.param;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public final class CommonSubexpressionEliminationTest implements ExpressionBuilder
+{
+	private final VarExpr a1 = var("A1").ofType(NUMERIC);
+	private final VarExpr b1 = var("B1").ofType(NUMERIC);
+	private final CommonSubexpressionElimination cse = new CommonSubexpressionElimination();
+
+	@Test
+	public void repeatedSubFormulaIsComputedOnce()
+	{
+		//SQRT(A1*B1)*SQRT(A1*B1)
+		final Function f = function("f", sequence(
+				bindingOf(local(0)).to(binOp(a1, MULT, b1)),
+				bindingOf(local(1)).to(invocationOf(BuiltInFunction.SQRT).withArgs(local(0))),
+				bindingOf(local(2)).to(binOp(a1, MULT, b1)),
+				bindingOf(local(3)).to(invocationOf(BuiltInFunction.SQRT).withArgs(local(2))),
+				bindingOf(local(4)).to(binOp(local(1), MULT, local(3)))));
+		final Function expected = function("f", sequence(
+				bindingOf(local(0)).to(binOp(a1, MULT, b1)),
+				bindingOf(local(1)).to(invocationOf(BuiltInFunction.SQRT).withArgs(local(0))),
+				bindingOf(local(4)).to(binOp(local(1), MULT, local(1)))));
+		assertEquals(expected, cse.apply(f));
+	}
+
+	@Test
+	public void repeatedFunctionCallIsInvokedOnceAndInvokesTheOptimizedFunction()
+	{
+		final Function square = function("square", sequence(
+				bindingOf(local(0)).to(binOp(a1, MULT, a1)),
+				bindingOf(local(1)).to(binOp(a1, MULT, a1)),
+				bindingOf(local(2)).to(binOp(local(0), MULT, local(1)))));
+		final VarExpr c1 = var("C1").ofType(NUMERIC);
+		final Function f = function("f", sequence(
+				bindingOf(c1).to(invocationOf(square).withArgs(a1)),
+				bindingOf(c1).to(invocationOf(square).withArgs(a1)),
+				bindingOf(local(3)).to(binOp(c1, MULT, c1))));
+
+		final List<Function> result = cse.apply(list(square, f));
+		assertEquals(function("square", sequence(
+				bindingOf(local(0)).to(binOp(a1, MULT, a1)),
+				bindingOf(local(2)).to(binOp(local(0), MULT, local(0))))), result.head());
+		final CompositeExpr body = (CompositeExpr)result.last().body();
+		assertEquals(2, body.subExpressions().length());
+		assertSame(result.head(), ((FunctionExpr)((Binding)body.subExpressions().head()).expression()).function());
+	}
+
+	@Test
+	public void lastExpressionIsKept()
+	{
+		final Function f = function("f", sequence(
+				bindingOf(local(0)).to(binOp(a1, MULT, b1)),
+				bindingOf(local(1)).to(binOp(a1, MULT, b1))));
+		assertEquals(f, cse.apply(f));
+	}
+
+	private VarExpr local(final int n) { return var("_" + n).ofType(NUMERIC); }
+
+	private Function function(final String name, final Expr body)
+	{
+		return createFunction(name, list(param("A1", NUMERIC), param("B1", NUMERIC)), body, NUMERIC);
+	}
+}
@@ -0,0 +1,171 @@
+package ls.tools.excel.optimize;
+
+import fj.data.List;
+import ls.tools.excel.BuiltInFunction;
+import ls.tools.excel.CellType;
+import ls.tools.excel.eval.Operations;
+import ls.tools.excel.model.*;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static ls.tools.excel.CellType.BOOLEAN;
+import static ls.tools.excel.CellType.NUMERIC;
+import static ls.tools.fj.Util.fj;
+
+/**
+ * Computes what can be computed ahead of time, and propagates constants and copies.
+ * <br/>
+ * A variable bound to a literal, or to another variable, is replaced by that literal or variable where it's used.
+ * Binary operations and pure built-in functions (<code>SQRT</code>, <code>MOD</code>) whose operands are all literals are replaced by their result,
+ * computed with the same {@link Operations operations} the evaluators use.
+ * <br/>
+ * An <code>IF</code> is a {@link BranchExpr branch}: its test is folded first, and if it's a literal, the branch is replaced by the side taken,
+ * whose bindings are moved to the enclosing sequence (the other side is dropped, so it's never evaluated). Otherwise both sides are folded on their own:
+ * constants bound in one side are only propagated within it, while constants bound before the branch are propagated into both.
+ * <br/>
+ * Operations that would fail (e.g. <code>MOD</code> by zero) or don't have a number as a result (e.g. the square root of a negative number) are kept,
+ * so they fail when evaluated, as before.
+ * <br/>
+ * Bindings are kept, even if their variables are no longer used - see {@link DeadBindingElimination}.
+ */
+public final class ConstantFolding implements Optimization
+{
+
+	@Override public List<Function> apply(final List<Function> functions)
+	{
+		checkArgument(functions != null,"Functions can't be null");
+		final Map<Function,Function> optimized = new IdentityHashMap<>();
+		final List.Buffer<Function> ret = List.Buffer.empty();
+		for (final Function f : functions)
+		{
+			final Function o = new Folder(optimized).rewriteFunction(f);
+			optimized.put(f, o);
+			ret.snoc(o);
+		}
+		return ret.toList();
+	}
+
+	/**
+	 * @return The given function, with its constants folded. Invoked functions are kept as is.
+	 */
+	public Function apply(final Function f)
+	{
+		checkArgument(f != null,"Function can't be null");
+		return new Folder(new IdentityHashMap<>()).rewriteFunction(f);
+	}
+
+	/**
+	 * @return The text of a folded number, without a fraction if it's a whole number - as a literal in a formula would be written.
+	 */
+	static String numberText(final double d)
+	{
+		return d == Math.rint(d) && Math.abs(d) < 1e15 ? Long.toString((long)d) : Double.toString(d);
+	}
+
+	private static final class Folder extends ExpressionRewriter
+	{
+		private final Map<Function,Function> optimized;
+		/**
+		 * The literal or variable each variable bound so far is bound to, if it's bound to one.
+		 */
+		private Map<String,Expr> values = new HashMap<>();
+
+		Folder(final Map<Function,Function> _optimized) { this.optimized = _optimized; }
+
+		@Override protected Function rewriteInvoked(final Function f) { return optimized.containsKey(f) ? optimized.get(f) : f; }
+
+		@Override protected Expr rewrite(final VarExpr e) { return values.containsKey(e.name()) ? values.get(e.name()) : e; }
+
+		@Override protected Expr rewrite(final CompositeExpr ce)
+		{
+			final Map<String,Expr> enclosingValues = values;
+			values = new HashMap<>(values);
+			final List.Buffer<Expr> body = List.Buffer.empty();
+			for (final Expr e : ce.subExpressions())
+				if (e instanceof Binding)
+				{
+					final Binding b = (Binding)e;
+					Expr value = rewrite(b.expression());
+					if (isSequence(value)) //a branch replaced by the branch taken - its bindings join this sequence
+					{
+						for (final Expr taken : ((CompositeExpr)value).subExpressions())
+							if (taken instanceof Binding) body.snoc(taken);
+						value = evaluationOf(((CompositeExpr)value).subExpressions().last());
+					}
+					if ((value instanceof LiteralExpr || value instanceof VarExpr) && value.type().equals(b.var().type()))
+						values.put(b.var().name(), value);
+					else values.remove(b.var().name());
+					body.snoc(bindingOf(b.var()).to(value));
+				}
+				else body.snoc(rewrite(e));
+			values = enclosingValues;
+			return sequence(body.toList());
+		}
+
+		@Override protected Expr rewrite(final BinOpExpr e)
+		{
+			final Expr left = rewrite(e.subExpressions().head());
+			final Expr right = rewrite(e.subExpressions().last());
+			final BinaryOp op = BinaryOp.from(e.op());
+			if (left instanceof LiteralExpr && right instanceof LiteralExpr)
+			{
+				final Object l = valueOf((LiteralExpr)left);
+				final Object r = valueOf((LiteralExpr)right);
+				switch (op)
+				{
+					case MULT:
+						if (l instanceof Double && r instanceof Double)
+							return numeric(Operations.mult((Double)l, (Double)r));
+						break;
+					case EQL:
+						return booleanLiteral(Operations.eql(l, r));
+				}
+			}
+			return binOp(left, op, right);
+		}
+
+		@Override protected Expr rewrite(final FunctionExpr fe)
+		{
+			final List<Expr> args = fe.args().map(fj((Expr a) -> rewrite(a)));
+			if (fe.function() instanceof BuiltInFunction && args.forall(fj(a -> a instanceof LiteralExpr && a.type().equals(NUMERIC))))
+			{
+				final double x = (Double)valueOf((LiteralExpr)args.head());
+				switch ((BuiltInFunction)fe.function())
+				{
+					case SQRT:
+						if (x >= 0) return numeric(Operations.sqrt(x));
+						break;
+					case MOD:
+						final double divisor = (Double)valueOf((LiteralExpr)args.last());
+						if (divisor != 0) return numeric(Operations.mod(x, divisor));
+						break;
+					default: break;
+				}
+			}
+			return invocationOf(rewriteInvoked(fe.function())).withArgs(args);
+		}
+
+		@Override protected Expr rewrite(final BranchExpr e)
+		{
+			final Expr test = rewrite(e.test());
+			if (test instanceof LiteralExpr && test.type().equals(BOOLEAN))
+				return (Boolean)valueOf((LiteralExpr)test) ? rewrite(e.whenTrue()) : rewrite(e.whenFalse());
+			return test(test).ifTrue(rewrite(e.whenTrue())).ifFalse(rewrite(e.whenFalse()));
+		}
+
+		private static boolean isSequence(final Expr e) { return e instanceof CompositeExpr && !(e instanceof BinOpExpr); }
+
+		private static Expr evaluationOf(final Expr e) { return (e instanceof Binding) ? ((Binding)e).var() : e; }
+
+		private LiteralExpr numeric(final double d) { return literal(numberText(d)).ofType(NUMERIC); }
+
+		private static Object valueOf(final LiteralExpr e)
+		{
+			final CellType t = e.type();
+			return Operations.literalValue(e.value(), t);
+		}
+	}
+}
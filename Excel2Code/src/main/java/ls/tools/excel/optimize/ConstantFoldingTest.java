@@ -0,0 +1,90 @@
+package ls.tools.excel.optimize;
+
+import fj.data.List;
+import ls.tools.excel.BuiltInFunction;
+import ls.tools.excel.FormulaConverter;
+import ls.tools.excel.eval.InterpretedFunction;
+import ls.tools.excel.eval.Interpreter;
+import ls.tools.excel.model.*;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Test;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import static fj.data.List.list;
+import static ls.tools.excel.CellType.NUMERIC;
+import static ls.tools.excel.model.BinaryOp.MULT;
+import static ls.tools.excel.model.Functions.createFunction;
+import static ls.tools.excel.model.Functions.param;
+import static ls.tools.fj.Util.fj;
+import static org.junit.Assert.*;
+
+public final class ConstantFoldingTest implements ExpressionBuilder
+{
+	private final VarExpr b3 = var("B3").ofType(NUMERIC);
+
+	@Test
+	public void constantsAreFoldedAndUnusedBindingsRemoved()
+	{
+		//B3 * (2 * SQRT(25)), with every literal bound to its own variable, as converted
+		final Function f = function(sequence(
+				bindingOf(local(0)).to(numericLiteral(2)),
+				bindingOf(local(1)).to(numericLiteral(25)),
+				bindingOf(local(2)).to(invocationOf(BuiltInFunction.SQRT).withArgs(local(1))),
+				bindingOf(local(3)).to(binOp(local(0), MULT, local(2))),
+				bindingOf(local(4)).to(local(3)),
+				bindingOf(local(5)).to(binOp(b3, MULT, local(4)))));
+		final Function expected = function(sequence(
+				bindingOf(local(5)).to(binOp(b3, MULT, literal("10").ofType(NUMERIC)))));
+		assertEquals(expected, optimize(f));
+		assertEquals(24, Optimizations.nodeCount(list(f)));
+		assertEquals(6, Optimizations.nodeCount(list(optimize(f))));
+	}
+
+	@Test
+	public void failingOperationsAreKept()
+	{
+		final Function f = function(sequence(
+				bindingOf(local(0)).to(numericLiteral(0)),
+				bindingOf(local(1)).to(invocationOf(BuiltInFunction.MOD).withArgs(b3, local(0))),
+				bindingOf(local(2)).to(invocationOf(BuiltInFunction.MOD).withArgs(numericLiteral(3), local(0)))));
+		final Function expected = function(sequence(
+				bindingOf(local(2)).to(invocationOf(BuiltInFunction.MOD).withArgs(numericLiteral(3), numericLiteral(0)))));
+		assertEquals(expected, optimize(f));
+	}
+
+	@Test
+	public void optimizedFunctionsComputeTheSameResults() throws InvalidFormatException, IOException
+	{
+		final Interpreter interpreter = new Interpreter();
+		final XSSFWorkbook wb2 = (XSSFWorkbook) WorkbookFactory.create(new FileInputStream("test2.xlsx"));
+		final InterpretedFunction isEven = interpreter.prepare(optimize(new FormulaConverter().formulasFromNamedCells(wb2, "isEven")).last());
+		assertTrue((Boolean)isEven.apply(4.0));
+		assertFalse((Boolean)isEven.apply(-7.0));
+
+		final XSSFWorkbook wb = (XSSFWorkbook) WorkbookFactory.create(new FileInputStream("test.xlsx"));
+		final List<Function> converted = new FormulaConverter().formulasFromNamedCells(wb, "cube_sqrt", "times2");
+		final List<Function> optimized = optimize(converted);
+		assertTrue(Optimizations.nodeCount(optimized) < Optimizations.nodeCount(converted));
+		for (final Function f : optimized)
+			assertEquals(interpreter.prepare(converted.find(fj(c -> c.name().equals(f.name()))).some()).applyAsDouble(3),
+						 interpreter.prepare(f).applyAsDouble(3), 1e-9);
+	}
+
+	private static List<Function> optimize(final List<Function> functions)
+	{
+		List<Function> ret = functions;
+		for (final Optimization o : Optimizations.all())
+			ret = o.apply(ret);
+		return ret;
+	}
+
+	private static Function optimize(final Function f) { return optimize(list(f)).head(); }
+
+	private VarExpr local(final int n) { return var("_" + n).ofType(NUMERIC); }
+
+	private Function function(final Expr body) { return createFunction("f", list(param("B3", NUMERIC)), body, NUMERIC); }
+}
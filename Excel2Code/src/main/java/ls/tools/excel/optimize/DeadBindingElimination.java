@@ -0,0 +1,99 @@
+package ls.tools.excel.optimize;
+
+import fj.data.List;
+import ls.tools.excel.model.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static fj.data.List.nil;
+
+/**
+ * Removes bindings whose variables aren't used by the rest of the sequence they're in.
+ * <br/>
+ * All expressions are pure, so a binding that isn't used can be removed without changing the result.
+ * The last expression of a sequence is its value, so it's always kept.
+ */
+public final class DeadBindingElimination implements Optimization
+{
+
+	@Override public List<Function> apply(final List<Function> functions)
+	{
+		checkArgument(functions != null,"Functions can't be null");
+		final Map<Function,Function> optimized = new IdentityHashMap<>();
+		final List.Buffer<Function> ret = List.Buffer.empty();
+		for (final Function f : functions)
+		{
+			final Function o = new Eliminator(optimized).rewriteFunction(f);
+			optimized.put(f, o);
+			ret.snoc(o);
+		}
+		return ret.toList();
+	}
+
+	/**
+	 * @return The given function, without its unused bindings. Invoked functions are kept as is.
+	 */
+	public Function apply(final Function f)
+	{
+		checkArgument(f != null,"Function can't be null");
+		return new Eliminator(new IdentityHashMap<>()).rewriteFunction(f);
+	}
+
+	/**
+	 * Add the names of all variables used in the given expression to the given set.
+	 */
+	static void addVarsUsedIn(final Expr e, final Set<String> vars)
+	{
+		if (e instanceof VarExpr) vars.add(((VarExpr)e).name());
+		else if (e instanceof Binding) addVarsUsedIn(((Binding)e).expression(), vars);
+		else if (e instanceof FunctionExpr)
+			for (final Expr arg : ((FunctionExpr)e).args()) addVarsUsedIn(arg, vars);
+		else if (e instanceof BranchExpr)
+		{
+			addVarsUsedIn(((BranchExpr)e).test(), vars);
+			addVarsUsedIn(((BranchExpr)e).whenTrue(), vars);
+			addVarsUsedIn(((BranchExpr)e).whenFalse(), vars);
+		}
+		else if (e instanceof CompositeExpr) //including binary operations
+			for (final Expr sub : ((CompositeExpr)e).subExpressions()) addVarsUsedIn(sub, vars);
+	}
+
+	private static final class Eliminator extends ExpressionRewriter
+	{
+		private final Map<Function,Function> optimized;
+
+		Eliminator(final Map<Function,Function> _optimized) { this.optimized = _optimized; }
+
+		@Override protected Function rewriteInvoked(final Function f) { return optimized.containsKey(f) ? optimized.get(f) : f; }
+
+		/**
+		 * Go over the sequence backwards, keeping only bindings of variables used by expressions already kept.
+		 */
+		@Override protected Expr rewrite(final CompositeExpr ce)
+		{
+			final java.util.List<Expr> exprs = new ArrayList<>();
+			for (final Expr e : ce.subExpressions())
+				exprs.add(rewrite(e));
+			final Set<String> live = new HashSet<>();
+			List<Expr> kept = nil();
+			for (int i = exprs.size() - 1; i >= 0; i--)
+			{
+				final Expr e = exprs.get(i);
+				if (e instanceof Binding)
+				{
+					final String var = ((Binding)e).var().name();
+					if (i < exprs.size() - 1 && !live.contains(var)) continue;
+					live.remove(var); //used only after this binding - an earlier binding of the same variable isn't used by it
+				}
+				addVarsUsedIn(e, live);
+				kept = kept.cons(e);
+			}
+			return sequence(kept);
+		}
+	}
+}
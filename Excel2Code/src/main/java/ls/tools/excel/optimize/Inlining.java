@@ -0,0 +1,208 @@
+package ls.tools.excel.optimize;
+
+import fj.data.List;
+import ls.tools.excel.BuiltInFunction;
+import ls.tools.excel.model.*;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static fj.data.List.list;
+
+/**
+ * Replaces invocations of small functions, and of functions invoked only once, with the body of the invoked function.
+ * <br/>
+ * An invocation is inlined if it's bound to a variable in a sequence, and the invoked function is either invoked from a single place,
+ * or has no more than a given number of {@link Optimizations#nodeCount(List) expression nodes}.
+ * Functions are inlined after they were optimized themselves, so a chain of small functions is inlined all the way down.
+ * <br/>
+ * The variables of an inlined body are renamed to names not used by the invoking function (<code>_i0</code>, <code>_i1</code>, ...).
+ * Parameters are replaced by the arguments, or bound to them if an argument isn't a variable or a literal.
+ * <br/>
+ * A function that's no longer invoked after inlining is dropped, unless it's one of the exported names, or wasn't invoked to begin with.
+ */
+public final class Inlining implements Optimization
+{
+	/**
+	 * The largest function inlined everywhere, by default.
+	 */
+	public static final int DEFAULT_MAX_NODES = 24;
+
+	private static final String INLINED_VAR_PREFIX = "_i";
+
+	private final int maxNodes;
+	private final Set<String> exported;
+
+	/**
+	 * @param _maxNodes Functions with no more expression nodes than this are inlined wherever they're invoked
+	 * @param _exported Names of functions to keep, even if they're inlined everywhere
+	 */
+	public Inlining(final int _maxNodes, final String... _exported)
+	{
+		checkArgument(_maxNodes >= 0,"Maximal node count can't be negative");
+		checkArgument(_exported != null,"Exported names can't be null");
+		this.maxNodes = _maxNodes;
+		this.exported = new HashSet<>(list(_exported).toCollection());
+	}
+
+	/**
+	 * Inline functions with up to {@link #DEFAULT_MAX_NODES} nodes.
+	 */
+	public Inlining(final String... _exported)
+	{
+		this(DEFAULT_MAX_NODES, _exported);
+	}
+
+	@Override public List<Function> apply(final List<Function> functions)
+	{
+		checkArgument(functions != null,"Functions can't be null");
+		final Map<Function,Integer> invocations = new HashMap<>();
+		for (final Function f : functions)
+			countInvocations(f.body(), invocations);
+
+		final Map<Function,Function> optimized = new IdentityHashMap<>();
+		final Deque<Function> reachable = new ArrayDeque<>();
+		for (final Function f : functions)
+		{
+			final Function o = new Inliner(optimized, invocations).rewriteFunction(f);
+			optimized.put(f, o);
+			if (exported.contains(f.name()) || !invocations.containsKey(f)) reachable.push(o);
+		}
+
+		final Set<Function> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+		while (!reachable.isEmpty())
+		{
+			final Function f = reachable.pop();
+			if (kept.add(f)) addInvokedIn(f.body(), reachable);
+		}
+		final List.Buffer<Function> ret = List.Buffer.empty();
+		for (final Function f : functions)
+			if (kept.contains(optimized.get(f))) ret.snoc(optimized.get(f));
+		return ret.toList();
+	}
+
+	private static void countInvocations(final Expr e, final Map<Function,Integer> invocations)
+	{
+		if (e instanceof FunctionExpr && !(((FunctionExpr)e).function() instanceof BuiltInFunction))
+			invocations.merge(((FunctionExpr)e).function(), 1, Integer::sum);
+		forEachSubExpression(e, sub -> countInvocations(sub, invocations));
+	}
+
+	private static void addInvokedIn(final Expr e, final Deque<Function> invoked)
+	{
+		if (e instanceof FunctionExpr && !(((FunctionExpr)e).function() instanceof BuiltInFunction))
+			invoked.push(((FunctionExpr)e).function());
+		forEachSubExpression(e, sub -> addInvokedIn(sub, invoked));
+	}
+
+	static void forEachSubExpression(final Expr e, final Consumer<Expr> action)
+	{
+		if (e instanceof Binding) action.accept(((Binding)e).expression());
+		else if (e instanceof FunctionExpr)
+			for (final Expr arg : ((FunctionExpr)e).args()) action.accept(arg);
+		else if (e instanceof BranchExpr)
+		{
+			action.accept(((BranchExpr)e).test());
+			action.accept(((BranchExpr)e).whenTrue());
+			action.accept(((BranchExpr)e).whenFalse());
+		}
+		else if (e instanceof CompositeExpr) //including binary operations
+			for (final Expr sub : ((CompositeExpr)e).subExpressions()) action.accept(sub);
+	}
+
+	private static boolean isSequence(final Expr e) { return e instanceof CompositeExpr && !(e instanceof BinOpExpr); }
+
+	private final class Inliner extends ExpressionRewriter
+	{
+		private final Map<Function,Function> optimized;
+		private final Map<Function,Integer> invocations;
+		private int inlinedVarCount = 0;
+
+		Inliner(final Map<Function,Function> _optimized, final Map<Function,Integer> _invocations)
+		{
+			this.optimized = _optimized;
+			this.invocations = _invocations;
+		}
+
+		@Override protected Function rewriteInvoked(final Function f) { return optimized.containsKey(f) ? optimized.get(f) : f; }
+
+		/**
+		 * Number inlined variables after the ones a previous inlining already added to the function.
+		 */
+		@Override public Function rewriteFunction(final Function f)
+		{
+			final Set<String> vars = new HashSet<>();
+			DeadBindingElimination.addVarsUsedIn(f.body(), vars);
+			for (final String v : vars)
+				if (v.matches(INLINED_VAR_PREFIX + "\\d+"))
+					inlinedVarCount = Math.max(inlinedVarCount, Integer.parseInt(v.substring(INLINED_VAR_PREFIX.length())) + 1);
+			return super.rewriteFunction(f);
+		}
+
+		/**
+		 * @param e An expression of the function being rewritten, before it's rewritten
+		 */
+		private boolean shouldInline(final Expr e)
+		{
+			if (!(e instanceof Binding) || !(((Binding)e).expression() instanceof FunctionExpr)) return false;
+			final Function f = ((FunctionExpr)((Binding)e).expression()).function();
+			final Function o = rewriteInvoked(f);
+			if (f instanceof BuiltInFunction || !isSequence(o.body()) || ((CompositeExpr)o.body()).subExpressions().isEmpty()) return false;
+			return invocations.getOrDefault(f, 0) <= 1 || Optimizations.nodeCount(list(o)) <= maxNodes;
+		}
+
+		@Override protected Expr rewrite(final CompositeExpr ce)
+		{
+			final List.Buffer<Expr> body = List.Buffer.empty();
+			for (final Expr e : ce.subExpressions())
+			{
+				if (shouldInline(e)) inline((Binding)rewrite(e), body);
+				else body.snoc(rewrite(e));
+			}
+			return sequence(body.toList());
+		}
+
+		/**
+		 * Add the body of the function invoked by the given binding to the given sequence, binding its value to the binding's variable.
+		 */
+		private void inline(final Binding call, final List.Buffer<Expr> body)
+		{
+			final FunctionExpr fe = (FunctionExpr)call.expression();
+			final Map<String,Expr> renamed = new HashMap<>();
+			List<Expr> args = fe.args();
+			for (final Param p : fe.function().parameters())
+			{
+				final Expr arg = args.head();
+				args = args.tail();
+				if (arg instanceof VarExpr || arg instanceof LiteralExpr) renamed.put(p.name(), arg);
+				else
+				{
+					final VarExpr v = var(INLINED_VAR_PREFIX + inlinedVarCount++).ofType(p.type());
+					body.snoc(bindingOf(v).to(arg));
+					renamed.put(p.name(), v);
+				}
+			}
+
+			final ExpressionRewriter renamer = new ExpressionRewriter()
+			{
+				@Override protected Expr rewrite(final VarExpr e)
+				{
+					return renamed.computeIfAbsent(e.name(), n -> var(INLINED_VAR_PREFIX + inlinedVarCount++).ofType(e.type()));
+				}
+			};
+			List<Expr> exprs = ((CompositeExpr)fe.function().body()).subExpressions();
+			for (; exprs.tail().isNotEmpty(); exprs = exprs.tail())
+				body.snoc(renamer.rewrite(exprs.head()));
+			final Expr last = exprs.head();
+			body.snoc(bindingOf(call.var()).to(renamer.rewrite(last instanceof Binding ? ((Binding)last).expression() : last)));
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package ls.tools.excel.optimize;
+
+import fj.data.List;
+import ls.tools.excel.FormulaConverter;
+import ls.tools.excel.eval.Interpreter;
+import ls.tools.excel.model.*;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Test;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static fj.data.List.list;
+import static ls.tools.excel.CellType.NUMERIC;
+import static ls.tools.excel.model.BinaryOp.MULT;
+import static ls.tools.excel.model.Functions.createFunction;
+import static ls.tools.excel.model.Functions.param;
+import static ls.tools.fj.Util.fj;
+import static org.junit.Assert.*;
+
+public final class InliningTest implements ExpressionBuilder
+{
+	private final VarExpr b3 = var("B3").ofType(NUMERIC);
+	private final VarExpr d3 = var("D3").ofType(NUMERIC);
+	private final VarExpr x = var("X").ofType(NUMERIC);
+
+	//times2(X) = X * 2, with 2 bound to its own variable, as converted
+	private final Function times2 = createFunction("times2", list(param("X", NUMERIC)),
+			sequence(bindingOf(local("_0")).to(numericLiteral(2)),
+					 bindingOf(local("_1")).to(binOp(x, MULT, local("_0")))), NUMERIC);
+	//times4(B3) = times2(times2(B3))
+	private final Function times4 = createFunction("times4", list(param("B3", NUMERIC)),
+			sequence(bindingOf(d3).to(invocationOf(times2).withArgs(b3)),
+					 bindingOf(local("_1")).to(invocationOf(times2).withArgs(d3))), NUMERIC);
+
+	@Test
+	public void inlinedVariablesAreRenamed()
+	{
+		final List<Function> result = new Inlining("times4").apply(list(times2, times4));
+		final Function expected = createFunction("times4", list(param("B3", NUMERIC)),
+				sequence(bindingOf(local("_i0")).to(numericLiteral(2)),
+						 bindingOf(d3).to(binOp(b3, MULT, local("_i0"))),
+						 bindingOf(local("_i1")).to(numericLiteral(2)),
+						 bindingOf(local("_1")).to(binOp(d3, MULT, local("_i1")))), NUMERIC);
+		assertEquals(1, result.length());
+		assertEquals(expected, result.head());
+	}
+
+	@Test
+	public void largeFunctionsInvokedTwiceAreKept()
+	{
+		final List<Function> result = new Inlining(0, "times4").apply(list(times2, times4));
+		assertEquals(2, result.length());
+		assertEquals(times2, result.head());
+		assertEquals(times4, result.last());
+	}
+
+	@Test
+	public void chainOfFunctionsIsInlinedAndComputesTheSameResult() throws InvalidFormatException, IOException
+	{
+		final XSSFWorkbook wb = (XSSFWorkbook) WorkbookFactory.create(new FileInputStream("test.xlsx"));
+		final List<Function> converted = new FormulaConverter().formulasFromNamedCells(wb, "cube_sqrt", "square");
+		final List<Function> inlined = new Inlining("cube_sqrt", "square").apply(converted);
+
+		//cube is inlined into cube_sqrt, and dropped; square is inlined into cube, but it's exported
+		assertEquals(Arrays.asList("square", "cube_sqrt"), new ArrayList<>(inlined.map(fj(Function::name)).toCollection()));
+		assertFalse(inlined.last().body().toString().contains("square("));
+		final Interpreter interpreter = new Interpreter();
+		assertEquals(interpreter.prepare(converted.last()).applyAsDouble(3), interpreter.prepare(inlined.last()).applyAsDouble(3), 1e-9);
+	}
+
+	private VarExpr local(final String name) { return var(name).ofType(NUMERIC); }
+}
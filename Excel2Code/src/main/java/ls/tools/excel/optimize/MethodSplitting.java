@@ -0,0 +1,200 @@
+package ls.tools.excel.optimize;
+
+import fj.data.List;
+import ls.tools.excel.BuiltInFunction;
+import ls.tools.excel.model.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static ls.tools.excel.model.Functions.createFunction;
+import static ls.tools.excel.model.Functions.param;
+
+/**
+ * Splits functions whose bodies would compile to too large methods, so the JIT compiles them (HotSpot doesn't compile methods of more than 8000 bytes of bytecode),
+ * and so they fit in a JVM method (64KB) at all.
+ * <br/>
+ * A body is split between two of its bindings: the bindings after the split point move to a helper function, <code>&lt;name&gt;_part1</code>,
+ * which takes the variables they use from before the split point as parameters, and returns the body's value. The helper is split again if it's still too large.
+ * The split point is the latest one that keeps the function within the budget, and needs no more than {@link #MAX_ARGUMENTS} arguments.
+ * <br/>
+ * The size of a method is {@link #bytecodeSize(Expr) estimated} from its body, as written by the java formatter.
+ * Helpers come before the function they were split from, as invoked functions do.
+ */
+public final class MethodSplitting implements Optimization, ExpressionBuilder
+{
+	/**
+	 * The default budget, leaving a margin below HotSpot's limit for the estimate.
+	 */
+	public static final int DEFAULT_MAX_BYTECODE = 6000;
+	/**
+	 * Every method parameter takes one slot, or two for a <code>double</code>, and a method has 255 slots.
+	 */
+	static final int MAX_ARGUMENTS = 100;
+
+	private static final int VAR_ACCESS_SIZE = 4;
+	private static final String PART_SUFFIX = "_part";
+	private static final String RESULT_VAR = "_part";
+
+	private final int maxBytecode;
+
+	/**
+	 * @param _maxBytecode The largest estimated bytecode size of a method
+	 */
+	public MethodSplitting(final int _maxBytecode)
+	{
+		checkArgument(_maxBytecode > 0,"Maximal bytecode size must be positive");
+		this.maxBytecode = _maxBytecode;
+	}
+
+	public MethodSplitting()
+	{
+		this(DEFAULT_MAX_BYTECODE);
+	}
+
+	@Override public List<Function> apply(final List<Function> functions)
+	{
+		checkArgument(functions != null,"Functions can't be null");
+		final Map<Function,Function> optimized = new IdentityHashMap<>();
+		final List.Buffer<Function> ret = List.Buffer.empty();
+		for (final Function f : functions)
+		{
+			final Function rewritten = new ExpressionRewriter()
+			{
+				@Override protected Function rewriteInvoked(final Function invoked) { return optimized.containsKey(invoked) ? optimized.get(invoked) : invoked; }
+			}.rewriteFunction(f);
+			final java.util.List<Function> parts = new ArrayList<>();
+			final Function o = split(rewritten, f.name(), 1, parts);
+			for (int i = parts.size() - 1; i >= 0; i--) ret.snoc(parts.get(i));
+			ret.snoc(o);
+			optimized.put(f, o);
+		}
+		return ret.toList();
+	}
+
+	/**
+	 * @param name The name of the function the given one is a part of
+	 * @param part The number of the next helper
+	 * @param parts Filled with the helpers, each after the one invoking it
+	 * @return The given function, invoking its first helper if it was split.
+	 */
+	private Function split(final Function f, final String name, final int part, final java.util.List<Function> parts)
+	{
+		if (!isSequence(f.body()) || bytecodeSize(f.body()) <= maxBytecode) return f;
+		final java.util.List<Expr> exprs = new ArrayList<>(((CompositeExpr)f.body()).subExpressions().toCollection());
+		final int cut = splitPoint(exprs);
+		if (cut < 0) return f;
+
+		final List.Buffer<Expr> tail = List.Buffer.empty();
+		for (final Expr e : exprs.subList(cut, exprs.size())) tail.snoc(e);
+		final Map<String,VarExpr> liveIn = freeVars(exprs.subList(cut, exprs.size()));
+		final List.Buffer<Param> params = List.Buffer.empty();
+		final List.Buffer<Expr> args = List.Buffer.empty();
+		for (final VarExpr v : liveIn.values())
+		{
+			params.snoc(param(v.name(), v.type()));
+			args.snoc(v);
+		}
+		final Function helper = createFunction(name + PART_SUFFIX + part, params.toList(), sequence(tail.toList()), f.returnType());
+		final Function splitHelper = split(helper, name, part + 1, parts);
+		parts.add(splitHelper);
+
+		final Expr last = exprs.get(exprs.size() - 1);
+		final VarExpr result = last instanceof Binding ? ((Binding)last).var() : var(RESULT_VAR).ofType(f.returnType());
+		final List.Buffer<Expr> head = List.Buffer.empty();
+		for (final Expr e : exprs.subList(0, cut)) head.snoc(e);
+		head.snoc(bindingOf(result).to(invocationOf(splitHelper).withArgs(args.toList())));
+		return createFunction(f.name(), f.parameters(), sequence(head.toList()), f.returnType());
+	}
+
+	/**
+	 * @return The index of the first expression moved to the helper, or -1 if the body can't be split.
+	 * If even the first expression is too large, it's the only one kept, so the body gets smaller anyway.
+	 */
+	private int splitPoint(final java.util.List<Expr> exprs)
+	{
+		//the number of variables live before every expression, going backwards
+		final int[] liveCount = new int[exprs.size()];
+		final Set<String> live = new HashSet<>();
+		for (int i = exprs.size() - 1; i >= 0; i--)
+		{
+			final Expr e = exprs.get(i);
+			if (e instanceof Binding) live.remove(((Binding)e).var().name());
+			live.addAll(freeVars(Collections.singletonList(e)).keySet());
+			liveCount[i] = live.size();
+		}
+		int ret = -1;
+		int size = 0;
+		for (int cut = 1; cut < exprs.size(); cut++)
+		{
+			size += bytecodeSize(exprs.get(cut - 1));
+			if (liveCount[cut] > MAX_ARGUMENTS) continue;
+			if (ret >= 0 && size + callSize(liveCount[cut]) > maxBytecode) break;
+			ret = cut;
+		}
+		return ret;
+	}
+
+	/**
+	 * @return The variables the given expressions use before binding them, by name, in the order they're first used.
+	 */
+	private static Map<String,VarExpr> freeVars(final java.util.List<Expr> exprs)
+	{
+		final Map<String,VarExpr> ret = new LinkedHashMap<>();
+		final Set<String> bound = new HashSet<>();
+		for (final Expr e : exprs) addFreeVars(e, bound, ret);
+		return ret;
+	}
+
+	private static void addFreeVars(final Expr e, final Set<String> bound, final Map<String,VarExpr> free)
+	{
+		if (e instanceof VarExpr)
+		{
+			if (!bound.contains(((VarExpr)e).name())) free.putIfAbsent(((VarExpr)e).name(), (VarExpr)e);
+		}
+		else if (e instanceof Binding)
+		{
+			addFreeVars(((Binding)e).expression(), bound, free);
+			bound.add(((Binding)e).var().name());
+		}
+		else if (isSequence(e)) //bindings of a nested sequence are local to it
+		{
+			final Set<String> local = new HashSet<>(bound);
+			for (final Expr sub : ((CompositeExpr)e).subExpressions()) addFreeVars(sub, local, free);
+		}
+		else Inlining.forEachSubExpression(e, sub -> addFreeVars(sub, bound, free));
+	}
+
+	/**
+	 * A rough estimate of the size, in bytes, of the bytecode javac emits for the given expression, as written by the java formatter:
+	 * loading or storing a variable takes 4 bytes (a method large enough to matter has more than 255 local slots, so most of its variables need a <code>wide</code> instruction),
+	 * loading a constant 3, invoking a method 3, and a comparison or a branch about 8.
+	 */
+	static int bytecodeSize(final Expr e)
+	{
+		if (e instanceof VarExpr) return VAR_ACCESS_SIZE;
+		else if (e instanceof LiteralExpr) return 3;
+		else if (e instanceof Binding) return VAR_ACCESS_SIZE + bytecodeSize(((Binding)e).expression());
+		else if (e instanceof BinOpExpr) return (BinaryOp.from(((BinOpExpr)e).op()) == BinaryOp.MULT ? 1 : 8) + subExpressionsSize(e);
+		else if (e instanceof FunctionExpr) return (((FunctionExpr)e).function() == BuiltInFunction.IF ? 8 : 3) + subExpressionsSize(e);
+		else if (e instanceof BranchExpr) return 8 + subExpressionsSize(e);
+		else return 1 + subExpressionsSize(e); //a sequence, and its value returned
+	}
+
+	private static int subExpressionsSize(final Expr e)
+	{
+		final int[] ret = { 0 };
+		Inlining.forEachSubExpression(e, sub -> ret[0] += bytecodeSize(sub));
+		return ret[0];
+	}
+
+	private static int callSize(final int argCount) { return 3 + VAR_ACCESS_SIZE * (argCount + 1); }
+
+	private static boolean isSequence(final Expr e) { return e instanceof CompositeExpr && !(e instanceof BinOpExpr); }
+}
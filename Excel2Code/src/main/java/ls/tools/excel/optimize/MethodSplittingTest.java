@@ -0,0 +1,80 @@
+package ls.tools.excel.optimize;
+
+import fj.data.List;
+import ls.tools.excel.eval.Interpreter;
+import ls.tools.excel.model.*;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static fj.data.List.list;
+import static ls.tools.excel.CellType.NUMERIC;
+import static ls.tools.excel.model.BinaryOp.MULT;
+import static ls.tools.excel.model.Functions.createFunction;
+import static ls.tools.excel.model.Functions.param;
+import static ls.tools.fj.Util.fj;
+import static org.junit.Assert.*;
+
+public final class MethodSplittingTest implements ExpressionBuilder
+{
+	private final VarExpr x = var("X").ofType(NUMERIC);
+
+	@Test
+	public void longFunctionIsSplitIntoPartsWithinTheBudget()
+	{
+		final Function chain = chain(1000);
+		final List<Function> result = new MethodSplitting(500).apply(list(chain));
+
+		assertTrue(result.length() > 1);
+		assertEquals("chain", result.last().name());
+		assertEquals("chain_part1", result.init().last().name());
+		for (final Function f : result)
+			assertTrue(f.name() + " is too large", MethodSplitting.bytecodeSize(f.body()) <= 500);
+		final Interpreter interpreter = new Interpreter();
+		assertEquals(interpreter.prepare(chain).applyAsDouble(1.5), interpreter.prepare(result.last()).applyAsDouble(1.5), 1e-9);
+	}
+
+	@Test
+	public void variablesLiveAcrossTheSplitAreParameters()
+	{
+		final List<Function> result = new MethodSplitting(100).apply(list(chain(20)));
+		//the first product of the helper multiplies the last product before it by the constant, bound first
+		assertEquals(Arrays.asList("_" + lastProductBeforeSplit(result), "_k"), new ArrayList<>(result.init().last().parameters().map(fj(Param::name)).toCollection()));
+	}
+
+	@Test
+	public void smallFunctionsAreKept()
+	{
+		final Function small = chain(3);
+		final List<Function> result = new MethodSplitting().apply(list(small));
+		assertEquals(1, result.length());
+		assertEquals(small, result.head());
+	}
+
+	/**
+	 * The split function binds _k, then products _0 .. _n, then invokes the helper.
+	 */
+	private static int lastProductBeforeSplit(final List<Function> result)
+	{
+		return ((CompositeExpr)result.last().body()).subExpressions().length() - 3;
+	}
+
+	/**
+	 * chain(X) = _k = 1.001, _0 = X * _k, _1 = _0 * _k, ...
+	 */
+	private Function chain(final int length)
+	{
+		final VarExpr k = var("_k").ofType(NUMERIC);
+		final List.Buffer<Expr> body = List.Buffer.empty();
+		body.snoc(bindingOf(k).to(numericLiteral(1.001)));
+		VarExpr previous = x;
+		for (int i = 0; i < length; i++)
+		{
+			final VarExpr v = var("_" + i).ofType(NUMERIC);
+			body.snoc(bindingOf(v).to(binOp(previous, MULT, k)));
+			previous = v;
+		}
+		return createFunction("chain", list(param("X", NUMERIC)), sequence(body.toList()), NUMERIC);
+	}
+}
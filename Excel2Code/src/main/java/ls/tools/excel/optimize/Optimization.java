@@ -0,0 +1,16 @@
+package ls.tools.excel.optimize;
+
+import fj.data.List;
+import ls.tools.excel.model.Function;
+
+/**
+ * A transformation of converted functions into functions that compute the same results, with less work.
+ */
+public interface Optimization
+{
+	/**
+	 * @param functions Functions, each after the functions it invokes - as converted
+	 * @return The optimized functions, in the same order. Functions invoking optimized functions invoke the optimized ones.
+	 */
+	List<Function> apply(final List<Function> functions);
+}
@@ -0,0 +1,56 @@
+package ls.tools.excel.optimize;
+
+import fj.data.List;
+import ls.tools.excel.model.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The standard optimizations, and measures of their effect.
+ */
+public final class Optimizations
+{
+	private Optimizations() {}
+
+	/**
+	 * @param exported The names whose functions must be kept, even if they're inlined wherever they're invoked
+	 * @return All optimizations, in the order they should be applied: small functions are inlined first, so the rest work across function boundaries,
+	 * constants are folded next, so more sub expressions are found equal, and unused bindings (left by all) are removed last.
+	 */
+	public static List<Optimization> all(final String... exported)
+	{
+		return List.list(new Inlining(exported), new ConstantFolding(), new CommonSubexpressionElimination(), new DeadBindingElimination());
+	}
+
+	/**
+	 * @return The number of expression nodes in the bodies of the given functions.
+	 */
+	public static int nodeCount(final List<Function> functions)
+	{
+		checkArgument(functions != null,"Functions can't be null");
+		int ret = 0;
+		for (final Function f : functions)
+			ret += nodeCount(f.body());
+		return ret;
+	}
+
+	private static int nodeCount(final Expr e)
+	{
+		if (e instanceof Binding) return 1 + nodeCount(((Binding)e).var()) + nodeCount(((Binding)e).expression());
+		else if (e instanceof FunctionExpr)
+		{
+			int ret = 1;
+			for (final Expr arg : ((FunctionExpr)e).args()) ret += nodeCount(arg);
+			return ret;
+		}
+		else if (e instanceof BranchExpr)
+			return 1 + nodeCount(((BranchExpr)e).test()) + nodeCount(((BranchExpr)e).whenTrue()) + nodeCount(((BranchExpr)e).whenFalse());
+		else if (e instanceof CompositeExpr) //including binary operations
+		{
+			int ret = 1;
+			for (final Expr sub : ((CompositeExpr)e).subExpressions()) ret += nodeCount(sub);
+			return ret;
+		}
+		else return 1;
+	}
+}
@@ -0,0 +1,93 @@
+package ls.tools.excel.optimize;
+
+import fj.data.List;
+import ls.tools.excel.BuiltInFunction;
+import ls.tools.excel.CellType;
+import ls.tools.excel.model.*;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static ls.tools.excel.CellType.BOOLEAN;
+import static ls.tools.excel.CellType.FORMULA;
+import static ls.tools.excel.model.Functions.createFunction;
+import static ls.tools.fj.Util.fj;
+
+/**
+ * Replaces the {@link CellType#FORMULA FORMULA} type, which stands for "any type", with the type actually computed, where it's known ahead of time,
+ * so typed languages (e.g. java) can use primitive types instead of objects.
+ * <br/>
+ * A variable typed <code>FORMULA</code> takes the type of the expression bound to it, and so do its uses. A function returning <code>FORMULA</code> returns
+ * the type of its body, and so do invocations of it, in the functions after it.
+ * An <code>IF</code> invocation is replaced by a branch, whose type is that of its sides when they have the same type (otherwise it stays <code>FORMULA</code>).
+ * <br/>
+ * Types other than <code>FORMULA</code> are kept as they are.
+ */
+public final class TypeInference implements Optimization
+{
+
+	@Override public List<Function> apply(final List<Function> functions)
+	{
+		checkArgument(functions != null,"Functions can't be null");
+		final Map<Function,Function> inferred = new IdentityHashMap<>();
+		final List.Buffer<Function> ret = List.Buffer.empty();
+		for (final Function f : functions)
+		{
+			final Function o = new Inferrer(inferred).rewriteFunction(f);
+			inferred.put(f, o);
+			ret.snoc(o);
+		}
+		return ret.toList();
+	}
+
+	private static final class Inferrer extends ExpressionRewriter
+	{
+		private final Map<Function,Function> inferred;
+		/**
+		 * The types inferred for variables typed FORMULA, by name.
+		 */
+		private final Map<String,CellType> types = new HashMap<>();
+
+		Inferrer(final Map<Function,Function> _inferred) { this.inferred = _inferred; }
+
+		@Override public Function rewriteFunction(final Function f)
+		{
+			checkArgument(f != null,"Function to rewrite can't be null");
+			final Expr body = rewrite(f.body());
+			return createFunction(f.name(), f.parameters(), body, f.returnType() == FORMULA ? body.type() : f.returnType());
+		}
+
+		@Override protected Function rewriteInvoked(final Function f) { return inferred.containsKey(f) ? inferred.get(f) : f; }
+
+		@Override protected Expr rewrite(final VarExpr e) { return types.containsKey(e.name()) ? var(e.name()).ofType(types.get(e.name())) : e; }
+
+		@Override protected Expr rewrite(final Binding b)
+		{
+			final Expr value = rewrite(b.expression());
+			if (b.var().type() != FORMULA || value.type() == FORMULA) return bindingOf(b.var()).to(value);
+			types.put(b.var().name(), value.type());
+			return bindingOf(var(b.var().name()).ofType(value.type())).to(value);
+		}
+
+		/**
+		 * An <code>IF</code> invocation becomes a branch, unless its test isn't a boolean (a branch can't test anything else).
+		 */
+		@Override protected Expr rewrite(final FunctionExpr fe)
+		{
+			if (fe.function() != BuiltInFunction.IF) return super.rewrite(fe);
+			final List<Expr> args = fe.args().map(fj((Expr e) -> rewrite(e)));
+			final CellType testType = args.head().type();
+			if (testType != BOOLEAN && testType != FORMULA) return invocationOf(fe.function()).withArgs(args);
+			return test(args.head()).ifTrue(args.index(1)).ifFalse(args.index(2));
+		}
+
+		@Override protected Expr rewrite(final BranchExpr e)
+		{
+			final Expr test = rewrite(e.test());
+			checkArgument(test.type() == BOOLEAN || test.type() == FORMULA,"IF is only supported with a boolean test: " + e.test());
+			return test(test).ifTrue(rewrite(e.whenTrue())).ifFalse(rewrite(e.whenFalse()));
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package ls.tools.excel.optimize;
+
+import fj.data.List;
+import ls.tools.excel.BuiltInFunction;
+import ls.tools.excel.FormulaConverter;
+import ls.tools.excel.eval.Interpreter;
+import ls.tools.excel.model.*;
+import org.apache.poi.ss.usermodel.Name;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Test;
+
+import static fj.data.List.list;
+import static ls.tools.excel.CellType.*;
+import static ls.tools.excel.model.BinaryOp.EQL;
+import static ls.tools.excel.model.Functions.createFunction;
+import static ls.tools.excel.model.Functions.param;
+import static org.junit.Assert.*;
+
+public final class TypeInferenceTest implements ExpressionBuilder
+{
+	private static final String SHEET1 = "Sheet1";
+	private static final String NAME = "f";
+	private final VarExpr x = var("X").ofType(NUMERIC);
+	private final Interpreter interpreter = new Interpreter();
+
+	@Test
+	public void ifInvocationBecomesATypedBranch()
+	{
+		//f(X) = _0 = X = 1, _1 = IF(_0, X, 2) - typed FORMULA, as IF is
+		final VarExpr test = var("_0").ofType(BOOLEAN);
+		final Function f = createFunction("f", list(param("X", NUMERIC)), sequence(
+				bindingOf(test).to(binOp(x, EQL, numericLiteral(1))),
+				bindingOf(var("_1").ofType(FORMULA)).to(invocationOf(BuiltInFunction.IF).withArgs(test, x, numericLiteral(2)))), FORMULA);
+		final Function inferred = new TypeInference().apply(list(f)).head();
+
+		assertEquals(NUMERIC, inferred.returnType());
+		final Binding result = lastBindingOf(inferred);
+		assertEquals(var("_1").ofType(NUMERIC), result.var());
+		assertTrue(result.expression() instanceof BranchExpr);
+		assertSameResults(f, inferred, 1, 3);
+	}
+
+	@Test
+	public void foldedBranchTakesTheTypeOfTheSideTaken()
+	{
+		//B1 = IF(TRUE,A1=0,2) - a boolean or a number, until the test is folded
+		final List<Function> converted = convert("IF(TRUE,A1=0,2)");
+		assertEquals(FORMULA, converted.last().returnType());
+		final Function folded = new ConstantFolding().apply(converted).last();
+		final Function inferred = new TypeInference().apply(list(folded)).head();
+
+		assertEquals(BOOLEAN, inferred.returnType());
+		assertEquals(BOOLEAN, lastBindingOf(inferred).var().type());
+		assertSameResults(converted.last(), inferred, 0, 3);
+	}
+
+	@Test
+	public void invocationsTakeTheInferredReturnType()
+	{
+		//B1 = IF(A1=0,C1,2), where C1 = IF(TRUE,A1,A1=0) is only known to be a number once folded
+		final List<Function> converted = convert("IF(A1=0,C1,2)", "IF(TRUE,A1,A1=0)");
+		assertEquals(FORMULA, converted.head().returnType());
+		assertEquals(FORMULA, converted.last().returnType());
+		final List<Function> inferred = new TypeInference().apply(new ConstantFolding().apply(converted));
+
+		assertEquals(NUMERIC, inferred.head().returnType());
+		assertEquals(NUMERIC, inferred.last().returnType());
+		final BranchExpr branch = (BranchExpr)lastBindingOf(inferred.last()).expression();
+		final Binding invocation = (Binding)((CompositeExpr)branch.whenTrue()).subExpressions().head();
+		assertEquals(NUMERIC, invocation.var().type());
+		assertSame(inferred.head(), ((FunctionExpr)invocation.expression()).function());
+		assertSameResults(converted.last(), inferred.last(), 0, 3);
+	}
+
+	@Test
+	public void inlinedBranchesAreTyped()
+	{
+		final List<Function> converted = convert("IF(A1=0,C1,2)", "IF(TRUE,A1,A1=0)");
+		final List<Function> inlined = new ConstantFolding().apply(new Inlining(NAME).apply(converted));
+		assertEquals(1, inlined.length());
+		final Function inferred = new TypeInference().apply(inlined).head();
+
+		assertEquals(NUMERIC, inferred.returnType());
+		assertEquals(NUMERIC, lastBindingOf(inferred).var().type());
+		assertSameResults(converted.last(), inferred, 0, 3);
+	}
+
+	@Test
+	public void branchTestingAFormulaCellOfUnknownTypeIsKept()
+	{
+		//B1 = IF(C1,1,2), where C1 = IF(A1=0,A1=0,3) is a boolean or a number, so its type is only known when evaluated
+		final List<Function> converted = convert("IF(C1,1,2)", "IF(A1=0,A1=0,3)");
+		final List<Function> inferred = new TypeInference().apply(converted);
+
+		assertEquals(FORMULA, inferred.head().returnType());
+		assertEquals(NUMERIC, inferred.last().returnType());
+		final BranchExpr branch = (BranchExpr)lastBindingOf(inferred.last()).expression();
+		assertEquals(FORMULA, branch.test().type());
+		assertEquals(NUMERIC, branch.type());
+		assertSameResults(converted.last(), inferred.last(), 0);
+	}
+
+	/**
+	 * Convert a workbook whose B1 cell, named {@value #NAME}, holds the first formula, and whose C1 cell holds the second, if given.
+	 */
+	private static List<Function> convert(final String b1, final String... c1)
+	{
+		final XSSFWorkbook wb = new XSSFWorkbook();
+		final Row row = wb.createSheet(SHEET1).createRow(0);
+		row.createCell(0).setCellValue(0);
+		row.createCell(1).setCellFormula(b1);
+		if (c1.length > 0) row.createCell(2).setCellFormula(c1[0]);
+		final Name n = wb.createName();
+		n.setNameName(NAME);
+		n.setRefersToFormula(SHEET1 + "!$B$1");
+		return new FormulaConverter().formulasFromNamedCells(wb, NAME);
+	}
+
+	private static Binding lastBindingOf(final Function f) { return (Binding)((CompositeExpr)f.body()).subExpressions().last(); }
+
+	private void assertSameResults(final Function expected, final Function actual, final double... args)
+	{
+		for (final double arg : args)
+			assertEquals(interpreter.prepare(expected).apply(arg), interpreter.prepare(actual).apply(arg));
+	}
+}
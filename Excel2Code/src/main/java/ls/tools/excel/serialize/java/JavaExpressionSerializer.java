@@ -0,0 +1,385 @@
+package ls.tools.excel.serialize.java;
+
+import fj.data.List;
+import ls.tools.excel.BuiltInFunction;
+import ls.tools.excel.eval.Operations;
+import ls.tools.excel.model.*;
+
+import javax.lang.model.SourceVersion;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static ls.tools.excel.BuiltInFunction.isBuiltinFunction;
+import static ls.tools.excel.serialize.java.JavaLanguageBinding.*;
+
+/**
+ * Serializes function bodies to java statements and expressions.
+ * <br/>
+ * Every variable is declared with the java type of its value. A value typed {@link ls.tools.excel.CellType#FORMULA FORMULA}, whose cell type is only known when
+ * it's computed, is an object; {@link ls.tools.excel.optimize.TypeInference} replaces such types with the types actually computed, where they're known ahead of time.
+ * A value is converted (unboxed, or from a boolean to a number) only where another type is required.
+ * <br/>
+ * A variable bound again (e.g. a formula cell referenced twice, whose variable is named after the cell) is assigned where it's already declared,
+ * in its block or an enclosing one, and isn't declared <code>final</code>.
+ * <br/>
+ * A serializer serializes a single function, and isn't thread safe.
+ */
+final class JavaExpressionSerializer
+{
+	/**
+	 * The class holding the built-in functions java doesn't have - the same operations the evaluators use.
+	 */
+	static final String HELPERS = Operations.class.getName();
+	private static final String NL = System.getProperty("line.separator");
+	private static final String TAB = "\t";
+	private static final String FINAL = "final ";
+
+	private final JavaLanguageBinding binding = new JavaLanguageBinding();
+	/**
+	 * The java type of every variable in scope - the function's parameters, and the variables bound so far.
+	 */
+	private final Map<String,String> types = new HashMap<>();
+	/**
+	 * The variables declared in the block written, or in the blocks enclosing it.
+	 */
+	private Set<String> declared = new HashSet<>();
+	/**
+	 * The variables bound more than once in the function body; set when the body is serialized.
+	 */
+	private Set<String> rebound = null;
+
+	JavaExpressionSerializer(final List<Param> params)
+	{
+		checkArgument(params != null,"Parameters can't be null");
+		for (final Param p : params)
+			types.put(p.name(), binding.typeNameFor(p.type()));
+	}
+
+	String typeOf(final Param p) { return binding.typeNameFor(p.type()); }
+
+	/**
+	 * @return The java type of the values the given function returns.
+	 */
+	String returnTypeOf(final Function f) { return binding.typeNameFor(f.returnType()); }
+
+	private String typeOf(final Expr e)
+	{
+		return e instanceof VarExpr && types.containsKey(((VarExpr)e).name()) ? types.get(((VarExpr)e).name()) : binding.typeNameFor(e.type());
+	}
+
+	/**
+	 * Serialize the bindings of a function body, each as a declaration on its own line.
+	 * @param body The function body - a sequence, or a single expression
+	 * @param indent The indentation of every line
+	 * @param out The output to write the statements to
+	 * @return The expression holding the value of the body, to be used after the statements.
+	 */
+	Expr serializeStatements(final Expr body, final String indent, final Appendable out) throws IOException
+	{
+		checkArgument(body != null,"Body can't be null");
+		if (rebound == null) rebound = reboundNames(body);
+		if (!isSequence(body)) return body;
+		for (final Expr e : ((CompositeExpr)body).subExpressions())
+			if (e instanceof Binding) serialize((Binding)e, indent, out); //anything else has no effect, unless it's the value
+		return evaluationOf(((CompositeExpr)body).subExpressions().last());
+	}
+
+	/**
+	 * A branch holding statements is written as an <code>if</code> statement, assigning the variable in each branch; anything else is a declaration initializing it.
+	 */
+	private void serialize(final Binding b, final String indent, final Appendable out) throws IOException
+	{
+		final String var = b.var().name();
+		final boolean isDeclared = declared.contains(var);
+		final String type = isDeclared ? types.get(var) : typeOf(b.expression());
+		final String modifier = rebound.contains(var) ? "" : FINAL;
+		if (isBranchOfStatements(b.expression()))
+		{
+			final BranchExpr be = (BranchExpr)b.expression();
+			if (!isDeclared) out.append(indent).append(modifier).append(type).append(' ').append(var).append(';').append(NL);
+			out.append(indent).append("if (");
+			serializeAs(BOOLEAN, be.test(), out);
+			out.append(") {").append(NL);
+			assign(var, type, be.whenTrue(), indent + TAB, out);
+			out.append(indent).append("} else {").append(NL);
+			assign(var, type, be.whenFalse(), indent + TAB, out);
+			out.append(indent).append('}').append(NL);
+		}
+		else
+		{
+			out.append(indent);
+			if (!isDeclared) out.append(modifier).append(type).append(' ');
+			out.append(var).append(" = ");
+			serializeAs(type, b.expression(), out);
+			out.append(';').append(NL);
+		}
+		declared.add(var);
+		types.put(var, type);
+	}
+
+	/**
+	 * The statements of a branch are written in a block of their own, so the variables they declare are only declared in it.
+	 */
+	private void assign(final String var, final String type, final Expr branch, final String indent, final Appendable out) throws IOException
+	{
+		final Set<String> enclosing = declared;
+		declared = new HashSet<>(declared);
+		final Expr value = serializeStatements(branch, indent, out);
+		out.append(indent).append(var).append(" = ");
+		serializeAs(type, value, out);
+		out.append(';').append(NL);
+		declared = enclosing;
+	}
+
+	/**
+	 * @return The names of the variables bound more than once anywhere in the given body, including the branches in it.
+	 */
+	private static Set<String> reboundNames(final Expr body)
+	{
+		final Set<String> bound = new HashSet<>();
+		final Set<String> ret = new HashSet<>();
+		addBindings(body, bound, ret);
+		return ret;
+	}
+
+	private static void addBindings(final Expr e, final Set<String> bound, final Set<String> rebound)
+	{
+		if (e instanceof Binding)
+		{
+			if (!bound.add(((Binding)e).var().name())) rebound.add(((Binding)e).var().name());
+			addBindings(((Binding)e).expression(), bound, rebound);
+		}
+		else if (e instanceof BranchExpr)
+		{
+			addBindings(((BranchExpr)e).whenTrue(), bound, rebound);
+			addBindings(((BranchExpr)e).whenFalse(), bound, rebound);
+		}
+		else if (isSequence(e))
+			for (final Expr sub : ((CompositeExpr)e).subExpressions()) addBindings(sub, bound, rebound);
+	}
+
+	private static boolean isBranchOfStatements(final Expr e)
+	{
+		return e instanceof BranchExpr && (isSequence(((BranchExpr)e).whenTrue()) || isSequence(((BranchExpr)e).whenFalse()));
+	}
+
+	/**
+	 * Serialize the given expression as a value of the given java type, converting it if it has another type.
+	 */
+	void serializeAs(final String type, final Expr e, final Appendable out) throws IOException
+	{
+		final String actual = typeOf(e);
+		if (actual.equals(type) || type.equals(OBJECT)) serialize(e, out);
+		else if (actual.equals(OBJECT))
+		{
+			out.append("((").append(type.equals(DOUBLE) ? "Number" : type.equals(BOOLEAN) ? "Boolean" : type).append(')');
+			serialize(e, out);
+			out.append(type.equals(DOUBLE) ? ").doubleValue()" : ")");
+		}
+		else if (actual.equals(BOOLEAN) && type.equals(DOUBLE)) //as in Excel, TRUE is 1 and FALSE is 0
+		{
+			out.append('(');
+			serialize(e, out);
+			out.append(" ? 1d : 0d)");
+		}
+		else throw new IllegalArgumentException("Can't use a value of type " + actual + " as a value of type " + type + ": " + e);
+	}
+
+	private void serialize(final Expr e, final Appendable out) throws IOException
+	{
+		checkArgument(e != null,"Expression can't be null");
+		if (e instanceof BinOpExpr) serialize((BinOpExpr)e, out); //must be considered before CompositeExpr
+		else if (e instanceof FunctionExpr) serialize((FunctionExpr)e, out);
+		else if (e instanceof LiteralExpr) serialize((LiteralExpr)e, out);
+		else if (e instanceof VarExpr) out.append(((VarExpr)e).name());
+		else if (e instanceof BranchExpr && !isBranchOfStatements(e))
+			conditional(((BranchExpr)e).test(), ((BranchExpr)e).whenTrue(), ((BranchExpr)e).whenFalse(), typeOf(e), out);
+		else throw new IllegalArgumentException("Only bindings of a function body can hold statements: " + e);
+	}
+
+	/**
+	 * Numbers and booleans are compared by value, and strings ignoring case, as in Excel. Values of different types are never equal.
+	 */
+	private void serialize(final BinOpExpr e, final Appendable out) throws IOException
+	{
+		final Expr a = e.subExpressions().head();
+		final Expr b = e.subExpressions().last();
+		switch (BinaryOp.from(e.op()))
+		{
+			case MULT :
+				operand(DOUBLE, a, out);
+				out.append(" * ");
+				operand(DOUBLE, b, out);
+				break;
+			case EQL :
+				final String ta = typeOf(a);
+				final String tb = typeOf(b);
+				if (ta.equals(OBJECT) || tb.equals(OBJECT)) helperCall("eql", e.subExpressions(), out);
+				else if (!ta.equals(tb)) out.append("false");
+				else if (ta.equals(STRING))
+				{
+					operand(STRING, a, out);
+					out.append(".equalsIgnoreCase(");
+					serialize(b, out);
+					out.append(')');
+				}
+				else
+				{
+					operand(ta, a, out);
+					out.append(" == ");
+					operand(tb, b, out);
+				}
+				break;
+			default : throw new IllegalStateException("Unrecognized binary operator: " + e.op());
+		}
+	}
+
+	private void operand(final String type, final Expr e, final Appendable out) throws IOException
+	{
+		if (e instanceof BinOpExpr) out.append('(');
+		serializeAs(type, e, out);
+		if (e instanceof BinOpExpr) out.append(')');
+	}
+
+	private void serialize(final FunctionExpr fe, final Appendable out) throws IOException
+	{
+		if (isBuiltinFunction(fe.functionName())) serializeBuiltInFunctionCall(fe, out);
+		else
+		{
+			out.append(javaName(fe.functionName())).append('(');
+			serializeArguments(fe.function().parameters(), fe.args(), out);
+			out.append(')');
+		}
+	}
+
+	/**
+	 * Functions java has are called directly; the others are called through the {@link #HELPERS helper class}.
+	 */
+	private void serializeBuiltInFunctionCall(final FunctionExpr fe, final Appendable out) throws IOException
+	{
+		final BuiltInFunction f = BuiltInFunction.from(fe.functionName());
+		switch (f)
+		{
+			case SQRT :
+				out.append("Math.sqrt(");
+				serializeArguments(f.parameters(), fe.args(), out);
+				out.append(')');
+				break;
+			case IF :
+				conditional(fe.args().index(0), fe.args().index(1), fe.args().index(2), typeOf(fe), out);
+				break;
+			case MOD :
+			case SUM :
+			case AVERAGE :
+			case MIN :
+			case MAX :
+			case COUNT :
+				out.append(HELPERS).append('.').append(f.name().toLowerCase()).append('(');
+				serializeArguments(f.parameters(), fe.args(), out);
+				out.append(')');
+				break;
+			case ARRAY : //any number of arguments, boxed so the helper can tell the numbers among them
+				helperCall("array", fe.args(), out);
+				break;
+			default : throw new IllegalStateException("Unrecognized built-in function: " + f.name());
+		}
+	}
+
+	private void conditional(final Expr test, final Expr whenTrue, final Expr whenFalse, final String type, final Appendable out) throws IOException
+	{
+		out.append('(');
+		serializeAs(BOOLEAN, test, out);
+		out.append(" ? ");
+		serializeAs(type, whenTrue, out);
+		out.append(" : ");
+		serializeAs(type, whenFalse, out);
+		out.append(')');
+	}
+
+	private void helperCall(final String helper, final List<Expr> args, final Appendable out) throws IOException
+	{
+		out.append(HELPERS).append('.').append(helper).append('(');
+		boolean first = true;
+		for (final Expr arg : args)
+		{
+			if (!first) out.append(", ");
+			serializeAs(OBJECT, arg, out);
+			first = false;
+		}
+		out.append(')');
+	}
+
+	private void serializeArguments(final List<Param> params, final List<Expr> args, final Appendable out) throws IOException
+	{
+		checkArgument(params.length() == args.length(),"Expected " + params.length() + " arguments, but got: " + args);
+		final Iterator<Param> p = params.iterator();
+		boolean first = true;
+		for (final Expr arg : args)
+		{
+			if (!first) out.append(", ");
+			serializeAs(typeOf(p.next()), arg, out);
+			first = false;
+		}
+	}
+
+	private void serialize(final LiteralExpr e, final Appendable out) throws IOException
+	{
+		switch (e.type())
+		{
+			case NUMERIC : out.append(javaDouble(Double.parseDouble(e.value()))); break;
+			case BOOLEAN : out.append(String.valueOf(Boolean.parseBoolean(e.value()))); break;
+			case STRING : quoted(e.value(), out); break;
+			default : throw new IllegalArgumentException("Can't write a literal of type " + e.type() + ": " + e);
+		}
+	}
+
+	/**
+	 * @return The given number as a java literal; infinities and NaN (e.g. folded from a division by zero) are the constants of {@link Double}.
+	 */
+	private static String javaDouble(final double d)
+	{
+		if (Double.isNaN(d)) return "Double.NaN";
+		else if (d == Double.POSITIVE_INFINITY) return "Double.POSITIVE_INFINITY";
+		else if (d == Double.NEGATIVE_INFINITY) return "Double.NEGATIVE_INFINITY";
+		else return String.valueOf(d);
+	}
+
+	private static void quoted(final String s, final Appendable out) throws IOException
+	{
+		out.append('"');
+		for (final char c : s.toCharArray())
+			switch (c)
+			{
+				case '"' : out.append("\\\""); break;
+				case '\\' : out.append("\\\\"); break;
+				case '\n' : out.append("\\n"); break;
+				case '\r' : out.append("\\r"); break;
+				case '\t' : out.append("\\t"); break;
+				default : out.append(c);
+			}
+		out.append('"');
+	}
+
+	/**
+	 * @return The given name, with any character that can't be part of a java identifier replaced by an underscore, and prefixed by an underscore if it can't start one
+	 * (or is a keyword).
+	 */
+	static String javaName(final String name)
+	{
+		checkArgument(name != null && !name.isEmpty(),"Name can't be null or empty");
+		final StringBuilder sb = new StringBuilder(name.length() + 1);
+		for (final char c : name.toCharArray())
+			sb.append(Character.isJavaIdentifierPart(c) ? c : '_');
+		if (!Character.isJavaIdentifierStart(sb.charAt(0)) || SourceVersion.isKeyword(sb)) sb.insert(0, '_');
+		return sb.toString();
+	}
+
+	private static boolean isSequence(final Expr e) { return e instanceof CompositeExpr && !(e instanceof BinOpExpr); }
+
+	private static Expr evaluationOf(final Expr e) { return (e instanceof Binding) ? ((Binding)e).var() : e; }
+}
@@ -0,0 +1,156 @@
+package ls.tools.excel.serialize.java;
+
+import fj.data.List;
+import ls.tools.excel.FunctionFormatter;
+import ls.tools.excel.model.Expr;
+import ls.tools.excel.model.Function;
+import ls.tools.excel.model.Param;
+
+import javax.lang.model.SourceVersion;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static ls.tools.excel.serialize.java.JavaExpressionSerializer.javaName;
+
+/**
+ * Formats functions as public static methods of a single final class, typed by the {@link JavaLanguageBinding java binding}, so numbers are passed and returned
+ * as <code>double</code>s and never boxed.
+ * <br/>
+ * The class is opened by the {@link #prologue(Appendable) prologue} and closed by the {@link #epilogue(Appendable) epilogue}. The built-in functions java doesn't have
+ * (e.g. MOD and SUM) are invoked from {@link ls.tools.excel.eval.Operations}, so they compute exactly as the evaluators do; the generated class needs it on its classpath.
+ * <br/>
+ * A {@link #batch() batch} formatter follows every method with a batch version of it, named <code>&lt;name&gt;_batch</code>, taking an array (a column) for every
+ * parameter, and an output array, and looping over the rows, as the {@link ls.tools.excel.serialize.js.JSFormatter javascript formatter} does.
+ */
+public final class JavaFormatter implements FunctionFormatter
+{
+	public static final String DEFAULT_CLASS_NAME = "Formulas";
+
+	private static final String NL = System.getProperty("line.separator");
+	private static final String TAB = "\t";
+	private static final String BATCH_SUFFIX = "_batch";
+	private static final String COLUMN_SUFFIX = "_col";
+	private static final String ROW = "_row";
+	private static final String OUT = "_out";
+
+	private final String className;
+	private final boolean batch;
+
+	public JavaFormatter()
+	{
+		this(DEFAULT_CLASS_NAME);
+	}
+
+	/**
+	 * @param _className The simple name of the generated class
+	 */
+	public JavaFormatter(final String _className)
+	{
+		this(_className, false);
+	}
+
+	private JavaFormatter(final String _className, final boolean _batch)
+	{
+		checkArgument(_className != null && SourceVersion.isIdentifier(_className) && !SourceVersion.isKeyword(_className),"Invalid class name: " + _className);
+		this.className = _className;
+		this.batch = _batch;
+	}
+
+	@Override public FunctionFormatter batch() { return new JavaFormatter(className, true); }
+
+	@Override public void prologue(final Appendable out) throws IOException
+	{
+		checkArgument(out != null,"Output can't be null");
+		out.append("public final class ").append(className).append(NL).append('{').append(NL);
+		out.append(TAB).append("private ").append(className).append("() {}").append(NL).append(NL);
+	}
+
+	@Override public void epilogue(final Appendable out) throws IOException
+	{
+		checkArgument(out != null,"Output can't be null");
+		out.append('}').append(NL);
+	}
+
+	@Override public String format(final Function f)
+	{
+		checkArgument(f != null,"Function to format can't be null");
+		final StringBuilder sb = new StringBuilder();
+		try
+		{
+			format(f, sb);
+		}
+		catch (IOException e) { throw new UncheckedIOException(e); } //can't happen when appending to a StringBuilder
+		return sb.toString();
+	}
+
+	@Override public void format(final Function f, final Appendable out) throws IOException
+	{
+		checkArgument(f != null,"Function to format can't be null");
+		checkArgument(out != null,"Output can't be null");
+		final JavaExpressionSerializer exprSerializer = new JavaExpressionSerializer(f.parameters());
+		final String returnType = exprSerializer.returnTypeOf(f);
+		out.append(TAB).append("public static ").append(returnType).append(' ').append(javaName(f.name())).append('(');
+		formatParams(exprSerializer, f.parameters(), "", out);
+		out.append(')').append(NL).append(TAB).append('{').append(NL);
+		final Expr value = exprSerializer.serializeStatements(f.body(), TAB + TAB, out);
+		out.append(TAB + TAB).append("return ");
+		exprSerializer.serializeAs(returnType, value, out);
+		out.append(';').append(NL).append(TAB).append('}');
+		if (batch)
+		{
+			out.append(NL).append(NL);
+			batchMethod(f, out);
+		}
+	}
+
+	/**
+	 * Every row copies its values out of the columns, into variables named as the function's parameters, so the body is written as is.
+	 */
+	private void batchMethod(final Function f, final Appendable out) throws IOException
+	{
+		final JavaExpressionSerializer exprSerializer = new JavaExpressionSerializer(f.parameters());
+		final String returnType = exprSerializer.returnTypeOf(f);
+		final String indent = TAB + TAB + TAB;
+		out.append(TAB).append("public static void ").append(javaName(f.name())).append(BATCH_SUFFIX).append('(');
+		formatParams(exprSerializer, f.parameters(), "[]", out);
+		out.append(f.parameters().isEmpty() ? "" : ", ").append("final ").append(returnType).append("[] ").append(OUT).append(')').append(NL);
+		out.append(TAB).append('{').append(NL);
+		out.append(TAB + TAB).append("for (int ").append(ROW).append(" = 0; ").append(ROW).append(" < ").append(OUT).append(".length; ").append(ROW).append("++)").append(NL);
+		out.append(TAB + TAB).append('{').append(NL);
+		for (final Param p : f.parameters())
+			out.append(indent).append("final ").append(exprSerializer.typeOf(p)).append(' ').append(p.name()).append(" = ")
+				.append(p.name()).append(COLUMN_SUFFIX).append('[').append(ROW).append("];").append(NL);
+		final Expr value = exprSerializer.serializeStatements(f.body(), indent, out);
+		out.append(indent).append(OUT).append('[').append(ROW).append("] = ");
+		exprSerializer.serializeAs(returnType, value, out);
+		out.append(';').append(NL).append(TAB + TAB).append('}').append(NL).append(TAB).append('}');
+	}
+
+	private static void formatParams(final JavaExpressionSerializer exprSerializer, final List<Param> parameters, final String columnSuffix, final Appendable out) throws IOException
+	{
+		boolean first = true;
+		for (final Param p : parameters)
+		{
+			if (!first) out.append(", ");
+			out.append("final ").append(exprSerializer.typeOf(p)).append(columnSuffix).append(' ').append(p.name());
+			if (!columnSuffix.isEmpty()) out.append(COLUMN_SUFFIX);
+			first = false;
+		}
+	}
+
+	@Override
+	public <Func extends Function> String format(final List<Func> functions, final String delimiter)
+	{
+		checkArgument(functions != null,"Functions can't be null");
+		checkArgument(delimiter != null,"Delimiter can't be null");
+
+		final StringBuilder sb = new StringBuilder();
+		try
+		{
+			format(functions, delimiter, sb);
+		}
+		catch (IOException e) { throw new UncheckedIOException(e); } //can't happen when appending to a StringBuilder
+		return sb.toString();
+	}
+}
@@ -0,0 +1,161 @@
+package ls.tools.excel.serialize.java;
+
+import fj.data.List;
+import ls.tools.excel.FormulaConverter;
+import ls.tools.excel.FormulaConverterTest;
+import ls.tools.excel.eval.Interpreter;
+import ls.tools.excel.model.ExpressionBuilder;
+import ls.tools.excel.model.Function;
+import org.apache.poi.ss.usermodel.Name;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import static ls.tools.excel.CellType.NUMERIC;
+import static ls.tools.excel.model.Functions.createFunction;
+import static ls.tools.fj.Util.fj;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeNotNull;
+
+public final class JavaFormatterTest implements ExpressionBuilder
+{
+	@Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+	private final JavaFormatter formatter = new JavaFormatter("Generated");
+
+	@Test
+	public void times2Serialization()
+	{
+		final String result = formatter.format(new FormulaConverterTest().simpleScalarMultExpectedResult().head());
+
+		final String expected = "\tpublic static double times2(final double B3)" +
+								"\t{" +
+								"\t\tfinal double _0 = 2.0;" +
+								"\t\tfinal double _1 = B3 * _0;" +
+								"\t\treturn _1;" +
+								"\t}";
+		assertEquals(expected, result.replace(System.getProperty("line.separator"), ""));
+	}
+
+	@Test
+	public void ifIsABranchReturningAPrimitiveBoolean() throws Exception
+	{
+		final String result = formatter.format(isEven().head());
+		assertTrue(result, result.contains("public static boolean isEven(final double B3)"));
+		assertTrue(result, result.contains("final boolean _6;"));
+		assertTrue(result, result.contains("if (_3) {"));
+	}
+
+	@Test
+	public void generatedClassCompilesAndComputesAsTheInterpreter() throws Exception
+	{
+		final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		assumeNotNull(compiler); //running on a JRE
+
+		final XSSFWorkbook wb = (XSSFWorkbook) WorkbookFactory.create(new FileInputStream("test.xlsx"));
+		final List<Function> functions = new FormulaConverter().formulasFromNamedCells(wb, "cube_sqrt", "mult").append(isEven());
+		final File source = new File(folder.getRoot(), "Generated.java");
+		try (final Writer out = new FileWriter(source))
+		{
+			formatter.format(functions, "\n\n", out);
+		}
+		assertEquals(0, compile(compiler, source));
+
+		try (final URLClassLoader loader = new URLClassLoader(new URL[] { folder.getRoot().toURI().toURL() }))
+		{
+			final Class<?> generated = loader.loadClass("Generated");
+			final Interpreter interpreter = new Interpreter();
+			final Method cubeSqrt = generated.getMethod("cube_sqrt", double.class);
+			assertEquals(double.class, cubeSqrt.getReturnType());
+			assertEquals((Double)interpreter.prepare(functions.find(fj((Function f) -> f.name().equals("cube_sqrt"))).some()).apply(3.0), (Double)cubeSqrt.invoke(null, 3.0), 1e-9);
+			assertEquals(6.0, (Double)generated.getMethod("mult", double.class, double.class).invoke(null, 2.0, 3.0), 1e-9);
+			final Method isEven = generated.getMethod("isEven", double.class);
+			assertEquals(boolean.class, isEven.getReturnType());
+			assertEquals(true, isEven.invoke(null, 4.0));
+			assertEquals(false, isEven.invoke(null, -3.0));
+		}
+	}
+
+	@Test
+	public void formulaCellsReferencedTwiceCompile() throws Exception
+	{
+		final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		assumeNotNull(compiler); //running on a JRE
+
+		//C3 is bound every time it's referenced, in the body and in a branch, before and after the branch
+		final XSSFWorkbook wb = new XSSFWorkbook();
+		final Sheet sheet = wb.createSheet("Sheet1");
+		sheet.createRow(0).createCell(0).setCellValue(3);
+		sheet.getRow(0).createCell(1).setCellFormula("C3*C3*IF(A1=0,C3,2)");
+		sheet.createRow(1).createCell(1).setCellFormula("IF(A1=0,C3,2)*C3");
+		sheet.createRow(2).createCell(2).setCellFormula("A1*2");
+		name(wb, "outerFirst", "Sheet1!$B$1");
+		name(wb, "branchFirst", "Sheet1!$B$2");
+		final List<Function> functions = new FormulaConverter().formulasFromNamedCells(wb, "outerFirst", "branchFirst");
+		final File source = new File(folder.getRoot(), "Generated.java");
+		try (final Writer out = new FileWriter(source))
+		{
+			formatter.format(functions, "\n\n", out);
+		}
+		assertEquals(0, compile(compiler, source));
+
+		try (final URLClassLoader loader = new URLClassLoader(new URL[] { folder.getRoot().toURI().toURL() }))
+		{
+			final Class<?> generated = loader.loadClass("Generated");
+			final Interpreter interpreter = new Interpreter();
+			for (final String name : new String[] { "outerFirst", "branchFirst" })
+			{
+				final Function f = functions.find(fj((Function fn) -> fn.name().equals(name))).some();
+				final Method m = generated.getMethod(name, double.class);
+				for (final double a1 : new double[] { 0, 3 })
+					assertEquals(name + "(" + a1 + ")", (Double)interpreter.prepare(f).apply(a1), (Double)m.invoke(null, a1), 1e-9);
+			}
+		}
+	}
+
+	@Test
+	public void infiniteAndNaNLiteralsAreDoubleConstants()
+	{
+		final Function f = createFunction("limits", List.nil(), sequence(
+				bindingOf(var("_0").ofType(NUMERIC)).to(numericLiteral(Double.POSITIVE_INFINITY)),
+				bindingOf(var("_1").ofType(NUMERIC)).to(numericLiteral(Double.NEGATIVE_INFINITY)),
+				bindingOf(var("_2").ofType(NUMERIC)).to(numericLiteral(Double.NaN))), NUMERIC);
+		final String result = formatter.format(f);
+		assertTrue(result, result.contains("_0 = Double.POSITIVE_INFINITY;"));
+		assertTrue(result, result.contains("_1 = Double.NEGATIVE_INFINITY;"));
+		assertTrue(result, result.contains("_2 = Double.NaN;"));
+	}
+
+	/**
+	 * The generated class invokes {@link ls.tools.excel.eval.Operations}, so it's compiled with the test's classpath.
+	 */
+	private static int compile(final JavaCompiler compiler, final File source)
+	{
+		return compiler.run(null, null, null, "-classpath", System.getProperty("java.class.path"), source.getPath());
+	}
+
+	private static void name(final XSSFWorkbook wb, final String name, final String cell)
+	{
+		final Name n = wb.createName();
+		n.setNameName(name);
+		n.setRefersToFormula(cell);
+	}
+
+	private static List<Function> isEven() throws Exception
+	{
+		return new FormulaConverter().formulasFromNamedCells((XSSFWorkbook) WorkbookFactory.create(new FileInputStream("test2.xlsx")), "isEven");
+	}
+}
@@ -0,0 +1,36 @@
+package ls.tools.excel.serialize.java;
+
+import ls.tools.excel.CellType;
+import ls.tools.excel.FunctionFormatter;
+import ls.tools.excel.LanguageBinding;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Java types for cell types: numbers are <code>double</code>s, booleans are <code>boolean</code>s and ranges are <code>double[]</code>s, so they're never boxed.
+ * <br/>
+ * Other types (blank, error and formula cells, whose type is only known when they're computed) are <code>Object</code>s.
+ */
+public final class JavaLanguageBinding implements LanguageBinding
+{
+	static final String DOUBLE = "double";
+	static final String BOOLEAN = "boolean";
+	static final String STRING = "String";
+	static final String DOUBLE_ARRAY = "double[]";
+	static final String OBJECT = "Object";
+
+	@Override public String typeNameFor(final CellType cellType)
+	{
+		checkArgument(cellType != null,"Cell type can't be null");
+		switch (cellType)
+		{
+			case NUMERIC : return DOUBLE;
+			case BOOLEAN : return BOOLEAN;
+			case STRING : return STRING;
+			case RANGE : return DOUBLE_ARRAY;
+			default : return OBJECT;
+		}
+	}
+
+	@Override public FunctionFormatter formatter() { return new JavaFormatter(); }
+}
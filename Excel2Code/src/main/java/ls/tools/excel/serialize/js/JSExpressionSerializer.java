@@ -3,95 +3,272 @@ package ls.tools.excel.serialize.js;
 import ls.tools.excel.BuiltInFunction;
 import ls.tools.excel.model.*;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
 import static com.google.common.base.Preconditions.checkArgument;
-import static java.lang.String.format;
 import static ls.tools.excel.BuiltInFunction.isBuiltinFunction;
+import static ls.tools.excel.CellType.BOOLEAN;
 import static ls.tools.excel.CellType.STRING;
-import static ls.tools.fj.Util.fj;
+import static ls.tools.excel.DefinedNames.refersToSingleCell;
 
+/**
+ * Serializes expressions to javascript code.
+ * <br/>
+ * Code is written directly into an {@link Appendable}, piece by piece, so no intermediate strings are created for sub expressions.
+ */
 final class JSExpressionSerializer 
 {
 	
-	private static final String VAR_DECL_PATTERN = "var %1$s = %2$s";
-	private static final String BIN_OP_PATTERN = "%1$s %2$s %3$s";
-	private static final String FUNCTION_CALL_PATTERN = "%1$s(%2$s)";
+	private static final String VAR_DECL = "var ";
+	private static final String ASSIGNMENT = " = ";
 	private static final String NL = System.getProperty("line.separator");
-	private static final String BLOCK_PATTERN = "{%1$s" + NL + "return %2$s" + NL + "}";
+	private static final String RETURN = "return ";
+	/**
+	 * Ends the names of functions named after their cells - no cell reference or defined name has a <code>$</code> at its end.
+	 */
+	private static final String CELL_FUNCTION_SUFFIX = "$";
+
+	/**
+	 * The function of a formula cell without a name is named after its cell, and so is the variable bound to its result, which would hide the function
+	 * in javascript (<code>var B1 = B1(A1)</code> calls the variable). So such functions get a suffix.
+	 * @return The javascript name of the function of the given name.
+	 */
+	static String functionName(final String name) { return refersToSingleCell(name) ? name + CELL_FUNCTION_SUFFIX : name; }
+
 	
 	public String serialize(final Expr e)
+	{
+		final StringBuilder sb = new StringBuilder();
+		try
+		{
+			serialize(e, sb);
+		}
+		catch (IOException ioe) { throw new UncheckedIOException(ioe); } //can't happen when appending to a StringBuilder
+		return sb.toString();
+	}
+
+	public void serialize(final Expr e, final Appendable out) throws IOException
 	{
 		checkArgument(e != null,"Expression can't be null");
-		if (e instanceof Binding) return serialize((Binding)e);
-		else if (e instanceof BinOpExpr) return serialize((BinOpExpr)e); //must be considered before CompositeExpr
-		else if (e instanceof FunctionExpr) return serialize((FunctionExpr)e);
-		else if (e instanceof LiteralExpr) return serialize((LiteralExpr)e);
-		else if (e instanceof VarExpr) return serialize((VarExpr)e);
-		else if (e instanceof CompositeExpr) return serialize((CompositeExpr)e);
+		if (e instanceof Binding) serialize((Binding)e, out);
+		else if (e instanceof BinOpExpr) serialize((BinOpExpr)e, out); //must be considered before CompositeExpr
+		else if (e instanceof FunctionExpr) serialize((FunctionExpr)e, out);
+		else if (e instanceof LiteralExpr) serialize((LiteralExpr)e, out);
+		else if (e instanceof VarExpr) serialize((VarExpr)e, out);
+		else if (e instanceof BranchExpr) serialize((BranchExpr)e, out);
+		else if (e instanceof CompositeExpr) serialize((CompositeExpr)e, out);
 		else throw new IllegalArgumentException("Can't identify type of expression: " + getClass().getCanonicalName());
 	}
 	
-	private String serialize(Binding e) 
+	private void serialize(Binding e, final Appendable out) throws IOException
 	{
 		checkArgument(e != null,"Binding can't be null");
-		//String.format is probably not the best way to go performance-wise, but not sure it's critical in this case, and it makes the code clearer.
-		return format(VAR_DECL_PATTERN, e.var().name(),serialize(e.expression()));
+		if (isAggregate(e.expression()))
+			serializeAggregate(e.var().name(), (FunctionExpr)e.expression(), out);
+		else if (isBranchOfStatements(e.expression()))
+			serializeBranchStatement(e.var().name(), (BranchExpr)e.expression(), out);
+		else
+		{
+			out.append(VAR_DECL).append(e.var().name()).append(ASSIGNMENT);
+			serialize(e.expression(), out);
+		}
+	}
+
+	private static boolean isAggregate(final Expr e)
+	{
+		return e instanceof FunctionExpr && isBuiltinFunction(((FunctionExpr)e).functionName()) &&
+				BuiltInFunction.from(((FunctionExpr)e).functionName()).isAggregate();
+	}
+
+	/**
+	 * An aggregate is a loop over the array of numbers in its range, accumulating into the bound variable.
+	 * The loop index is named after the bound variable, so it's unique in the function.
+	 */
+	private void serializeAggregate(final String var, final FunctionExpr fe, final Appendable out) throws IOException
+	{
+		checkArgument(fe.args().head() instanceof VarExpr,"Can only aggregate a range variable: " + fe);
+		final String range = ((VarExpr)fe.args().head()).name();
+		final String i = var + "_i";
+		final String value = range + '[' + i + ']';
+		switch (BuiltInFunction.from(fe.functionName()))
+		{
+			case SUM :
+				out.append(VAR_DECL).append(var).append(" = 0;").append(NL);
+				loop(i, "0", range, var + " += " + value, out);
+				break;
+			case AVERAGE : //the average of no numbers is a division by zero, as in Operations.average
+				out.append("if (").append(range).append(".length == 0) throw new Error('AVERAGE: division by zero');").append(NL);
+				out.append(VAR_DECL).append(var).append(" = 0;").append(NL);
+				loop(i, "0", range, var + " += " + value, out);
+				out.append(';').append(NL).append(var).append(" = ").append(var).append(" / ").append(range).append(".length");
+				break;
+			case MIN :
+				out.append(VAR_DECL).append(var).append(" = ").append(range).append(".length > 0 ? ").append(range).append("[0] : 0;").append(NL);
+				loop(i, "1", range, "if (" + value + " < " + var + ") " + var + " = " + value, out);
+				break;
+			case MAX :
+				out.append(VAR_DECL).append(var).append(" = ").append(range).append(".length > 0 ? ").append(range).append("[0] : 0;").append(NL);
+				loop(i, "1", range, "if (" + value + " > " + var + ") " + var + " = " + value, out);
+				break;
+			case COUNT :
+				out.append(VAR_DECL).append(var).append(ASSIGNMENT).append(range).append(".length");
+				break;
+			default : throw new IllegalStateException("Unrecognized aggregate function: " + fe.functionName());
+		}
+	}
+
+	private static void loop(final String i, final String from, final String range, final String body, final Appendable out) throws IOException
+	{
+		out.append("for (var ").append(i).append(" = ").append(from).append("; ").append(i).append(" < ").append(range).append(".length; ")
+			.append(i).append("++) ").append(body);
 	}
 	
-	private String serialize(BinOpExpr e) 
+	private static boolean isBranchOfStatements(final Expr e)
+	{
+		return e instanceof BranchExpr && (isSequence(((BranchExpr)e).whenTrue()) || isSequence(((BranchExpr)e).whenFalse()));
+	}
+
+	private static boolean isSequence(final Expr e) { return e instanceof CompositeExpr && !(e instanceof BinOpExpr); }
+
+	/**
+	 * A branch holding bindings is an <code>if</code> statement, assigning the bound variable in each branch, so only the bindings of the branch taken are evaluated.
+	 */
+	private void serializeBranchStatement(final String var, final BranchExpr be, final Appendable out) throws IOException
+	{
+		out.append(VAR_DECL).append(var).append(';').append(NL).append("if (");
+		serialize(be.test(), out);
+		out.append(") {").append(NL);
+		assign(var, be.whenTrue(), out);
+		out.append("} else {").append(NL);
+		assign(var, be.whenFalse(), out);
+		out.append('}');
+	}
+
+	private void assign(final String var, final Expr branch, final Appendable out) throws IOException
+	{
+		final Expr value = serializeStatements(branch, out);
+		out.append(var).append(ASSIGNMENT);
+		serialize(value, out);
+		out.append(';').append(NL);
+	}
+
+	private void serialize(final BranchExpr be, final Appendable out) throws IOException
+	{
+		checkArgument(!isBranchOfStatements(be),"A branch holding bindings can only be bound to a variable: " + be);
+		out.append('(');
+		serialize(be.test(), out);
+		out.append(" ? ");
+		serialize(be.whenTrue(), out);
+		out.append(" : ");
+		serialize(be.whenFalse(), out);
+		out.append(')');
+	}
+
+	private void serialize(BinOpExpr e, final Appendable out) throws IOException
 	{
 		checkArgument(e != null,"Binary op expression can't be null");
-		return format(BIN_OP_PATTERN,
-				serialize(e.subExpressions().head()), e.op(), serialize(e.subExpressions().last()));
+		serialize(e.subExpressions().head(), out);
+		out.append(' ').append(BinaryOp.from(e.op()) == BinaryOp.EQL ? "==" : e.op()).append(' ');
+		serialize(e.subExpressions().last(), out);
 	}
-	private String serialize(FunctionExpr fe) 
+
+	private void serialize(FunctionExpr fe, final Appendable out) throws IOException
 	{
 		checkArgument(fe != null,"Function expression can't be null");
-		return (isBuiltinFunction(fe.functionName())) ? 
-				formatBuiltInFunctionCall(fe) : 
-				formatUserDefinedFunctionCall(fe);
+		if (isBuiltinFunction(fe.functionName()))
+			formatBuiltInFunctionCall(fe, out);
+		else formatUserDefinedFunctionCall(fe, out);
 	}
 
-	private String formatUserDefinedFunctionCall(final FunctionExpr fe) { return format(FUNCTION_CALL_PATTERN,fe.functionName(),formatArgumentsOf(fe)); }
+	private void formatUserDefinedFunctionCall(final FunctionExpr fe, final Appendable out) throws IOException
+	{
+		formatFunctionCall(functionName(fe.functionName()), fe, out);
+	}
 
-	private String formatBuiltInFunctionCall(final FunctionExpr fe)
+	private void formatBuiltInFunctionCall(final FunctionExpr fe, final Appendable out) throws IOException
 	{
         checkArgument(fe != null,"Function expression can't be null");
 		final BuiltInFunction f = BuiltInFunction.from(fe.functionName());
+		checkArgument(!f.isAggregate(),"Aggregate functions can only be bound to a variable: " + fe);
 		String funcCall ;
 		switch (f)
 		{
 			case SQRT : funcCall = "Math.sqrt"; break;
+			case ARRAY : //the array of the numbers among the arguments
+				out.append('[');
+				formatArgumentsOf(fe, out);
+				out.append("].filter(function (v) { return typeof v === 'number'; })");
+				return;
 			default : throw new IllegalStateException("Unrecognized built-in function: " + f.name());
 		}
-		return format(FUNCTION_CALL_PATTERN,funcCall,formatArgumentsOf(fe));
+		formatFunctionCall(funcCall, fe, out);
+	}
+
+	private void formatFunctionCall(final String funcCall, final FunctionExpr fe, final Appendable out) throws IOException
+	{
+		out.append(funcCall).append('(');
+		formatArgumentsOf(fe, out);
+		out.append(')');
 	}
 	
-	private String formatArgumentsOf(final FunctionExpr fe)
+	private void formatArgumentsOf(final FunctionExpr fe, final Appendable out) throws IOException
 	{
         checkArgument(fe != null,"Function expression can't be null");
-        final String args = fe.args().foldLeft(fj((accum, e) -> accum + serialize(e) + ","), "");
-		return args.substring(0, args.length()-1);
+		boolean first = true;
+		for (final Expr arg : fe.args())
+		{
+			if (!first) out.append(',');
+			serialize(arg, out);
+			first = false;
+		}
 	}
 
-	private String serialize(final LiteralExpr e)
+	private void serialize(final LiteralExpr e, final Appendable out) throws IOException
 	{
 		checkArgument(e != null,"Literal expression can't be null");
 		final String q = e.type() == STRING ? "'" : "";
-		return q + e.value() + q;
+		final String value = e.type() == BOOLEAN ? String.valueOf(e.value()).toLowerCase() : String.valueOf(e.value()); //TRUE isn't defined in javascript
+		out.append(q).append(value).append(q);
 	}
 	
-	private String serialize(final VarExpr e)
+	private void serialize(final VarExpr e, final Appendable out) throws IOException
 	{
 		checkArgument(e != null,"Variable expression can't be null");
-		return e.name();
+		out.append(e.name());
 	}
 	
-	private String serialize(final CompositeExpr ce)
+	private void serialize(final CompositeExpr ce, final Appendable out) throws IOException
 	{
 		checkArgument(ce != null,"Composite expression can't be null");
-        return format(BLOCK_PATTERN,
-                        ce.subExpressions().foldLeft(fj((accum, e) -> accum + NL + serialize(e) + ";"),""),
-                        serialize(evaluationOf(ce.subExpressions().last())) + ";");
+		out.append('{');
+		for (final Expr e : ce.subExpressions())
+		{
+			out.append(NL);
+			serialize(e, out);
+			out.append(';');
+		}
+		out.append(NL).append(RETURN);
+		serialize(evaluationOf(ce.subExpressions().last()), out);
+		out.append(';').append(NL).append('}');
+	}
+
+	/**
+	 * Serialize the statements of a function body, each on its own line, without enclosing them in a block or returning the body's value.
+	 * @param body The function body - a sequence, or a single expression
+	 * @param out The output to write the statements to
+	 * @return The expression holding the value of the body, to be used after the statements.
+	 */
+	public Expr serializeStatements(final Expr body, final Appendable out) throws IOException
+	{
+		checkArgument(body != null,"Body can't be null");
+		if (!(body instanceof CompositeExpr) || body instanceof BinOpExpr) return body;
+		for (final Expr e : ((CompositeExpr)body).subExpressions())
+		{
+			serialize(e, out);
+			out.append(';').append(NL);
+		}
+		return evaluationOf(((CompositeExpr)body).subExpressions().last());
 	}
 
 	private Expr evaluationOf(Expr e) //TODO: code smell: this should be encapsulated in the expression definition
@@ -2,39 +2,116 @@ package ls.tools.excel.serialize.js;
 
 import fj.data.List;
 import ls.tools.excel.FunctionFormatter;
+import ls.tools.excel.model.Expr;
 import ls.tools.excel.model.Function;
 import ls.tools.excel.model.Param;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
 import static com.google.common.base.Preconditions.checkArgument;
-import static ls.tools.fj.Util.fj;
+import static ls.tools.excel.serialize.js.JSExpressionSerializer.functionName;
 
+/**
+ * Formats functions as javascript functions.
+ * <br/>
+ * A {@link #batch() batch} formatter follows every function with a batch version of it, named <code>&lt;name&gt;_batch</code>.
+ * It takes a column - an array with a value for each row - for each parameter of the function, and an output column, and loops over the rows,
+ * evaluating the function's body for each row into the output column. The number of rows is the length of the output column.
+ * Numeric columns should be <code>Float64Array</code>s (so should the output column of a numeric function); other columns are plain arrays.
+ * Functions invoked by the body are invoked as they are, once per row.
+ */
 public final class JSFormatter implements FunctionFormatter
 {
 //TODO: need to generate proper calls for built-in functions
-	
+
+	private static final String NL = System.getProperty("line.separator");
+	private static final String BATCH_SUFFIX = "_batch";
+	private static final String COLUMN_SUFFIX = "_col";
+	private static final String ROW = "_row";
+	private static final String OUT = "_out";
+
+	private final boolean batch;
+
+	public JSFormatter()
+	{
+		this(false);
+	}
+
+	private JSFormatter(final boolean _batch)
+	{
+		this.batch = _batch;
+	}
+
+	@Override public FunctionFormatter batch() { return new JSFormatter(true); }
+
 	@Override public String format(final Function f)
 	{
 		checkArgument(f != null,"Function to format can't be null");
-		
-		return String.format("%1$s %2$s", header(f), body(f));
-		
+		final StringBuilder sb = new StringBuilder();
+		try
+		{
+			format(f, sb);
+		}
+		catch (IOException e) { throw new UncheckedIOException(e); } //can't happen when appending to a StringBuilder
+		return sb.toString();
+	}
+
+	@Override public void format(final Function f, final Appendable out) throws IOException
+	{
+		checkArgument(f != null,"Function to format can't be null");
+		checkArgument(out != null,"Output can't be null");
+		header(f, out);
+		out.append(' ');
+		body(f, out);
+		if (batch)
+		{
+			out.append(NL).append(NL);
+			batchFunction(f, out);
+		}
+	}
+
+	/**
+	 * Every row copies its values out of the columns, into variables named as the function's parameters, so the body is written as is.
+	 */
+	private void batchFunction(final Function f, final Appendable out) throws IOException
+	{
+		out.append("function ").append(functionName(f.name())).append(BATCH_SUFFIX).append('(');
+		for (final Param p : f.parameters())
+			out.append(p.name()).append(COLUMN_SUFFIX).append(',');
+		out.append(OUT).append(") {").append(NL);
+		out.append("for (var ").append(ROW).append(" = 0; ").append(ROW).append(" < ").append(OUT).append(".length; ").append(ROW).append("++) {").append(NL);
+		for (final Param p : f.parameters())
+			out.append("var ").append(p.name()).append(" = ").append(p.name()).append(COLUMN_SUFFIX).append('[').append(ROW).append("];").append(NL);
+		final JSExpressionSerializer exprSerializer = new JSExpressionSerializer();
+		final Expr value = exprSerializer.serializeStatements(f.body(), out);
+		out.append(OUT).append('[').append(ROW).append("] = ");
+		exprSerializer.serialize(value, out);
+		out.append(';').append(NL).append('}').append(NL).append('}');
 	}
 
-	private String body(final Function f)
+	private void body(final Function f, final Appendable out) throws IOException
 	{
 		final JSExpressionSerializer exprSerializer = new JSExpressionSerializer();
-		return exprSerializer.serialize(f.body());
+		exprSerializer.serialize(f.body(), out);
 	}
 
-	private String header(final Function f)
+	private void header(final Function f, final Appendable out) throws IOException
 	{
-		return String.format("function %1$s(%2$s)",f.name(),formatParams(f.parameters()));
+		out.append("function ").append(functionName(f.name())).append('(');
+		formatParams(f.parameters(), out);
+		out.append(')');
 	}
 
-	private String formatParams(final List<Param> parameters)
+	private void formatParams(final List<Param> parameters, final Appendable out) throws IOException
 	{
-        final String res = parameters.map(fj(Param::name)).foldLeft(fj((accum,p) -> accum + p + ","),"");
-        return res.substring(0,res.length()-1);
+		boolean first = true;
+		for (final Param p : parameters)
+		{
+			if (!first) out.append(',');
+			out.append(p.name());
+			first = false;
+		}
 	}
 
 	@Override
@@ -43,8 +120,13 @@ public final class JSFormatter implements FunctionFormatter
 		checkArgument(functions != null,"Functions can't be null");
 		checkArgument(delimiter != null,"Delimiter can't be null");
 
-        final String res = functions.map(fj(f -> format(f))).foldLeft(fj((output,accum)->accum + output + delimiter),"");
-        return res.substring(0,res.length());
+		final StringBuilder sb = new StringBuilder();
+		try
+		{
+			format(functions, delimiter, sb);
+		}
+		catch (IOException e) { throw new UncheckedIOException(e); } //can't happen when appending to a StringBuilder
+		return sb.toString();
 	}
 
 }
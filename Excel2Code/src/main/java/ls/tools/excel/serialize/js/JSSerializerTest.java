@@ -1,11 +1,17 @@
 package ls.tools.excel.serialize.js;
 
 import fj.data.List;
+import ls.tools.excel.FormulaConverter;
 import ls.tools.excel.FormulaConverterTest;
 import ls.tools.excel.model.Function;
+import org.apache.poi.ss.usermodel.Name;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.StringWriter;
+
 import static org.junit.Assert.assertEquals;
 
 public class JSSerializerTest
@@ -52,6 +58,56 @@ public class JSSerializerTest
 		assertEquals(expected,removeNLs(result));
 	}
 	
+	@Test
+	public void functionListIsWrittenInOrder() throws Exception
+	{
+		final List<Function> functions = fcTests.simple2CellMultExpectedResult().append(fcTests.simpleScalarMultExpectedResult());
+		final StringWriter out = new StringWriter();
+		formatter.format(functions, "//", out);
+
+		final String expected = "function mult(C3,B3) {var _0 = B3 * C3;return _0;}//"
+								+ "function times2(B3) {var _0 = 2;var _1 = B3 * _0;return _1;}//";
+		assertEquals(expected, removeNLs(out.toString()));
+		assertEquals(out.toString(), formatter.format(functions, "//"));
+	}
+
+	@Test
+	public void functionsOfUnnamedCellsAreNotHiddenByTheirResults()
+	{
+		//B2 = B1*A1, where B1 = A1*2 has no name, so both its function and the variable bound to its result are named B1
+		final XSSFWorkbook wb = new XSSFWorkbook();
+		final Row row = wb.createSheet("Sheet1").createRow(0);
+		row.createCell(0).setCellValue(3);
+		row.createCell(1).setCellFormula("A1*2");
+		wb.getSheetAt(0).createRow(1).createCell(1).setCellFormula("B1*A1");
+		final Name n = wb.createName();
+		n.setNameName("chained");
+		n.setRefersToFormula("Sheet1!$B$2");
+		final List<Function> functions = new FormulaConverter().formulasFromNamedCells(wb, "chained");
+
+		final String expected = "function B1$(A1) {var _0 = 2;var _1 = A1 * _0;return _1;}//"
+								+ "function chained(A1) {var B1 = B1$(A1);var _2 = B1 * A1;return _2;}//";
+		assertEquals(expected, removeNLs(formatter.format(functions, "//")));
+	}
+
+	@Test
+	public void batchFunctionLoopsOverColumns()
+	{
+		final Function times2 = fcTests.simpleScalarMultExpectedResult().head();
+		final String result = formatter.batch().format(times2);
+
+		final String expected = "function times2(B3) {var _0 = 2;var _1 = B3 * _0;return _1;}"
+								+ "function times2_batch(B3_col,_out) {"
+								+ "for (var _row = 0; _row < _out.length; _row++) {"
+								+ "var B3 = B3_col[_row];"
+								+ "var _0 = 2;"
+								+ "var _1 = B3 * _0;"
+								+ "_out[_row] = _1;"
+								+ "}"
+								+ "}";
+		assertEquals(expected, removeNLs(result));
+	}
+
 	private String removeNLs(String s) 
 	{
 		return s.replace(System.getProperty("line.separator"), "");
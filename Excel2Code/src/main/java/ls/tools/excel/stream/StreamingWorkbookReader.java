@@ -0,0 +1,295 @@
+package ls.tools.excel.stream;
+
+import ls.tools.excel.CellType;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.formula.FormulaRenderer;
+import org.apache.poi.ss.formula.FormulaType;
+import org.apache.poi.ss.formula.SharedFormula;
+import org.apache.poi.ss.formula.ptg.Ptg;
+import org.apache.poi.ss.usermodel.Name;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.usermodel.XSSFEvaluationWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static ls.tools.excel.CellType.*;
+import static org.apache.poi.ss.formula.FormulaParser.parse;
+
+/**
+ * Reads an OpenXML (xlsx) workbook into a {@link WorkbookTable}, using the XSSF event model.
+ * <br/>
+ * The workbook and sheet parts are streamed through a SAX parser, so the workbook is never loaded into memory as a whole.
+ * Only the defined names, the formula text of formula cells, and the type of every other cell are kept.
+ */
+public final class StreamingWorkbookReader
+{
+
+	/**
+	 * Read the given workbook file.
+	 * @param file The xlsx file to read
+	 * @return The table of names, formulas and cell types read from the file.
+	 * @throws IOException If reading the file fails
+	 * @throws InvalidFormatException If the file isn't a valid OpenXML package
+	 */
+	public WorkbookTable read(final File file) throws IOException, InvalidFormatException
+	{
+		checkArgument(file != null,"File to read can't be null");
+		final OPCPackage pkg = OPCPackage.open(file, PackageAccess.READ);
+		try
+		{
+			return read(new XSSFReader(pkg));
+		}
+		catch (InvalidFormatException e) { throw e; }
+		catch (OpenXML4JException | SAXException | ParserConfigurationException e)
+		{
+			throw new IOException("Failed reading workbook " + file.getName() + ": " + e.getMessage(), e);
+		}
+		finally
+		{
+			pkg.revert(); //read only - nothing to save
+		}
+	}
+
+	private WorkbookTable read(final XSSFReader reader) throws IOException, OpenXML4JException, SAXException, ParserConfigurationException
+	{
+		final WorkbookTable ret = new WorkbookTable();
+		final WorkbookHandler wbHandler = new WorkbookHandler();
+		parseXML(reader.getWorkbookData(), wbHandler);
+		final XSSFEvaluationWorkbook fpwb = parsingWorkbookFor(wbHandler.sheetNames, wbHandler.names);
+		ret.setParsingWorkbook(fpwb);
+		for (final String[] n : wbHandler.names)
+			ret.addName(n[0], n[1] == null ? null : wbHandler.sheetNames.get(Integer.parseInt(n[1])), n[2]);
+
+		final XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) reader.getSheetsData();
+		while (sheets.hasNext())
+			try (final InputStream sheetData = sheets.next())
+			{
+				final String sheetName = sheets.getSheetName();
+				final SheetHandler sheetHandler = new SheetHandler(ret.addSheet(sheetName));
+				parseXML(sheetData, sheetHandler);
+				sheetHandler.resolveSharedFormulas(fpwb, wbHandler.sheetNames.indexOf(sheetName));
+			}
+		return ret;
+	}
+
+	private void parseXML(final InputStream in, final DefaultHandler handler) throws IOException, SAXException, ParserConfigurationException
+	{
+		final SAXParserFactory factory = SAXParserFactory.newInstance();
+		factory.setNamespaceAware(true);
+		final SAXParser parser = factory.newSAXParser();
+		try (final InputStream _in = in)
+		{
+			parser.parse(_in, handler);
+		}
+	}
+
+	/**
+	 * Create a workbook used only for parsing formulas: it has the sheets and names of the read workbook, but no cells.
+	 * Names that can't be defined in the parsing workbook (e.g. external references) are skipped.
+	 */
+	private XSSFEvaluationWorkbook parsingWorkbookFor(final List<String> sheetNames, final List<String[]> names)
+	{
+		final XSSFWorkbook wb = new XSSFWorkbook();
+		for (final String sheetName : sheetNames)
+			wb.createSheet(sheetName);
+		for (final String[] n : names)
+		{
+			final Name name = wb.createName();
+			try
+			{
+				if (n[1] != null) name.setSheetIndex(Integer.parseInt(n[1]));
+				name.setNameName(n[0]);
+				name.setRefersToFormula(n[2]);
+			}
+			catch (RuntimeException e)
+			{
+				wb.removeName(wb.getNumberOfNames()-1);
+			}
+		}
+		return XSSFEvaluationWorkbook.create(wb);
+	}
+
+	/**
+	 * Collects the sheet names, and the defined names (name, local sheet id, refers-to formula) of a workbook part.
+	 */
+	private static final class WorkbookHandler extends DefaultHandler
+	{
+		final List<String> sheetNames = new ArrayList<>();
+		final List<String[]> names = new ArrayList<>();
+		private StringBuilder text;
+		private String name;
+		private String localSheetId;
+
+		@Override public void startElement(final String uri, final String localName, final String qName, final Attributes attributes)
+		{
+			if ("sheet".equals(localName))
+				sheetNames.add(attributes.getValue("name"));
+			else if ("definedName".equals(localName))
+			{
+				name = attributes.getValue("name");
+				localSheetId = attributes.getValue("localSheetId");
+				text = new StringBuilder();
+			}
+		}
+
+		@Override public void characters(final char[] ch, final int start, final int length)
+		{
+			if (text != null) text.append(ch, start, length);
+		}
+
+		@Override public void endElement(final String uri, final String localName, final String qName)
+		{
+			if ("definedName".equals(localName))
+			{
+				names.add(new String[] { name, localSheetId, text.toString() });
+				text = null;
+			}
+		}
+	}
+
+	/**
+	 * Collects the formulas and cell types of a single sheet part.
+	 * <br/>
+	 * Cells using a shared formula only refer to the cell holding the formula text (its "master").
+	 * Their formula text is derived after the sheet is read, by {@link #resolveSharedFormulas(XSSFEvaluationWorkbook, int)}.
+	 */
+	private static final class SheetHandler extends DefaultHandler
+	{
+		private static final class SharedFormulaCell
+		{
+			final int row;
+			final int col;
+			final String formulaIndex;
+
+			SharedFormulaCell(final int _row, final int _col, final String _formulaIndex)
+			{
+				this.row = _row;
+				this.col = _col;
+				this.formulaIndex = _formulaIndex;
+			}
+		}
+
+		private final WorkbookTable.SheetCells cells;
+		private final Map<String,SharedFormulaCell> sharedFormulaMasters = new HashMap<>();
+		private final Map<String,String> sharedFormulas = new HashMap<>();
+		private final List<SharedFormulaCell> sharedFormulaCells = new ArrayList<>();
+
+		private int row = -1;
+		private int col = -1;
+		private String cellType;
+		private boolean hasValue;
+		private String sharedFormulaIndex;
+		private StringBuilder formula;
+		private boolean inFormula;
+
+		SheetHandler(final WorkbookTable.SheetCells _cells) { this.cells = _cells; }
+
+		@Override public void startElement(final String uri, final String localName, final String qName, final Attributes attributes)
+		{
+			if ("row".equals(localName))
+			{
+				final String r = attributes.getValue("r");
+				row = r != null ? Integer.parseInt(r) - 1 : row + 1;
+				col = -1;
+			}
+			else if ("c".equals(localName))
+			{
+				final String r = attributes.getValue("r");
+				if (r != null)
+				{
+					final CellReference cr = new CellReference(r);
+					row = cr.getRow();
+					col = cr.getCol();
+				}
+				else col++;
+				cellType = attributes.getValue("t");
+				hasValue = false;
+				sharedFormulaIndex = null;
+				formula = null;
+			}
+			else if ("f".equals(localName))
+			{
+				formula = new StringBuilder();
+				inFormula = true;
+				if ("shared".equals(attributes.getValue("t")))
+					sharedFormulaIndex = attributes.getValue("si");
+			}
+			else if ("v".equals(localName) || "is".equals(localName))
+				hasValue = true;
+		}
+
+		@Override public void characters(final char[] ch, final int start, final int length)
+		{
+			if (inFormula) formula.append(ch, start, length);
+		}
+
+		@Override public void endElement(final String uri, final String localName, final String qName)
+		{
+			if ("f".equals(localName))
+				inFormula = false;
+			else if ("c".equals(localName))
+				endCell();
+		}
+
+		private void endCell()
+		{
+			if (formula == null)
+				cells.addCell(row, col, hasValue ? typeOf(cellType) : BLANK);
+			else if (sharedFormulaIndex == null)
+				cells.addFormula(row, col, formula.toString());
+			else if (formula.length() > 0) //the master cell of a shared formula
+			{
+				sharedFormulaMasters.put(sharedFormulaIndex, new SharedFormulaCell(row, col, sharedFormulaIndex));
+				sharedFormulas.put(sharedFormulaIndex, formula.toString());
+				cells.addFormula(row, col, formula.toString());
+			}
+			else sharedFormulaCells.add(new SharedFormulaCell(row, col, sharedFormulaIndex));
+			formula = null;
+		}
+
+		/**
+		 * Derive the formula text of all cells using shared formulas, by shifting the shared formula's relative references from its master cell.
+		 */
+		void resolveSharedFormulas(final XSSFEvaluationWorkbook fpwb, final int sheetIndex)
+		{
+			final SharedFormula sf = new SharedFormula(SpreadsheetVersion.EXCEL2007);
+			final Map<String,Ptg[]> parsed = new HashMap<>();
+			for (final SharedFormulaCell c : sharedFormulaCells)
+			{
+				final SharedFormulaCell master = sharedFormulaMasters.get(c.formulaIndex);
+				if (master == null) throw new IllegalStateException("Couldn't find shared formula " + c.formulaIndex + " for " + new CellReference(c.row, c.col).formatAsString());
+				if (!parsed.containsKey(c.formulaIndex))
+					parsed.put(c.formulaIndex, parse(sharedFormulas.get(c.formulaIndex), fpwb, FormulaType.CELL, sheetIndex));
+				final Ptg[] shifted = sf.convertSharedFormulas(parsed.get(c.formulaIndex), c.row - master.row, c.col - master.col);
+				cells.addFormula(c.row, c.col, FormulaRenderer.toFormulaString(fpwb, shifted));
+			}
+		}
+
+		private static CellType typeOf(final String t)
+		{
+			if (t == null || "n".equals(t)) return NUMERIC;
+			else if ("b".equals(t)) return BOOLEAN;
+			else if ("e".equals(t)) return ERROR;
+			else return STRING; //s (shared string), str, inlineStr
+		}
+	}
+}
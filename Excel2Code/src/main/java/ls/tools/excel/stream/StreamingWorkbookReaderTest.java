@@ -0,0 +1,93 @@
+package ls.tools.excel.stream;
+
+import fj.data.List;
+import ls.tools.excel.FormulaConverter;
+import ls.tools.excel.FormulaWorkbook;
+import ls.tools.excel.XSSFFormulaWorkbook;
+import ls.tools.excel.model.Function;
+import org.apache.poi.ss.usermodel.Name;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+
+import static ls.tools.excel.CellType.FORMULA;
+import static ls.tools.fj.Util.listsEql;
+import static ls.tools.fj.Util.nullCheckingEqualPredicate;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class StreamingWorkbookReaderTest
+{
+
+	private static final String TEST_FILENAME = "test.xlsx";
+	private static final String SHEET1 = "Sheet1";
+	private FormulaWorkbook streamed;
+	private FormulaWorkbook loaded;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		streamed = new StreamingWorkbookReader().read(new File(TEST_FILENAME));
+		loaded = new XSSFFormulaWorkbook((XSSFWorkbook) WorkbookFactory.create(new FileInputStream(TEST_FILENAME)));
+	}
+
+	@Test
+	public void namesAreReadInOrder()
+	{
+		assertTrue(listsEql(loaded.names(), streamed.names(), nullCheckingEqualPredicate()));
+		for (final String name : loaded.names())
+			assertEquals(loaded.cellNamed(name), streamed.cellNamed(name));
+	}
+
+	@Test
+	public void cellTypesAndFormulasMatchTheLoadedWorkbook()
+	{
+		for (int row = 0; row < 13; row++)
+			for (int col = 0; col < 12; col++)
+			{
+				final CellReference cr = new CellReference(SHEET1, row, col, false, false);
+				assertEquals(cr.formatAsString(), loaded.typeOf(cr), streamed.typeOf(cr));
+				assertEquals(cr.formatAsString(), loaded.nameOf(cr), streamed.nameOf(cr));
+				if (loaded.typeOf(cr) == FORMULA)
+					assertEquals(cr.formatAsString(), loaded.formulaAt(cr), streamed.formulaAt(cr));
+			}
+	}
+
+	@Test
+	public void convertingStreamedWorkbookGivesSameFunctions()
+	{
+		final String[] names = { "mult", "times2", "square", "cube", "cube_sqrt" };
+		final List<Function> expected = new FormulaConverter().formulasFromNamedCells(loaded, names);
+		final List<Function> result = new FormulaConverter().formulasFromNamedCells(streamed, names);
+		assertTrue(listsEql(result, expected, nullCheckingEqualPredicate(), true));
+	}
+
+	@Test
+	public void onlyNamesOfSingleCellsAreListed() throws Exception
+	{
+		final XSSFWorkbook wb = (XSSFWorkbook) WorkbookFactory.create(new FileInputStream(TEST_FILENAME));
+		addName(wb, "range", SHEET1 + "!$B$3:$D$3");
+		addName(wb, "constant", "42");
+		addName(wb, "formula", SHEET1 + "!$D$3*2");
+		final List<String> names = new XSSFFormulaWorkbook(wb).names();
+		assertTrue(listsEql(loaded.names(), names, nullCheckingEqualPredicate()));
+
+		final File file = File.createTempFile("names", ".xlsx");
+		file.deleteOnExit();
+		try (final FileOutputStream out = new FileOutputStream(file)) { wb.write(out); } //the workbook can't be used after it's written
+		assertTrue(listsEql(names, new StreamingWorkbookReader().read(file).names(), nullCheckingEqualPredicate()));
+	}
+
+	private static void addName(final XSSFWorkbook wb, final String name, final String refersTo)
+	{
+		final Name n = wb.createName();
+		n.setNameName(name);
+		n.setRefersToFormula(refersTo);
+	}
+}
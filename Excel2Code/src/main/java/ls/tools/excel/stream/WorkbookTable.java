@@ -0,0 +1,111 @@
+package ls.tools.excel.stream;
+
+import fj.data.List;
+import fj.data.Option;
+import ls.tools.excel.CellType;
+import ls.tools.excel.DefinedNames;
+import ls.tools.excel.FormulaWorkbook;
+import org.apache.poi.ss.formula.FormulaParsingWorkbook;
+import org.apache.poi.ss.util.CellReference;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static ls.tools.excel.CellType.BLANK;
+import static ls.tools.excel.CellType.FORMULA;
+import static ls.tools.excel.DefinedNames.cellReferredBy;
+import static ls.tools.excel.DefinedNames.refersToSingleCell;
+
+/**
+ * A compact, read-only, in-memory table of a workbook's defined names, formulas and cell types - and nothing else.
+ * <br/>
+ * Cell values and styles are not kept. Instances are created by the {@link StreamingWorkbookReader}.
+ */
+public final class WorkbookTable implements FormulaWorkbook
+{
+	/**
+	 * The cells of a single sheet. Cells are keyed by their {@link #cellKey(int, int) position}.
+	 * Formula cells only have their formula text stored; all other non-blank cells only have their type stored.
+	 */
+	static final class SheetCells
+	{
+		private final Map<Long,String> formulas = new HashMap<>();
+		private final Map<Long,CellType> types = new HashMap<>();
+
+		void addFormula(final int row, final int col, final String formula) { formulas.put(cellKey(row, col), formula); }
+		void addCell(final int row, final int col, final CellType type) { if (type != BLANK) types.put(cellKey(row, col), type); }
+
+		private static long cellKey(final int row, final int col) { return ((long)row << Short.SIZE) | col; }
+	}
+
+	private final Map<String,SheetCells> sheets = new LinkedHashMap<>();
+	private final Map<String,CellReference> namedCells = new LinkedHashMap<>();
+	private final Map<String,String> namesByCell = new HashMap<>();
+	private FormulaParsingWorkbook fpwb;
+
+	WorkbookTable() {}
+
+	SheetCells addSheet(final String sheetName)
+	{
+		final SheetCells ret = new SheetCells();
+		sheets.put(sheetName, ret);
+		return ret;
+	}
+
+	/**
+	 * Add a defined name. Only {@link DefinedNames names referring to a single cell} can be converted; others are ignored.
+	 * @param name The defined name
+	 * @param localSheetName The sheet the name is local to, null for names global to the workbook.
+	 * @param refersTo The formula the name refers to
+	 */
+	void addName(final String name, final String localSheetName, final String refersTo)
+	{
+		if (namedCells.containsKey(name) || !refersToSingleCell(refersTo)) return;
+		final CellReference cell = cellReferredBy(refersTo, localSheetName);
+		namedCells.put(name, cell);
+		//the first name found for a cell is the one used
+		if (!namesByCell.containsKey(cell.formatAsString()))
+			namesByCell.put(cell.formatAsString(), name);
+	}
+
+	void setParsingWorkbook(final FormulaParsingWorkbook parsingWorkbook) { this.fpwb = parsingWorkbook; }
+
+	@Override public List<String> names() { return List.iterableList(namedCells.keySet()); }
+
+	@Override public CellReference cellNamed(final String name)
+	{
+		checkArgument(name != null,"Name of named cell can't be null");
+		return checkNotNull(namedCells.get(name), "Couldn't find name: " + name);
+	}
+
+	@Override public Option<String> nameOf(final CellReference cell)
+	{
+		checkArgument(cell != null,"Can't find a name for a null cell");
+		return Option.fromNull(namesByCell.get(cell.formatAsString()));
+	}
+
+	@Override public CellType typeOf(final CellReference cell)
+	{
+		final SheetCells s = sheet(cell);
+		final long key = SheetCells.cellKey(cell.getRow(), cell.getCol());
+		if (s.formulas.containsKey(key)) return FORMULA;
+		final CellType ret = s.types.get(key);
+		return ret != null ? ret : BLANK;
+	}
+
+	@Override public String formulaAt(final CellReference cell)
+	{
+		return checkNotNull(sheet(cell).formulas.get(SheetCells.cellKey(cell.getRow(), cell.getCol())),"No formula at " + cell.formatAsString());
+	}
+
+	@Override public FormulaParsingWorkbook parsingWorkbook() { return fpwb; }
+
+	private SheetCells sheet(final CellReference cell)
+	{
+		checkArgument(cell != null && cell.getSheetName() != null,"Cell reference must be qualified with a sheet name");
+		return checkNotNull(sheets.get(cell.getSheetName()),"Couldn't find sheet: " + cell.getSheetName());
+	}
+}
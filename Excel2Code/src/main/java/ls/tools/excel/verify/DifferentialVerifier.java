@@ -0,0 +1,342 @@
+package ls.tools.excel.verify;
+
+import fj.data.List;
+import ls.tools.excel.CellType;
+import ls.tools.excel.XSSFFormulaWorkbook;
+import ls.tools.excel.eval.InterpretedFunction;
+import ls.tools.excel.eval.Interpreter;
+import ls.tools.excel.model.Function;
+import ls.tools.excel.model.Param;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellValue;
+import org.apache.poi.ss.usermodel.FormulaEvaluator;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.AreaReference;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static ls.tools.excel.CellType.*;
+
+/**
+ * Verifies converted functions against POI's {@link FormulaEvaluator}: every named formula is evaluated for many sampled inputs, both by its converted function
+ * (with the {@link Interpreter}) and by POI, in the workbook, and the results are compared.
+ * <br/>
+ * Numeric parameters are sampled in [-{@link #range}, {@link #range}], half of them whole numbers (so equality tests and the like are taken both ways),
+ * boolean parameters are sampled at random, and other parameters keep their values in the workbook. Sample <i>i</i> of a name always gets the same inputs, for a given seed,
+ * so a mismatch can be reproduced.
+ * <br/>
+ * The samples are split between the threads of a pool. POI's evaluator isn't thread safe, and is fed by setting the input cells, so every thread
+ * works on a copy of its own of the workbook. Excel errors (e.g. <code>#DIV/0!</code>) match a converted function that fails or doesn't compute a number.
+ * Numbers match if they're equal up to {@link #TOLERANCE}.
+ */
+public final class DifferentialVerifier
+{
+	public static final int DEFAULT_RANGE = 100;
+	static final double TOLERANCE = 1e-9;
+	/**
+	 * The number of mismatches kept, for every name, to be reported.
+	 */
+	static final int MISMATCHES_KEPT = 10;
+
+	private static final String ERROR = "an error";
+
+	private final byte[] workbook;
+	private final int range;
+	private final long seed;
+
+	/**
+	 * @param wb The workbook the functions were converted from. It's copied, so it's not changed.
+	 * @param _range The largest absolute value of sampled numbers
+	 * @param _seed The seed of the sampled inputs
+	 */
+	public DifferentialVerifier(final XSSFWorkbook wb, final int _range, final long _seed)
+	{
+		checkArgument(wb != null,"Workbook can't be null");
+		checkArgument(_range > 0,"Range must be positive");
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try
+		{
+			wb.write(bytes);
+		}
+		catch (IOException e) { throw new UncheckedIOException(e); } //can't happen when writing to a byte array
+		this.workbook = bytes.toByteArray();
+		this.range = _range;
+		this.seed = _seed;
+	}
+
+	public DifferentialVerifier(final XSSFWorkbook wb)
+	{
+		this(wb, DEFAULT_RANGE, 0);
+	}
+
+	/**
+	 * Same as {@link #verify(List, int, ForkJoinPool, String...)}, using the common fork-join pool.
+	 */
+	public VerificationReport verify(final List<Function> functions, final int samples, final String... names)
+	{
+		return verify(functions, samples, ForkJoinPool.commonPool(), names);
+	}
+
+	/**
+	 * @param functions The functions converted from the given names, with the functions they invoke
+	 * @param samples The number of samples to verify, of every name
+	 * @param pool The pool to evaluate the samples in, with a thread per {@link ForkJoinPool#getParallelism() level of parallelism}
+	 * @param names The names to verify. The function of every name is the one named as it.
+	 * @return The report of the samples verified.
+	 */
+	public VerificationReport verify(final List<Function> functions, final int samples, final ForkJoinPool pool, final String... names)
+	{
+		checkArgument(functions != null,"Functions can't be null");
+		checkArgument(samples > 0,"Number of samples must be positive");
+		checkArgument(pool != null,"Pool can't be null");
+		checkArgument(names != null && names.length > 0,"Names to verify can't be empty");
+		//prepared up front - an interpreter isn't thread safe, but prepared functions are
+		final Interpreter interpreter = new Interpreter();
+		final java.util.List<InterpretedFunction> targets = new ArrayList<>(names.length);
+		for (final String name : names)
+			targets.add(interpreter.prepare(functionNamed(functions, name)));
+
+		final long start = System.nanoTime();
+		final int workers = Math.min(pool.getParallelism(), samples);
+		final java.util.List<Callable<Worker>> tasks = new ArrayList<>(workers);
+		for (int w = 0; w < workers; w++)
+		{
+			final Worker worker = new Worker(w, workers, samples, names, targets);
+			tasks.add(() -> worker.run());
+		}
+		final Map<String,VerificationReport.NameStats> stats = new LinkedHashMap<>();
+		for (final String name : names) stats.put(name, new VerificationReport.NameStats());
+		final java.util.List<java.util.List<VerificationReport.Mismatch>> mismatches = new ArrayList<>();
+		for (int i = 0; i < names.length; i++) mismatches.add(new ArrayList<>());
+		for (final Future<Worker> f : pool.invokeAll(tasks))
+		{
+			final Worker done = resultOf(f);
+			for (int i = 0; i < names.length; i++)
+			{
+				stats.get(names[i]).add(done.stats[i]);
+				mismatches.get(i).addAll(done.mismatches.get(i));
+			}
+		}
+		final List.Buffer<VerificationReport.Mismatch> kept = List.Buffer.empty();
+		for (final java.util.List<VerificationReport.Mismatch> ms : mismatches)
+			for (final VerificationReport.Mismatch m : ms.subList(0, Math.min(MISMATCHES_KEPT, ms.size()))) kept.snoc(m);
+		return new VerificationReport(stats, kept.toList(), System.nanoTime() - start);
+	}
+
+	private static Function functionNamed(final List<Function> functions, final String name)
+	{
+		Function ret = null;
+		for (final Function f : functions)
+			if (f.name().equals(name)) ret = f;
+		checkArgument(ret != null,"No function was converted for name: " + name);
+		return ret;
+	}
+
+	private static Worker resultOf(final Future<Worker> f)
+	{
+		try
+		{
+			return f.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while verifying", e);
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+			throw new IllegalStateException("Failed verifying: " + e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+	/**
+	 * Verifies every sample whose number is the worker's number, modulo the number of workers, of every name, in a copy of its own of the workbook.
+	 */
+	private final class Worker
+	{
+		private final int number;
+		private final int workers;
+		private final int samples;
+		private final String[] names;
+		private final java.util.List<InterpretedFunction> targets;
+		final VerificationReport.NameStats[] stats;
+		final java.util.List<java.util.List<VerificationReport.Mismatch>> mismatches = new ArrayList<>();
+
+		Worker(final int _number, final int _workers, final int _samples, final String[] _names, final java.util.List<InterpretedFunction> _targets)
+		{
+			this.number = _number;
+			this.workers = _workers;
+			this.samples = _samples;
+			this.names = _names;
+			this.targets = _targets;
+			this.stats = new VerificationReport.NameStats[_names.length];
+		}
+
+		Worker run() throws IOException
+		{
+			final XSSFWorkbook wb = new XSSFWorkbook(new ByteArrayInputStream(workbook));
+			final FormulaEvaluator evaluator = wb.getCreationHelper().createFormulaEvaluator();
+			final XSSFFormulaWorkbook formulaWorkbook = new XSSFFormulaWorkbook(wb);
+			final Cell[] targetCells = new Cell[names.length];
+			final java.util.List<java.util.List<java.util.List<Cell>>> paramCells = new ArrayList<>();
+			for (int n = 0; n < names.length; n++)
+			{
+				stats[n] = new VerificationReport.NameStats();
+				mismatches.add(new ArrayList<>());
+				final CellReference target = formulaWorkbook.cellNamed(names[n]);
+				final Sheet sheet = wb.getSheet(target.getSheetName());
+				targetCells[n] = cellAt(sheet, target.getRow(), target.getCol());
+				final java.util.List<java.util.List<Cell>> cells = new ArrayList<>();
+				for (final Param p : targets.get(n).parameters())
+					cells.add(cellsOf(sheet, p));
+				paramCells.add(cells);
+			}
+			//names are interleaved, so warming up (the JIT) isn't charged to the first name
+			for (int i = number; i < samples; i += workers)
+				for (int n = 0; n < names.length; n++)
+					verify(n, i, targetCells[n], paramCells.get(n), evaluator);
+			return this;
+		}
+
+		private void verify(final int n, final int sample, final Cell target, final java.util.List<java.util.List<Cell>> paramCells, final FormulaEvaluator evaluator)
+		{
+			final InterpretedFunction f = targets.get(n);
+			final SplittableRandom random = new SplittableRandom(seed + 0x9E3779B97F4A7C15L * (n + 1) + sample);
+			final Map<String,Object> inputs = new LinkedHashMap<>();
+			final Object[] args = new Object[paramCells.size()];
+			int i = 0;
+			for (final Param p : f.parameters())
+			{
+				args[i] = sample(p.type(), paramCells.get(i), random, evaluator);
+				inputs.put(p.name(), args[i]);
+				i++;
+			}
+
+			long time = System.nanoTime();
+			final String actual = converted(f, args);
+			stats[n].convertedNanos += System.nanoTime() - time;
+			time = System.nanoTime();
+			final CellValue expected = evaluator.evaluate(target);
+			stats[n].excelNanos += System.nanoTime() - time;
+
+			stats[n].samples++;
+			if (!matches(expected, actual))
+			{
+				stats[n].mismatches++;
+				if (mismatches.get(n).size() < MISMATCHES_KEPT) mismatches.get(n).add(new VerificationReport.Mismatch(names[n], inputs, excel(expected), actual));
+			}
+		}
+
+		/**
+		 * Set the cells of a parameter to sampled values, if its type can be sampled.
+		 * @return The argument for the parameter.
+		 */
+		private Object sample(final CellType type, final java.util.List<Cell> cells, final SplittableRandom random, final FormulaEvaluator evaluator)
+		{
+			if (type == NUMERIC || type == RANGE)
+			{
+				final double[] values = new double[cells.size()];
+				for (int i = 0; i < values.length; i++)
+				{
+					values[i] = random.nextBoolean() ? random.nextInt(-range, range + 1) : random.nextDouble(-range, range);
+					cells.get(i).setCellValue(values[i]);
+					evaluator.notifyUpdateCell(cells.get(i));
+				}
+				return type == RANGE ? values : (Object)values[0];
+			}
+			else if (type == BOOLEAN)
+			{
+				final boolean value = random.nextBoolean();
+				cells.get(0).setCellValue(value);
+				evaluator.notifyUpdateCell(cells.get(0));
+				return value;
+			}
+			else return cells.get(0).getCellType() == Cell.CELL_TYPE_STRING ? cells.get(0).getStringCellValue() : null;
+		}
+	}
+
+	/**
+	 * @return The cells of the given parameter, named as the cell it stands for, or as the range it stands for (e.g. <code>A1_A3</code>), row by row.
+	 */
+	private static java.util.List<Cell> cellsOf(final Sheet sheet, final Param p)
+	{
+		final java.util.List<Cell> ret = new ArrayList<>();
+		if (p.type() == RANGE)
+			for (final CellReference c : new AreaReference(p.name().replace('_', ':')).getAllReferencedCells())
+				ret.add(cellAt(sheet, c.getRow(), c.getCol()));
+		else
+		{
+			final CellReference c = new CellReference(p.name());
+			ret.add(cellAt(sheet, c.getRow(), c.getCol()));
+		}
+		return ret;
+	}
+
+	private static Cell cellAt(final Sheet sheet, final int row, final int col)
+	{
+		final Row r = sheet.getRow(row) != null ? sheet.getRow(row) : sheet.createRow(row);
+		return r.getCell(col) != null ? r.getCell(col) : r.createCell(col);
+	}
+
+	/**
+	 * @return The text of the result of the given function, or {@link #ERROR} if it fails (e.g. MOD by zero) or doesn't compute a number (e.g. the square root of a negative number).
+	 */
+	private static String converted(final InterpretedFunction f, final Object[] args)
+	{
+		try
+		{
+			final Object ret = f.apply(args);
+			if (ret instanceof Double && (((Double)ret).isNaN() || ((Double)ret).isInfinite())) return ERROR;
+			return String.valueOf(ret);
+		}
+		catch (RuntimeException e) { return ERROR; }
+	}
+
+	private static boolean matches(final CellValue expected, final String actual)
+	{
+		switch (expected.getCellType())
+		{
+			case Cell.CELL_TYPE_NUMERIC :
+				if (actual.equals(ERROR)) return false;
+				try
+				{
+					final double e = expected.getNumberValue();
+					final double a = Double.parseDouble(actual);
+					return Math.abs(e - a) <= TOLERANCE * Math.max(1, Math.abs(e));
+				}
+				catch (NumberFormatException nfe) { return false; }
+			case Cell.CELL_TYPE_BOOLEAN : return Boolean.toString(expected.getBooleanValue()).equals(actual);
+			case Cell.CELL_TYPE_STRING : return expected.getStringValue().equals(actual);
+			case Cell.CELL_TYPE_ERROR : return actual.equals(ERROR);
+			default : return false;
+		}
+	}
+
+	private static String excel(final CellValue v) { return v.getCellType() == Cell.CELL_TYPE_ERROR ? v.formatAsString() : String.valueOf(excelValue(v)); }
+
+	private static Object excelValue(final CellValue v)
+	{
+		switch (v.getCellType())
+		{
+			case Cell.CELL_TYPE_NUMERIC : return v.getNumberValue();
+			case Cell.CELL_TYPE_BOOLEAN : return v.getBooleanValue();
+			default : return v.getStringValue();
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package ls.tools.excel.verify;
+
+import fj.data.List;
+import ls.tools.excel.FormulaConverter;
+import ls.tools.excel.model.Function;
+import org.apache.poi.ss.usermodel.Name;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Test;
+
+import java.io.FileInputStream;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public final class DifferentialVerifierTest
+{
+	@Test
+	public void convertedFunctionsMatchExcel() throws Exception
+	{
+		final XSSFWorkbook wb = (XSSFWorkbook) WorkbookFactory.create(new FileInputStream("test.xlsx"));
+		final String[] names = { "times2", "mult", "square", "cube", "cube_sqrt" };
+		final List<Function> functions = new FormulaConverter().formulasFromNamedCells(wb, names);
+
+		final VerificationReport report = new DifferentialVerifier(wb).verify(functions, 200, new ForkJoinPool(4), names);
+
+		assertTrue(report.toString(), report.passed());
+		assertEquals(5 * 200, report.sampleCount());
+		assertEquals(3, report.slowest(3).length());
+		assertTrue(report.samplesPerSecond() > 0);
+	}
+
+	@Test
+	public void functionsNotComputingAsExcelAreReported() throws Exception
+	{
+		final XSSFWorkbook wb = new XSSFWorkbook();
+		final Row row = wb.createSheet("Sheet1").createRow(0);
+		row.createCell(0).setCellValue(1);
+		row.createCell(1).setCellFormula("IF(A1=0,1,MOD(2,A1))");
+		final Name name = wb.createName();
+		name.setNameName("twoModA");
+		name.setRefersToFormula("Sheet1!$B$1");
+		final List<Function> functions = new FormulaConverter().formulasFromNamedCells(wb, "twoModA");
+		row.getCell(1).setCellFormula("IF(A1=0,1,MOD(3,A1))"); //changed after it was converted
+
+		final VerificationReport report = new DifferentialVerifier(wb, 10, 42).verify(functions, 100, new ForkJoinPool(2), "twoModA");
+
+		assertFalse(report.passed());
+		assertEquals(100, report.sampleCount());
+		assertTrue(report.mismatchCount("twoModA") < 100); //e.g. A1 = 0 or 1 computes the same
+		assertEquals(Math.min(report.mismatchCount(), DifferentialVerifier.MISMATCHES_KEPT), report.mismatches().length());
+		assertEquals("twoModA", report.mismatches().head().name);
+		assertTrue(report.mismatches().head().inputs.containsKey("A1"));
+	}
+}
@@ -0,0 +1,155 @@
+package ls.tools.excel.verify;
+
+import fj.data.List;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.String.format;
+
+/**
+ * The result of a {@link DifferentialVerifier differential verification}: how many samples of every name were evaluated, the ones whose results differ,
+ * and how long evaluations took.
+ */
+public final class VerificationReport
+{
+	/**
+	 * A sample whose converted function computed a different result than Excel (POI) did.
+	 */
+	public static final class Mismatch
+	{
+		public final String name;
+		/**
+		 * The value of every parameter, by its name, in the order of the parameters.
+		 */
+		public final Map<String,Object> inputs;
+		public final String expected;
+		public final String actual;
+
+		Mismatch(final String _name, final Map<String,Object> _inputs, final String _expected, final String _actual)
+		{
+			this.name = _name;
+			this.inputs = _inputs;
+			this.expected = _expected;
+			this.actual = _actual;
+		}
+
+		@Override public String toString()
+		{
+			final StringBuilder sb = new StringBuilder(name).append('(');
+			boolean first = true;
+			for (final Map.Entry<String,Object> in : inputs.entrySet())
+			{
+				if (!first) sb.append(", ");
+				sb.append(in.getKey()).append('=').append(valueText(in.getValue()));
+				first = false;
+			}
+			return sb.append("): Excel computed ").append(expected).append(", the converted function ").append(actual).toString();
+		}
+
+		private static String valueText(final Object value) { return value instanceof double[] ? Arrays.toString((double[])value) : String.valueOf(value); }
+	}
+
+	/**
+	 * The counts and times of a single name.
+	 */
+	static final class NameStats
+	{
+		int samples;
+		int mismatches;
+		long convertedNanos;
+		long excelNanos;
+
+		void add(final NameStats other)
+		{
+			samples += other.samples;
+			mismatches += other.mismatches;
+			convertedNanos += other.convertedNanos;
+			excelNanos += other.excelNanos;
+		}
+	}
+
+	private final Map<String,NameStats> stats;
+	private final List<Mismatch> mismatches;
+	private final long wallNanos;
+
+	VerificationReport(final Map<String,NameStats> _stats, final List<Mismatch> _mismatches, final long _wallNanos)
+	{
+		this.stats = new LinkedHashMap<>(_stats);
+		this.mismatches = _mismatches;
+		this.wallNanos = _wallNanos;
+	}
+
+	public boolean passed() { return mismatchCount() == 0; }
+
+	public int sampleCount() { return stats.values().stream().mapToInt(s -> s.samples).sum(); }
+
+	/**
+	 * @return The number of samples whose results differ, of all names. Only the first few mismatches of every name are kept as {@link #mismatches()}.
+	 */
+	public int mismatchCount() { return stats.values().stream().mapToInt(s -> s.mismatches).sum(); }
+
+	public int mismatchCount(final String name) { return statsOf(name).mismatches; }
+
+	public List<Mismatch> mismatches() { return mismatches; }
+
+	/**
+	 * @return The number of samples verified per second of wall time, evaluated both by the converted functions and by POI.
+	 */
+	public double samplesPerSecond() { return wallNanos == 0 ? 0 : sampleCount() * 1e9 / wallNanos; }
+
+	/**
+	 * @return The average time, in nanoseconds, the converted function of the given name took to evaluate a sample.
+	 */
+	public double averageNanos(final String name)
+	{
+		final NameStats s = statsOf(name);
+		return s.samples == 0 ? 0 : (double)s.convertedNanos / s.samples;
+	}
+
+	/**
+	 * @return The average time, in nanoseconds, POI took to evaluate a sample of the given name.
+	 */
+	public double averageExcelNanos(final String name)
+	{
+		final NameStats s = statsOf(name);
+		return s.samples == 0 ? 0 : (double)s.excelNanos / s.samples;
+	}
+
+	/**
+	 * @return The names of the (at most) given number of formulas whose converted functions took the longest to evaluate, on average, slowest first.
+	 */
+	public List<String> slowest(final int count)
+	{
+		checkArgument(count >= 0,"Count can't be negative");
+		final java.util.List<String> names = new ArrayList<>(stats.keySet());
+		names.sort(Comparator.comparingDouble((String n) -> averageNanos(n)).reversed());
+		return List.iterableList(names.subList(0, Math.min(count, names.size())));
+	}
+
+	/**
+	 * @return A few lines summarizing the report: the counts, the throughput, the slowest formulas and the mismatches kept.
+	 */
+	public String summary(final int slowestCount)
+	{
+		final StringBuilder sb = new StringBuilder();
+		sb.append(format("Verified %1$d samples of %2$d names: %3$d mismatches, %4$.0f samples/second", sampleCount(), stats.size(), mismatchCount(), samplesPerSecond()));
+		for (final String name : slowest(slowestCount))
+			sb.append(format("%n  %1$s: %2$.0f ns converted, %3$.0f ns in POI", name, averageNanos(name), averageExcelNanos(name)));
+		for (final Mismatch m : mismatches)
+			sb.append(format("%n  Mismatch: %1$s", m));
+		return sb.toString();
+	}
+
+	@Override public String toString() { return summary(3); }
+
+	private NameStats statsOf(final String name)
+	{
+		checkArgument(stats.containsKey(name),"Name wasn't verified: " + name);
+		return stats.get(name);
+	}
+}
@@ -17,9 +17,13 @@ public final class Util
 
     private static final String NL = System.getProperty("line.separator");
 
+    /**
+     * @return A predicate testing equality with {@link Object#equals(Object)}, where nulls are equal only to nulls.
+     * Identical objects are equal without calling <code>equals</code>.
+     */
     public static <A,B> BiPredicate<A,B> nullCheckingEqualPredicate()
     {
-        return (a,b) -> a == null ? b == null : a.equals(b);
+        return (a,b) -> a == b || a != null && a.equals(b);
     }
 
     /**
@@ -37,6 +41,9 @@ public final class Util
      *
      * If one list is null, the other one must be null as well.
      *
+     * The lists are walked together, in a loop, so long lists don't grow the stack.
+     * The walk stops at the first non-equal element pair, or when one list is found to be shorter than the other.
+     *
      * There is also the option, for debugging purposes, to ask for an exception to be thrown when a non-equal element pair is met.
      * @param list1 The first list to test
      * @param list2 The 2nd list to test
@@ -51,15 +58,22 @@ public final class Util
         checkArgument(elementsEqlPredicate != null, "Predicate for comparing elements can't be null");
         if (list1 == null) return orThrow(list2 == null,exceptionOnNonEql,"list1 is null but list2 isn't");
         if (list2 == null) return orThrow(false,exceptionOnNonEql,"list2 is null but list1 isn't");
-        if (list1.length() != list2.length()) return orThrow(false,exceptionOnNonEql,"lengths are not equal");
-        if (list1.isEmpty()) return orThrow(list2.isEmpty(),exceptionOnNonEql,"list1 is empty but list2 isn't");
-        if (list2.isEmpty()) return orThrow(false,exceptionOnNonEql,"list2 is empty but list1 isn't");
-
-        final boolean restIsEql = listsEql(list1.tail(),list2.tail(),elementsEqlPredicate,exceptionOnNonEql);
-        final boolean headIsEql = elementsEqlPredicate.test(list1.head(),list2.head());
-        if (exceptionOnNonEql && !headIsEql)
-            throw new RuntimeException(NL + valueOf(list1.head()) + NL + "\tand" + NL + valueOf(list2.head()) + NL + "\tare not equal");
-        return restIsEql && headIsEql;
+
+        List<A> rest1 = list1;
+        List<B> rest2 = list2;
+        while (rest1 != rest2 && rest1.isNotEmpty() && rest2.isNotEmpty())
+        {
+            if (!elementsEqlPredicate.test(rest1.head(),rest2.head()))
+            {
+                if (exceptionOnNonEql)
+                    throw new RuntimeException(NL + valueOf(rest1.head()) + NL + "\tand" + NL + valueOf(rest2.head()) + NL + "\tare not equal");
+                return false;
+            }
+            rest1 = rest1.tail();
+            rest2 = rest2.tail();
+        }
+        if (rest1 == rest2) return true; //the same tail is trivially equal to itself
+        return orThrow(rest1.isEmpty() && rest2.isEmpty(),exceptionOnNonEql,"lengths are not equal");
     }
 
     /**
@@ -78,6 +92,20 @@ public final class Util
         else return ret;
     }
 
+    /**
+     * Compute a hash code for the given list from the hash codes of its elements, without copying the list.
+     * @param list The list to compute the hash for
+     * @return The combined hash code of the list's elements, in order.
+     */
+    public static int hashOf(final List<?> list)
+    {
+        checkArgument(list != null, "Can't compute the hash of a null list");
+        int ret = 1;
+        for (final Object o : list)
+            ret = 31 * ret + (o == null ? 0 : o.hashCode());
+        return ret;
+    }
+
     public static boolean notEmpty(final String s ) { return s != null && !"".equals(s); }
 
     public static <I,R> fj.F<I,R> fj(final Function<I,R> f)
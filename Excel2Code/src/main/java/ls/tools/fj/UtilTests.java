@@ -3,7 +3,12 @@ package ls.tools.fj;
 import fj.data.List;
 import org.junit.Test;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static ls.tools.fj.Util.listsEql;
+import static ls.tools.fj.Util.nullCheckingEqualPredicate;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class UtilTests
@@ -21,7 +26,44 @@ public class UtilTests
 	{
 		assertTrue(listsEql(List.list(1), List.list(1), (a,b) -> a.intValue() == b.intValue()));
 	}
-	
+
+	@Test
+	public void longListsAreComparedWithoutGrowingTheStack() throws Exception
+	{
+		final List<Integer> l1 = longList(200000);
+		final List<Integer> l2 = longList(200000);
+		assertTrue(listsEql(l1, l2, nullCheckingEqualPredicate()));
+		assertFalse(listsEql(l1, longList(200001), nullCheckingEqualPredicate()));
+		assertFalse(listsEql(longList(200001), l2, nullCheckingEqualPredicate()));
+	}
+
+	private static List<Integer> longList(final int length)
+	{
+		List<Integer> ret = List.nil();
+		for (int i = length - 1; i >= 0; i--)
+			ret = ret.cons(i);
+		return ret;
+	}
+
+	@Test
+	public void comparisonStopsAtTheFirstNonEqualElement() throws Exception
+	{
+		final AtomicInteger comparisons = new AtomicInteger();
+		final List<Integer> l1 = longList(1000);
+		final List<Integer> l2 = l1.tail().cons(-1);
+		assertFalse(listsEql(l1, l2, (a,b) -> { comparisons.incrementAndGet(); return a.equals(b); }));
+		assertEquals(1, comparisons.get());
+	}
+
+	@Test
+	public void sharedTailsAreNotCompared() throws Exception
+	{
+		final AtomicInteger comparisons = new AtomicInteger();
+		final List<Integer> tail = longList(1000);
+		assertTrue(listsEql(tail.cons(1), tail.cons(1), (a,b) -> { comparisons.incrementAndGet(); return a.equals(b); }));
+		assertEquals(1, comparisons.get());
+	}
+
 //	@Test
 //	public void genericEqualShouldReturnTrueAndNullForTwoNulls() throws Exception
 //	{